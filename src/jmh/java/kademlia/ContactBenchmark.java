@@ -0,0 +1,77 @@
+package kademlia;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Id hashing and xor distance of the contacts.
+ * The inputs are drawn from a fixed pool, so each call works on a different contact.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContactBenchmark {
+    private static final int POOL = 1024; //!< a power of 2
+
+    @Param({"16", "64", "160"})
+    public int bit_len;
+
+    private InetAddress[] addresses;
+    private int[] ports;
+    private Contact[] contacts;
+    private NodeId target;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        IdGenerator random = new IdGenerator(1);
+        this.addresses = new InetAddress[POOL];
+        this.ports = new int[POOL];
+        this.contacts = new Contact[POOL];
+        for(int i = 0; i < POOL; i++) {
+            this.addresses[i] = random.nextAddress();
+            this.ports[i] = random.nextPort();
+            this.contacts[i] = new Contact(this.addresses[i], this.ports[i], random.nextId(this.bit_len));
+        }
+        this.target = random.nextId(this.bit_len);
+        this.next = 0;
+    }
+
+    private int next() {
+        return this.next = (this.next + 1) & (POOL - 1);
+    }
+
+    @Benchmark
+    public NodeId hash() throws UnsupportedEncodingException {
+        final int i = this.next();
+        return Contact.hash(this.addresses[i], this.ports[i], this.bit_len);
+    }
+
+    @Benchmark
+    public long distance() {
+        return this.contacts[this.next()].distance(this.target);
+    }
+
+    @Benchmark
+    public int compareDistance() {
+        final int i = this.next();
+        return this.contacts[i].compareDistance(this.contacts[(i + 1) & (POOL - 1)], this.target);
+    }
+}
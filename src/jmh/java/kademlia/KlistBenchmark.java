@@ -0,0 +1,84 @@
+package kademlia;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Updates of a full bucket: the contacts already present are moved to the tail,
+ * the new ones remove the least recently seen to be pinged.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KlistBenchmark {
+    @Param({"64", "160"})
+    public int bit_len;
+
+    @Param({"5", "20"})
+    public int k;
+
+    private Klist klist;
+    private Contact[] present; //!< the k contacts of the klist
+    private Contact[] absent; //!< contacts never added
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        IdGenerator random = new IdGenerator(3);
+        this.klist = new Klist(this.k);
+        this.present = new Contact[this.k];
+        this.absent = new Contact[this.k];
+        for(int i = 0; i < this.k; i++) {
+            this.present[i] = random.nextContact(this.bit_len, false);
+            this.absent[i] = random.nextContact(this.bit_len, false);
+            this.klist.addContact(this.present[i]);
+        }
+        this.next = 0;
+    }
+
+    /**
+     * The least recently seen, so it's moved from the head to the tail
+     */
+    @Benchmark
+    public Contact addPresent() {
+        Contact c = this.present[this.next];
+        this.next = (this.next + 1) % this.k;
+        return this.klist.addContact(c);
+    }
+
+    /**
+     * The most recently seen, the fast path
+     */
+    @Benchmark
+    public Contact addTail() {
+        return this.klist.addContact(this.present[(this.next + this.k - 1) % this.k]);
+    }
+
+    /**
+     * A new contact on a full klist, then the removed one is added again as
+     * after its pong, so the klist is full at each invocation
+     */
+    @Benchmark
+    public Contact addFull() {
+        Contact c = this.absent[this.next];
+        this.next = (this.next + 1) % this.k;
+        Contact head = this.klist.addContact(c);
+        this.klist.addContact(head);
+        return head;
+    }
+}
@@ -0,0 +1,116 @@
+package kademlia;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The protocol on a network built as the sequential Simulator does (fast ids,
+ * a random bootstrap for each join), once for each trial.
+ * The lookups update the routing tables as in the simulation, after the warmup
+ * the tables are stable.
+ * Building 100000 nodes takes minutes, select the sizes with -p n_nodes=...
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NetworkBenchmark {
+    private static final int TARGETS = 4096; //!< a power of 2
+
+    @Param({"1000", "10000", "100000"})
+    public int n_nodes;
+
+    @Param({"64", "160"})
+    public int bit_len;
+
+    @Param({"20"})
+    public int k;
+
+    @Param({"3"})
+    public int alpha;
+
+    private ArrayList<Node> nodes;
+    private NodeId[] targets;
+    private Node[] sources; //!< the node of each target
+    private Contact[] senders; //!< a sender for the find_node of each target
+    private ShortList[] traversed; //!< piggybacked on the find_node of each target, the sender only
+    private int next;
+
+    @Setup(Level.Trial)
+    public void build() throws IOException {
+        IdGenerator random = new IdGenerator(4);
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>(this.n_nodes * 2);
+        SocketNode socket = new SocketNode(all_nodes);
+        this.nodes = new ArrayList<Node>(this.n_nodes);
+        for(int i = 0; i < this.n_nodes; i++) {
+            Node node = new Node(socket, random.nextContact(this.bit_len, false), this.k, this.alpha);
+            all_nodes.put(node.me.id, node);
+            if(!this.nodes.isEmpty())
+                node.bootstrap(this.nodes.get(random.nextInt(this.nodes.size())).me);
+            this.nodes.add(node);
+        }
+        this.targets = new NodeId[TARGETS];
+        this.sources = new Node[TARGETS];
+        this.senders = new Contact[TARGETS];
+        this.traversed = new ShortList[TARGETS];
+        for(int i = 0; i < TARGETS; i++) {
+            this.targets[i] = random.nextId(this.bit_len);
+            this.sources[i] = this.nodes.get(random.nextInt(this.n_nodes));
+            this.senders[i] = this.nodes.get(random.nextInt(this.n_nodes)).me;
+            this.traversed[i] = new ShortList(this.k, this.senders[i], this.targets[i]);
+            this.traversed[i].add(this.senders[i]);
+        }
+        this.next = 0;
+    }
+
+    private int next() {
+        return this.next = (this.next + 1) & (TARGETS - 1);
+    }
+
+    /**
+     * The k closest contacts of a routing table
+     */
+    @Benchmark
+    public CandidateSet findNode() {
+        final int i = this.next();
+        return this.sources[i].findNode(this.targets[i]);
+    }
+
+    /**
+     * A FIND_NODE request, with the routing table update of the sender
+     */
+    @Benchmark
+    public Message receiveFind() {
+        final int i = this.next();
+        Node node = this.sources[i];
+        Message msg = new Message.FindRequest(this.targets[i], this.traversed[i], this.senders[i], node.me);
+        return node.receive(msg);
+    }
+
+    /**
+     * A whole iterative lookup through the synchronous transport
+     */
+    @Benchmark
+    public CandidateSet lookup() {
+        final int i = this.next();
+        return this.sources[i].Lookup(this.targets[i]);
+    }
+}
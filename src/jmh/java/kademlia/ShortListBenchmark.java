@@ -0,0 +1,113 @@
+package kademlia;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The lookup lists: the ShortList of the traversed nodes and the CandidateSet
+ * of the lookups. Each invocation fills them with k contacts, as a find_node reply.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShortListBenchmark {
+    @Param({"64", "160"})
+    public int bit_len;
+
+    @Param({"5", "20"})
+    public int k;
+
+    @Param({"1", "3"})
+    public int alpha;
+
+    private Contact owner;
+    private NodeId target;
+    private Contact[] reply; //!< k contacts
+    private Contact[] other; //!< other k contacts
+    private ShortList full; //!< the reply, not sorted
+    private ShortList merged; //!< the other contacts, sorted
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        IdGenerator random = new IdGenerator(2);
+        this.owner = random.nextContact(this.bit_len, false);
+        this.target = random.nextId(this.bit_len);
+        this.reply = new Contact[this.k];
+        this.other = new Contact[this.k];
+        for(int i = 0; i < this.k; i++) {
+            this.reply[i] = random.nextContact(this.bit_len, false);
+            this.other[i] = random.nextContact(this.bit_len, false);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        this.full = new ShortList(this.k, this.owner, this.target);
+        for(Contact c : this.reply)
+            this.full.add(c);
+        this.merged = new ShortList(this.k, this.owner, this.target);
+        for(Contact c : this.other)
+            this.merged.add(c);
+        this.merged.sort();
+    }
+
+    @Benchmark
+    public ShortList add() {
+        ShortList list = new ShortList(this.k, this.owner, this.target);
+        for(Contact c : this.reply)
+            list.add(c);
+        return list;
+    }
+
+    @Benchmark
+    public ShortList sort() {
+        this.full.sort();
+        return this.full;
+    }
+
+    @Benchmark
+    public ShortList merge() {
+        this.merged.merge(this.full);
+        return this.merged;
+    }
+
+    @Benchmark
+    public ArrayList<Element> getAlpha() {
+        return this.full.getAlpha(this.alpha);
+    }
+
+    @Benchmark
+    public CandidateSet candidateAdd() {
+        CandidateSet set = new CandidateSet(this.k, this.target);
+        for(Contact c : this.reply)
+            set.add(c);
+        for(Contact c : this.other)
+            set.add(c);
+        return set;
+    }
+
+    @Benchmark
+    public ArrayList<CandidateSet.Candidate> candidateNextUncontacted() {
+        CandidateSet set = new CandidateSet(this.k, this.target);
+        for(Contact c : this.reply)
+            set.add(c);
+        return set.nextUncontacted(this.alpha);
+    }
+}
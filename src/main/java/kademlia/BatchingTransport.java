@@ -0,0 +1,269 @@
+package kademlia;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transport that coalesces the requests between the same pair of nodes.
+ * The PING and FIND requests sent by a node to another within a short window are
+ * sent as a single BatchRequest, and the receiver answers all of them with a
+ * single BatchResponse, so less datagrams (and less syscalls and headers) are
+ * needed when many requests go to the same node, as the eviction pings and the
+ * FINDs of concurrent lookups. A batch is sent when the window of its first
+ * request expires, or as soon as it's full. A request alone is sent as it is.
+ *
+ * The window delays every batchable request, so it pays off only when a node has
+ * many requests in flight: with a synchronous caller (one request at a time) it's
+ * only latency. STORE requests and the responses are never delayed.
+ * The batches are timed by the wall clock, not by an EventLoop.
+ */
+class BatchingTransport implements Transport {
+    public static final int DEFAULT_MAX_BATCH = 16; //!< the responses of 16 FINDs fit a datagram with k = 20 and 160 bits ids
+    private static final ScheduledThreadPoolExecutor timer; //!< one thread for the windows of all the transports
+    static {
+        timer = new ScheduledThreadPoolExecutor(1, (r) -> {
+            Thread t = new Thread(r, "batch-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * The pair of nodes of a batch
+     */
+    private static class Route {
+        public final Contact sender;
+        public final Contact receiver;
+
+        public Route(Contact sender, Contact receiver) {
+            this.sender = sender;
+            this.receiver = receiver;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Route))
+                return false;
+            Route other = (Route) obj;
+            return this.sender.equals(other.sender) && this.receiver.equals(other.receiver);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.sender.hashCode() + this.receiver.hashCode();
+        }
+    };
+
+    /**
+     * The requests waiting to be sent to a node
+     */
+    private static class Batch {
+        public final Route route;
+        public final ArrayList<Message> requests;
+        public final ArrayList<CompletableFuture<Message>> futures;
+        public long timeout; //!< the longest of the requests
+        public volatile ScheduledFuture<?> flush;
+        private boolean closed; //!< sent, no more requests can be added
+
+        public Batch(Route route) {
+            this.route = route;
+            this.requests = new ArrayList<Message>();
+            this.futures = new ArrayList<CompletableFuture<Message>>();
+            this.timeout = 0;
+            this.closed = false;
+        }
+
+        /**
+         * Add a request
+         * @return the requests in the batch, 0 if it has been already sent
+         */
+        public synchronized int add(Message mes, long timeout, CompletableFuture<Message> future) {
+            if(this.closed)
+                return 0;
+            this.requests.add(mes);
+            this.futures.add(future);
+            this.timeout = Math.max(this.timeout, timeout);
+            return this.requests.size();
+        }
+
+        /**
+         * Stop adding requests
+         * @return false if it was already closed
+         */
+        public synchronized boolean close() {
+            if(this.closed)
+                return false;
+            this.closed = true;
+            ScheduledFuture<?> f = this.flush;
+            if(f != null)
+                f.cancel(false);
+            return true;
+        }
+    };
+
+    private final Transport inner; //!< who really send the messages
+    private final long window; //!< microseconds a request waits for others
+    private final int max_batch;
+    private final ConcurrentHashMap<Route, Batch> pending;
+    private final LongAdder requests; //!< batchable requests received
+    private final LongAdder messages; //!< messages sent for them, batches or single requests
+    private final LongAdder batches; //!< BatchRequests sent
+
+    /**
+     * Batching transport with the DEFAULT_MAX_BATCH
+     * @param inner the transport sending the messages
+     * @param window microseconds a request waits for other requests to the same node
+     */
+    public BatchingTransport(Transport inner, long window) {
+        this(inner, window, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Batching transport
+     * @param inner the transport sending the messages
+     * @param window microseconds a request waits for other requests to the same node
+     * @param max_batch the batch is sent as soon as it has max_batch requests
+     */
+    public BatchingTransport(Transport inner, long window, int max_batch) {
+        if(window <= 0 || max_batch < 2)
+            throw new IllegalArgumentException("a batch needs a positive window and at least 2 requests");
+        this.inner = inner;
+        this.window = window;
+        this.max_batch = max_batch;
+        this.pending = new ConcurrentHashMap<Route, Batch>();
+        this.requests = new LongAdder();
+        this.messages = new LongAdder();
+        this.batches = new LongAdder();
+    }
+
+    /**
+     * A full batch, and the requests not batched, are sent by the caller
+     * @return as the inner transport
+     */
+    @Override
+    public boolean synchronous() {
+        return this.inner.synchronous();
+    }
+
+    /**
+     * Only the requests that are cheap to answer are delayed
+     * @param mes the message
+     * @return true for the PING and FIND requests
+     */
+    private static boolean batchable(Message mes) {
+        if(mes instanceof Message.Response)
+            return false;
+        return mes.type == Message.kind.PING || mes.type == Message.kind.FIND || mes.type == Message.kind.FIND_VALUE;
+    }
+
+    @Override
+    public CompletableFuture<Message> send(Message mes, long timeout) {
+        if(!batchable(mes))
+            return this.inner.send(mes, timeout);
+        this.requests.increment();
+        CompletableFuture<Message> res = new CompletableFuture<Message>();
+        final Route route = new Route(mes.sender, mes.receiver);
+        while(true) {
+            Batch batch = this.pending.get(route);
+            if(batch == null) {
+                Batch created = new Batch(route);
+                batch = this.pending.putIfAbsent(route, created);
+                if(batch == null)
+                    batch = created;
+            }
+            final Batch b = batch;
+            final int size = b.add(mes, timeout, res);
+            if(size == 0) {
+                this.pending.remove(route, b); // sent meanwhile, take a new one
+                continue;
+            }
+            if(size == 1) { // the window starts with the first request
+                try {
+                    b.flush = timer.schedule(() -> this.flush(b), this.window, TimeUnit.MICROSECONDS);
+                } catch (RejectedExecutionException e) {
+                    this.flush(b); // never, the timer is not shut down
+                }
+            } else if(size >= this.max_batch) {
+                this.flush(b);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Send the requests pending to all the nodes, without waiting their window
+     */
+    public void flush() {
+        for(Batch batch : this.pending.values())
+            this.flush(batch);
+    }
+
+    /**
+     * Send a batch, if not already sent
+     * @param batch the batch
+     */
+    private void flush(Batch batch) {
+        this.pending.remove(batch.route, batch);
+        if(!batch.close() || batch.requests.isEmpty())
+            return;
+        this.messages.increment();
+        if(batch.requests.size() == 1) {
+            final CompletableFuture<Message> future = batch.futures.get(0);
+            this.inner.send(batch.requests.get(0), batch.timeout).whenComplete((res, err) -> {
+                if(err == null)
+                    future.complete(res);
+                else
+                    future.completeExceptionally(err);
+            });
+            return;
+        }
+        this.batches.increment();
+        Message.BatchRequest req = new Message.BatchRequest(batch.requests, batch.route.sender, batch.route.receiver);
+        this.inner.send(req, batch.timeout).whenComplete((res, err) -> {
+            HashMap<Long, Message> responses = new HashMap<Long, Message>();
+            if(err == null && res instanceof Message.BatchResponse)
+                for(Message part : ((Message.BatchResponse) res).responses)
+                    responses.put(part.rpc_id, part);
+            for(int i = 0; i < batch.requests.size(); i++) {
+                Message part = responses.get(batch.requests.get(i).rpc_id);
+                if(part != null)
+                    batch.futures.get(i).complete(part);
+                else
+                    batch.futures.get(i).completeExceptionally(err != null ? err : new TimeoutException("no response from " + batch.route.receiver));
+            }
+        });
+    }
+
+    /**
+     * Batchable requests sent through this transport
+     * @return the requests
+     */
+    public long requests() {
+        return this.requests.sum();
+    }
+
+    /**
+     * Messages really sent for the batchable requests, a batch counts one
+     * @return the messages
+     */
+    public long messages() {
+        return this.messages.sum();
+    }
+
+    /**
+     * Batches of more than one request sent
+     * @return the batches
+     */
+    public long batches() {
+        return this.batches.sum();
+    }
+}
@@ -0,0 +1,44 @@
+package kademlia;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * ByteBuffer positioning, linkable on a Java 8 runtime.
+ * The build targets 1.8 on a newer JDK: there flip(), clear() and position(int)
+ * of a ByteBuffer bind to the overrides added in Java 9, which fail with
+ * NoSuchMethodError on Java 8. Called through Buffer they bind to the methods
+ * of both versions.
+ */
+final class Buffers {
+    private Buffers() {
+    }
+
+    /**
+     * @param buf the buffer to flip
+     * @return buf, its limit at the old position and its position at 0
+     */
+    public static ByteBuffer flip(ByteBuffer buf) {
+        ((Buffer) buf).flip();
+        return buf;
+    }
+
+    /**
+     * @param buf the buffer to clear
+     * @return buf, its position at 0 and its limit at the capacity
+     */
+    public static ByteBuffer clear(ByteBuffer buf) {
+        ((Buffer) buf).clear();
+        return buf;
+    }
+
+    /**
+     * @param buf the buffer to move
+     * @param pos the new position
+     * @return buf
+     */
+    public static ByteBuffer position(ByteBuffer buf, int pos) {
+        ((Buffer) buf).position(pos);
+        return buf;
+    }
+}
@@ -0,0 +1,271 @@
+package kademlia;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Bounded set of the k closest contacts to a target, kept ordered by xor distance.
+ * It replace the ShortList during the lookups:
+ * * the distance from the target is computed once, when a contact is added;
+ * * duplicates are discarded with an hash lookup;
+ * * contacts farther than the k-th are never inserted, so no re-sort nor shrink is needed;
+ * * a cursor remember where the first not contacted candidate is.
+ */
+class CandidateSet implements Iterable<CandidateSet.Candidate> {
+
+    /**
+     * Contact wrapper holding the precomputed distance and the contact status.
+     */
+    static class Candidate {
+        public final Contact contact;
+        public final NodeId distance; //!< contact.id xor target
+        private boolean contacted; //!< a request has been sent to this contact
+        private boolean failed; //!< the contact did not respond, it's out of the set
+        private boolean dropped; //!< pushed out by closer candidates, it's out of the set
+
+        private Candidate(Contact contact, NodeId distance) {
+            this.contact = contact;
+            this.distance = distance;
+            this.contacted = false;
+            this.failed = false;
+            this.dropped = false;
+        }
+
+        /**
+         * get the current status
+         * @return contacted(true)/not contacted(false)
+         */
+        public boolean getContacted() {
+            return this.contacted;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder ret = new StringBuilder();
+            ret.append(contact);
+            ret.append(", ");
+            if(!this.contacted)
+                ret.append("not ");
+            ret.append("contacted");
+            return ret.toString();
+        }
+    };
+
+    private final int k; //!< maximum number of candidates
+    public final NodeId target; //!< the id used to order the set
+    private final Candidate[] sorted; //!< candidates ordered by distance, only the first size are valid
+    private int size;
+    private final HashMap<NodeId, Candidate> index; //!< every contact inserted (also the failed and dropped ones) by id
+    private int cursor; //!< every candidate before cursor is contacted
+
+    /**
+     * Empty set of at most k candidates
+     * @param k maximum number of candidates
+     * @param target the id used to order the set
+     */
+    public CandidateSet(int k, NodeId target) {
+        this.k = k;
+        this.target = target;
+        this.sorted = new Candidate[k];
+        this.size = 0;
+        this.index = new HashMap<NodeId, Candidate>(k * 2);
+        this.cursor = 0;
+    }
+
+    /**
+     * Add the contact if it's not already a candidate and it's closer than the k-th.
+     * A contact which failed is never added again; a dropped one comes back with its
+     * status, so it's not contacted twice.
+     * @param cont contact to add
+     * @return true if the contact has been inserted
+     */
+    public boolean add(Contact cont) {
+        if(this.k == 0)
+            return false;
+        Candidate cand = this.index.get(cont.id);
+        if(cand != null && (cand.failed || !cand.dropped))
+            return false;
+        // reject without allocation the contacts that don't fit
+        if(this.size == this.k && cont.compareDistance(this.sorted[this.size - 1].contact, this.target) >= 0)
+            return false;
+
+        if(cand == null) {
+            cand = new Candidate(cont, cont.id.xor(this.target));
+            this.index.put(cont.id, cand);
+        }
+        cand.dropped = false;
+        int pos = this.search(cand.distance);
+        if(this.size == this.k) {
+            this.sorted[this.size - 1].dropped = true; // the farthest is dropped, but stays in the index
+            this.size--;
+        }
+        System.arraycopy(this.sorted, pos, this.sorted, pos + 1, this.size - pos);
+        this.sorted[pos] = cand;
+        this.size++;
+        if(pos < this.cursor)
+            this.cursor = pos;
+        return true;
+    }
+
+    /**
+     * Add all the contacts of another set.
+     * @param other the set containing the contacts to add. Can handle also null
+     * @return how many contacts have been inserted
+     */
+    public int addAll(CandidateSet other) {
+        if(other == null)
+            return 0;
+        int added = 0;
+        for(int i = 0; i < other.size; i++)
+            if(this.add(other.sorted[i].contact))
+                added++;
+        return added;
+    }
+
+    /**
+     * Add the contacts of an encoded list, iterating cursor until its end.
+     * Only the contacts closer than the k-th are materialized.
+     * @param cursor a cursor over a list of contacts
+     * @return how many contacts have been inserted
+     */
+    public int addAll(MessageCodec.ContactView cursor) {
+        int added = 0;
+        while(cursor.next()) {
+            if(this.size == this.k && cursor.compareDistance(this.sorted[this.size - 1].contact.id, this.target) >= 0)
+                continue; // rejected without allocation
+            if(this.add(cursor.toContact()))
+                added++;
+        }
+        return added;
+    }
+
+    /**
+     * Binary search of the insertion position
+     * @param distance distance of the new candidate
+     * @return the position of the first candidate farther than distance
+     */
+    private int search(NodeId distance) {
+        int lo = 0, hi = this.size;
+        while(lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if(this.sorted[mid].distance.compareTo(distance) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Get the first alpha not contacted candidates, marking them as contacted.
+     * @param alpha how many candidates get
+     * @return a list of at most alpha candidates, ordered by distance
+     */
+    public ArrayList<Candidate> nextUncontacted(int alpha) {
+        ArrayList<Candidate> ret = new ArrayList<Candidate>(alpha);
+        while(this.cursor < this.size && this.sorted[this.cursor].contacted)
+            this.cursor++;
+        for(int i = this.cursor; i < this.size && ret.size() < alpha; i++) {
+            Candidate cand = this.sorted[i];
+            if(!cand.contacted) {
+                cand.contacted = true;
+                ret.add(cand);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Check if there are candidates never contacted
+     * @return true if nextUncontacted would return something
+     */
+    public boolean hasUncontacted() {
+        for(int i = this.cursor; i < this.size; i++)
+            if(!this.sorted[i].contacted)
+                return true;
+        return false;
+    }
+
+    /**
+     * Remove a candidate that did not respond. It will not be added again.
+     * @param cand the candidate to remove
+     */
+    public void fail(Candidate cand) {
+        cand.failed = true;
+        final int pos = this.search(cand.distance); // distances are unique as the ids
+        if(pos == this.size || this.sorted[pos] != cand) // already dropped because too far
+            return;
+        System.arraycopy(this.sorted, pos + 1, this.sorted, pos, this.size - pos - 1);
+        this.size--;
+        this.sorted[this.size] = null;
+        if(pos < this.cursor)
+            this.cursor--;
+    }
+
+    /**
+     * Check if the contact is in the set
+     * @param cont the contact
+     * @return true if cont is one of the current candidates
+     */
+    public boolean contains(Contact cont) {
+        Candidate cand = this.index.get(cont.id);
+        return cand != null && !cand.failed && !cand.dropped;
+    }
+
+    /**
+     * Get the i-th closest candidate
+     * @param i the position
+     * @return the candidate
+     */
+    public Candidate get(int i) {
+        if(i >= this.size)
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + this.size);
+        return this.sorted[i];
+    }
+
+    /**
+     * The closest contact to the target
+     * @return the closest contact, null if empty
+     */
+    public Contact closest() {
+        return this.size == 0 ? null : this.sorted[0].contact;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Iterate the candidates from the closest to the farthest.
+     */
+    @Override
+    public Iterator<Candidate> iterator() {
+        return new Iterator<Candidate>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.i < CandidateSet.this.size;
+            }
+
+            @Override
+            public Candidate next() {
+                if(!this.hasNext())
+                    throw new NoSuchElementException();
+                return CandidateSet.this.sorted[this.i++];
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(this.sorted, this.size));
+    }
+}
@@ -0,0 +1,239 @@
+package kademlia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of a sequential simulation, to resume it or to start other experiments
+ * from the same network (see Simulator --checkpoint and --resume).
+ *
+ * The file is a stream of big endian values (DataOutputStream), written and read
+ * through a buffer in a single pass:
+ * * header: magic "KADC", version (u16), bit_length, k, alpha, lookups (u32),
+ *   compact, fast_ids, recursive (u8), the generator state: seed and gamma (i64),
+ *   the index of the next bootstrap (u32), the number of nodes (u32);
+ * * the nodes in join order: node_number, received_find_node (i64), port (u32),
+ *   address length (u8) and address, id words (i64);
+ * * the routing table of each node: for each not empty bucket, the index (u32)
+ *   and the size (u32) of the bucket, then each contact from the least recently
+ *   seen as the index of its node (u32) and the last seen time (i64); the table
+ *   ends with -1. A contact that is not a node has index -1 and is written as a node.
+ *
+ * A checkpoint replaces the previous one only when it is complete.
+ */
+class Checkpoint {
+    public static final int MAGIC = 0x4B414443; //!< "KADC"
+    public static final short VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public final int bit_length;
+    public final int k;
+    public final int alpha;
+    public final int lookups;
+    public final boolean compact;
+    public final boolean fast_ids;
+    public final boolean recursive;
+    public final IdGenerator random; //!< the generator of the simulation, as it was
+    public final int next_bootstrap; //!< index in nodes
+    public final ArrayList<Node> nodes; //!< in join order
+
+    public Checkpoint(int bit_length, int k, int alpha, int lookups, boolean compact, boolean fast_ids,
+            boolean recursive, IdGenerator random, int next_bootstrap, ArrayList<Node> nodes) {
+        this.bit_length = bit_length;
+        this.k = k;
+        this.alpha = alpha;
+        this.lookups = lookups;
+        this.compact = compact;
+        this.fast_ids = fast_ids;
+        this.recursive = recursive;
+        this.random = random;
+        this.next_bootstrap = next_bootstrap;
+        this.nodes = nodes;
+    }
+
+    private static void writeContact(DataOutputStream out, Contact c) throws IOException {
+        out.writeInt(c.port);
+        byte[] addr = c.ip.getAddress();
+        out.writeByte(addr.length);
+        out.write(addr);
+        for(int w = 0; w < c.id.wordCount(); w++)
+            out.writeLong(c.id.word(w));
+    }
+
+    private static Contact readContact(DataInputStream in, int bit_length, long[] id) throws IOException {
+        final int port = in.readInt();
+        final int len = in.readUnsignedByte();
+        if(len != 4 && len != 16)
+            throw new IOException("invalid address length " + len);
+        byte[] addr = new byte[len];
+        in.readFully(addr);
+        for(int w = 0; w < id.length; w++)
+            id[w] = in.readLong();
+        return new Contact(InetAddress.getByAddress(addr), port, NodeId.valueOf(id, bit_length));
+    }
+
+    /**
+     * Write the checkpoint
+     * @param path the file, replaced when the checkpoint is complete
+     * @return the number of routing table entries written
+     * @throws IOException if the file cannot be written
+     */
+    public long write(String path) throws IOException {
+        Map<NodeId, Integer> index = new HashMap<NodeId, Integer>(this.nodes.size() * 2);
+        for(int i = 0; i < this.nodes.size(); i++)
+            index.put(this.nodes.get(i).me.id, i);
+
+        Path target = Paths.get(path);
+        Path tmp = Paths.get(path + ".tmp");
+        long entries = 0;
+        try(OutputStream file = Files.newOutputStream(tmp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(this.bit_length);
+            out.writeInt(this.k);
+            out.writeInt(this.alpha);
+            out.writeInt(this.lookups);
+            out.writeBoolean(this.compact);
+            out.writeBoolean(this.fast_ids);
+            out.writeBoolean(this.recursive);
+            out.writeLong(this.random.getSeed());
+            out.writeLong(this.random.getGamma());
+            out.writeInt(this.next_bootstrap);
+            out.writeInt(this.nodes.size());
+            for(Node n : this.nodes) {
+                out.writeLong(n.node_number);
+                out.writeLong(n.receivedFindNode());
+                writeContact(out, n.me);
+            }
+
+            long[] seen = new long[this.k];
+            for(Node n : this.nodes) {
+                RoutingTable table = n.routingTable();
+                for(int b = 0; b < table.length(); b++) {
+                    Contact[] bucket = table.bucket(b, seen);
+                    if(bucket == null || bucket.length == 0)
+                        continue;
+                    out.writeInt(b);
+                    out.writeInt(bucket.length);
+                    for(int j = 0; j < bucket.length; j++) {
+                        Integer i = index.get(bucket[j].id);
+                        if(i == null) {
+                            out.writeInt(-1);
+                            writeContact(out, bucket[j]);
+                        } else {
+                            out.writeInt(i);
+                        }
+                        out.writeLong(seen[j]);
+                    }
+                    entries += bucket.length;
+                }
+                out.writeInt(-1);
+            }
+            out.flush();
+            file.flush();
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries;
+    }
+
+    /**
+     * Read a checkpoint, building its nodes
+     * @param path the file
+     * @param socket the transport of the nodes
+     * @param directory the contacts of the compact routing tables, null if the checkpoint is not compact
+     * @return the checkpoint
+     * @throws IOException if the file cannot be read or it's not valid
+     */
+    public static Checkpoint read(String path, Transport socket, ContactDirectory directory) throws IOException {
+        try(InputStream file = Files.newInputStream(Paths.get(path));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(file, BUFFER_SIZE))) {
+            if(in.readInt() != MAGIC)
+                throw new IOException("not a checkpoint");
+            final short version = in.readShort();
+            if(version != VERSION)
+                throw new IOException("unsupported checkpoint version " + version);
+            final int bit_length = in.readInt();
+            final int k = in.readInt();
+            final int alpha = in.readInt();
+            final int lookups = in.readInt();
+            final boolean compact = in.readBoolean();
+            final boolean fast_ids = in.readBoolean();
+            final boolean recursive = in.readBoolean();
+            IdGenerator random = new IdGenerator(in.readLong(), in.readLong());
+            final int next_bootstrap = in.readInt();
+            final int count = in.readInt();
+            if(bit_length <= 0 || k <= 0 || count <= 0 || next_bootstrap < 0 || next_bootstrap >= count)
+                throw new IOException("corrupted checkpoint header");
+            if(compact != (directory != null))
+                throw new IOException(compact ? "the checkpoint has compact routing tables" : "the checkpoint has no compact routing tables");
+
+            long[] id = new long[NodeId.wordsFor(bit_length)];
+            ArrayList<Node> nodes = new ArrayList<Node>(count);
+            for(int i = 0; i < count; i++) {
+                final long node_number = in.readLong();
+                final long received_find_node = in.readLong();
+                Contact me = readContact(in, bit_length, id);
+                RoutingTable table = compact ? new CompactRoutingTable(directory, me.id, k) : new KlistTable(me.id, k);
+                nodes.add(new Node(socket, me, k, alpha, table, node_number, received_find_node));
+            }
+
+            for(Node n : nodes) {
+                RoutingTable table = n.routingTable();
+                for(int b = in.readInt(); b != -1; b = in.readInt()) {
+                    final int size = in.readInt();
+                    if(b < 0 || b >= bit_length || size < 0 || size > k)
+                        throw new IOException("corrupted routing table of " + n.me);
+                    for(int j = 0; j < size; j++) {
+                        final int i = in.readInt();
+                        if(i < -1 || i >= count)
+                            throw new IOException("invalid contact index " + i);
+                        Contact c = i == -1 ? readContact(in, bit_length, id) : nodes.get(i).me;
+                        table.restore(c, in.readLong());
+                    }
+                }
+            }
+            return new Checkpoint(bit_length, k, alpha, lookups, compact, fast_ids, recursive, random, next_bootstrap, nodes);
+        }
+    }
+
+    /**
+     * Check that the checkpoint continues the simulation with the given parameters
+     * @param bit_length length of the ids
+     * @param k length of the buckets
+     * @param alpha kademlia parameter
+     * @param lookups refresh lookups for each bucket
+     * @param fast_ids ids drawn instead of hashed
+     * @param recursive the recursive find node is used
+     * @return a description of the first difference, null if none
+     */
+    public String mismatch(int bit_length, int k, int alpha, int lookups, boolean fast_ids, boolean recursive) {
+        if(bit_length != this.bit_length)
+            return "id_bit_length " + this.bit_length;
+        if(k != this.k)
+            return "k " + this.k;
+        if(alpha != this.alpha)
+            return "alpha " + this.alpha;
+        if(lookups != this.lookups)
+            return "lookups " + this.lookups;
+        if(fast_ids != this.fast_ids)
+            return "fast_ids " + this.fast_ids;
+        if(recursive != this.recursive)
+            return "recursive " + this.recursive;
+        return null;
+    }
+}
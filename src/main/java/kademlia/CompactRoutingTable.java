@@ -0,0 +1,221 @@
+package kademlia;
+
+import java.util.Arrays;
+
+/**
+ * Routing table for big simulations, storing the buckets as contact numbers
+ * of a shared ContactDirectory. No Contact is kept: they are built by the directory
+ * only when they leave the table (the head to ping, collect, and bucket for the exports).
+ * All the buckets are packed one after the other in a single int array, from the
+ * farthest bucket (the fullest) to the closest, and a byte for each bucket keeps
+ * its size. Only the buckets from the farthest to the closest in use have a size,
+ * so a table costs about 4 bytes for each contact, instead of a klist and an array
+ * for each bucket and a reference for each bucket of the id length.
+ * The operations are synchronized on the table. The last seen times are not kept,
+ * nor the replacements: a contact that did not respond is replaced by the contact
+ * refused when its bucket was full.
+ */
+class CompactRoutingTable implements RoutingTable {
+    private static final int MAX_K = 254;
+
+    private final ContactDirectory directory; //!< resolve the contact numbers
+    private final NodeId owner; //!< the id of the node owning the table
+    private final int k; //!< length of buckets
+    private byte[] sizes; //!< size + 1 of the buckets from the farthest, 0 if not used
+    private int[] entries; //!< the buckets, each one from the least recently seen
+    private int count; //!< entries in use
+
+    /**
+     * Empty table
+     * @param directory the directory shared by the tables of the simulation
+     * @param owner the id of the node
+     * @param k length of buckets, at most 254
+     */
+    public CompactRoutingTable(ContactDirectory directory, NodeId owner, int k) {
+        if(k > MAX_K)
+            throw new IllegalArgumentException("k must be at most " + MAX_K);
+        this.directory = directory;
+        this.owner = owner;
+        this.k = k;
+        this.sizes = new byte[0];
+        this.entries = new int[0];
+        this.count = 0;
+    }
+
+    /**
+     * Position of a bucket in sizes
+     * @param bucket the bucket index
+     * @return the position, the farthest bucket is the first
+     */
+    private int slot(int bucket) {
+        return this.owner.bit_length - 1 - bucket;
+    }
+
+    /**
+     * Size of a bucket
+     * @param slot the position of the bucket
+     * @return the number of contacts, 0 if not used
+     */
+    private int size(int slot) {
+        if(slot >= this.sizes.length || this.sizes[slot] == 0)
+            return 0;
+        return (this.sizes[slot] & 0xFF) - 1;
+    }
+
+    /**
+     * Start of a bucket in entries
+     * @param slot the position of the bucket
+     * @return the offset of its first contact
+     */
+    private int offset(int slot) {
+        int off = 0;
+        for(int i = 0; i < slot && i < this.sizes.length; i++)
+            off += this.size(i);
+        return off;
+    }
+
+    /**
+     * Mark a bucket as used
+     * @param slot the position of the bucket
+     */
+    private void use(int slot) {
+        if(slot >= this.sizes.length)
+            this.sizes = Arrays.copyOf(this.sizes, slot + 1);
+        if(this.sizes[slot] == 0)
+            this.sizes[slot] = 1;
+    }
+
+    /**
+     * Position of a contact number in a bucket
+     * @param off the bucket offset
+     * @param size the bucket size
+     * @param index the contact number
+     * @return the offset of index, -1 if not present
+     */
+    private int find(int off, int size, int index) {
+        for(int i = off + size - 1; i >= off; i--) // the recently seen are more likely
+            if(this.entries[i] == index)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Add a contact at the tail of a bucket
+     * @param slot the position of the bucket
+     * @param end offset after the last contact of the bucket
+     * @param index the contact number
+     */
+    private void append(int slot, int end, int index) {
+        if(this.count == this.entries.length)
+            this.entries = Arrays.copyOf(this.entries, Math.max(8, this.count + (this.count >> 1)));
+        System.arraycopy(this.entries, end, this.entries, end + 1, this.count - end);
+        this.entries[end] = index;
+        this.count++;
+        this.sizes[slot]++;
+    }
+
+    /**
+     * Move the entry at pos to the tail of its bucket
+     * @param end offset after the last contact of the bucket
+     * @param pos the entry offset
+     */
+    private void moveToTail(int end, int pos) {
+        final int index = this.entries[pos];
+        System.arraycopy(this.entries, pos + 1, this.entries, pos, end - pos - 1);
+        this.entries[end - 1] = index;
+    }
+
+    @Override
+    public int length() {
+        return this.owner.bit_length;
+    }
+
+    @Override
+    public synchronized Contact addContact(Contact c) {
+        final int bucket = this.owner.bucketIndex(c.id);
+        if(bucket == -1)
+            return null;
+        final int index = this.directory.indexOf(c);
+        final int slot = this.slot(bucket);
+        this.use(slot);
+        final int off = this.offset(slot);
+        final int size = this.size(slot);
+        final int pos = this.find(off, size, index);
+        if(pos >= 0) {
+            this.moveToTail(off + size, pos);
+            return c;
+        }
+        if(size < this.k) {
+            this.append(slot, off + size, index);
+            return null;
+        }
+        return this.directory.get(this.entries[off]); // need a ping to be refreshed or evicted
+    }
+
+    @Override
+    public synchronized void refresh(Contact c) {
+        final int bucket = this.owner.bucketIndex(c.id);
+        if(bucket == -1)
+            return;
+        final int index = this.directory.indexOf(c);
+        final int slot = this.slot(bucket);
+        this.use(slot);
+        final int off = this.offset(slot);
+        final int size = this.size(slot);
+        final int pos = this.find(off, size, index);
+        if(pos >= 0)
+            this.moveToTail(off + size, pos);
+        else if(size < this.k)
+            this.append(slot, off + size, index);
+    }
+
+    @Override
+    public synchronized boolean remove(Contact c) {
+        final int bucket = this.owner.bucketIndex(c.id);
+        if(bucket == -1)
+            return false;
+        final int slot = this.slot(bucket);
+        final int off = this.offset(slot);
+        final int pos = this.find(off, this.size(slot), this.directory.indexOf(c));
+        if(pos < 0)
+            return false;
+        System.arraycopy(this.entries, pos + 1, this.entries, pos, this.count - pos - 1);
+        this.count--;
+        this.sizes[slot]--;
+        return true;
+    }
+
+    @Override
+    public synchronized int bucketSize(int i) {
+        final int slot = this.slot(i);
+        if(slot >= this.sizes.length || this.sizes[slot] == 0)
+            return -1;
+        return this.size(slot);
+    }
+
+    /**
+     * The content of a bucket, its contacts are built (used by the exports)
+     * @param i the bucket index
+     * @return new contacts, null if the bucket has never been used
+     */
+    @Override
+    public synchronized Contact[] bucket(int i) {
+        final int slot = this.slot(i);
+        if(slot >= this.sizes.length || this.sizes[slot] == 0)
+            return null;
+        final int off = this.offset(slot);
+        Contact[] res = new Contact[this.size(slot)];
+        for(int j = 0; j < res.length; j++)
+            res[j] = this.directory.get(this.entries[off + j]);
+        return res;
+    }
+
+    @Override
+    public synchronized void collect(int i, CandidateSet res, int max) {
+        final int slot = this.slot(i);
+        final int off = this.offset(slot);
+        final int end = off + this.size(slot);
+        for(int j = off; j < end && res.size() < max; j++)
+            res.add(this.directory.get(this.entries[j]));
+    }
+}
@@ -14,23 +14,37 @@ import static net.andreinc.mockneat.unit.networking.IPv6s.ipv6s;
  */
 class Contact {
     public final InetAddress ip;
-    public final BitSet id;
+    public final NodeId id;
     public final int port; //used as unsigned int 16bit
     public final int id_bit_length;
 
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final int[] hash_lengths = { 224, 256, 384, 512 }; //!< the sha3 variants
+    private static final ThreadLocal<DigestSHA3[]> digests = ThreadLocal.withInitial(() -> new DigestSHA3[hash_lengths.length]); //!< reused by hash, one for each variant
+
+    /**
+     * Construct a contact with a known id.
+     * @param ip an IPV6/IPV4.
+     * @param port port, please use in range [0-2^16] **no bound checking**
+     * @param id a valid id.
+     */
+    public Contact(InetAddress ip, int port, NodeId id) {
+        this.ip = ip;
+        this.port = port;
+        this.id = id;
+        this.id_bit_length = id.bit_length;
+    }
+
     /**
      * This is manly for Testing see the other constructor.
      * You must provide a valid Bitset id.
      * @param ip an IPV6/IPV4.
      * @param port port, please use in range [0-2^16] **no bound checking**
-     * @param id Bitset a valid representing the id. It will **not** be trimmed to max bit_length.
+     * @param id Bitset a valid representing the id. Bits over id_bit_length are dropped.
      * @param id_bit_length max length of id
      */
     public Contact(InetAddress ip, int port, BitSet id, int id_bit_length) {
-        this.ip = ip;
-        this.port = port;
-        this.id = id;
-        this.id_bit_length = id_bit_length;
+        this(ip, port, NodeId.valueOf(id, id_bit_length));
     }
 
     /**
@@ -42,7 +56,7 @@ class Contact {
      * @throws UnsupportedEncodingException if hash cannot be performed, should never be thrown
      */
     public Contact(InetAddress ip, int port, int id_bit_length) throws UnsupportedEncodingException {
-        this(ip, port, Contact.hash(ip, port, id_bit_length), id_bit_length);
+        this(ip, port, Contact.hash(ip, port, id_bit_length));
     }
 
     /**
@@ -58,12 +72,12 @@ class Contact {
 
     /**
      * Copy constructor.
-     * it copy the given contact cloning the id
+     * it copy the given contact, the id is immutable so it's shared
      * @param to_clone
      */
     public Contact(Contact to_clone) {
         this.ip = to_clone.ip;
-        this.id = (BitSet) to_clone.id.clone();
+        this.id = to_clone.id;
         this.port = to_clone.port;
         this.id_bit_length = to_clone.id_bit_length;
     }
@@ -76,7 +90,7 @@ class Contact {
      * @return  quotient rounded up.
      */
     private static int idivCeil(int bitlen, int div) {
-        return (int) Math.ceil((double)bitlen / div);
+        return (bitlen + div - 1) / div;
     }
 
     /**
@@ -84,15 +98,37 @@ class Contact {
      * @return an Hexadecimal String representing the id
      */
     public String idString() {
-        StringBuilder res = new StringBuilder();
-        byte[] id_bytes = this.id.toByteArray();
-        for(int i = idivCeil(this.id_bit_length, 16) - id_bytes.length * 2; i > 0; i--)
-            res.append("0");
-        for(int i = id_bytes.length -1 ; i >= 0; i--)
-            res.append(String.format("%02X", id_bytes[i]));
+        StringBuilder res = new StringBuilder(this.id.wordCount() * 16);
+        this.appendIdString(res);
         return res.toString();
     }
 
+    /**
+     * Append the idString representation to a builder, without intermediate objects.
+     * @param res where append the hexadecimal digits
+     */
+    public void appendIdString(StringBuilder res) {
+        appendIdString(res, this.id);
+    }
+
+    /**
+     * Append the idString representation of an id to a builder.
+     * @param res where append the hexadecimal digits
+     * @param id the id
+     */
+    public static void appendIdString(StringBuilder res, NodeId id) {
+        int len = id.wordCount() * 8; // the significant bytes, as in toByteArray
+        while(len > 0 && id.byteAt(len - 1) == 0)
+            len--;
+        for(int i = idivCeil(id.bit_length, 16) - len * 2; i > 0; i--)
+            res.append('0');
+        for(int i = len - 1; i >= 0; i--) {
+            final int b = id.byteAt(i);
+            res.append(HEX[(b >>> 4) & 0xF]);
+            res.append(HEX[b & 0xF]);
+        }
+    }
+
     /**
      * Get a bit string representation of the id.
      * @return a bit String presenting the id.
@@ -112,22 +148,28 @@ class Contact {
      * @param ip an IPv4/IPv6
      * @param port port, please use in range [0-2^16] **no bound checking**
      * @param id_length max bit length of the id
-     * @return a Bitset constructed with the hash of the ip + port
+     * @return an id constructed with the hash of the ip + port
      * @throws UnsupportedEncodingException if the hash cannot be performed
      */
-    public static BitSet hash(InetAddress ip, Integer port, final int id_length) throws UnsupportedEncodingException {
-        DigestSHA3 sha;
-        int hash_len;
+    public static NodeId hash(InetAddress ip, Integer port, final int id_length) throws UnsupportedEncodingException {
+        int variant;
         //selection the appropriate input for sha3
         if(id_length < 224)
-            hash_len = 224;
+            variant = 0;
         else if(id_length < 256)
-            hash_len = 256;
+            variant = 1;
         else if(id_length < 384)
-            hash_len = 384;
+            variant = 2;
         else
-            hash_len = 512;
-        sha = new DigestSHA3(hash_len);
+            variant = 3;
+        DigestSHA3[] local = digests.get();
+        DigestSHA3 sha = local[variant];
+        if(sha == null) {
+            sha = new DigestSHA3(hash_lengths[variant]);
+            local[variant] = sha;
+        } else {
+            sha.reset(); // the previous call left it updated
+        }
         byte[] buff = new byte[idivCeil(id_length, 8)];
         sha.update(ip.getAddress());
         sha.update(port.byteValue());
@@ -141,26 +183,28 @@ class Contact {
             }
             sha.update(b++);    // changing something to generate different bytes
         }
-        BitSet bitset = BitSet.valueOf(buff);
-        if(bitset.length() > id_length) // clear the bit that will never be used
-            bitset.clear(id_length, bitset.length());
-        return bitset;
+        return NodeId.valueOf(buff, 0, buff.length, id_length); // the bit that will never be used are cleared
     }
 
     /**
      * Fundamental function to calculate the distance between a node and it's target.
-     * it make use of the xor metric
+     * it make use of the xor metric, only the 64 least significant bits are returned
+     * so it's exact only for id up to 64 bits: to order contacts use compareDistance.
      * @param id the contact with which calculate the distance
      * @return return the effective distance between 2 nodes
      */
-    public long distance(BitSet id) {
-        BitSet aux = (BitSet)this.id.clone();
-        aux.xor(id);
-        long d = 0;
-        for (long ndx : aux.toLongArray())
-            d += ndx;
+    public long distance(NodeId id) {
+        return this.id.xorLow(id);
+    }
 
-        return d;
+    /**
+     * Compare the distance of this and other from target, without allocation.
+     * @param other the other contact
+     * @param target the reference id
+     * @return negative if this is closer to target than other, positive if farther, 0 if same distance
+     */
+    public int compareDistance(Contact other, NodeId target) {
+        return NodeId.compareDistance(this.id, other.id, target);
     }
 
     /**
@@ -175,10 +219,17 @@ class Contact {
 
     @Override
     public boolean equals(Object obj) {
+        if(!(obj instanceof Contact))
+            return false;
         Contact other = (Contact) obj;
         return this.id.equals(other.id); //only the id it's sufficient to assert equality
     }
 
+    @Override
+    public int hashCode() {
+        return this.id.hashCode(); // consistent with equals
+    }
+
     @Override
     public String toString() {
         StringBuilder ret = new StringBuilder();
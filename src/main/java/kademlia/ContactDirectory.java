@@ -0,0 +1,168 @@
+package kademlia;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * Dense numbering of the contacts of a simulation, shared by the CompactRoutingTables.
+ * Each contact is stored once and only as primitives, indexed by its number: its id
+ * packed in a single long[] (wordsFor(bit_length) words each), its address in a
+ * byte[] (16 bytes each) and its port with the address family in an int[].
+ * No Contact nor InetAddress is kept: get builds a new one when a contact leaves
+ * the tables (a response, a ping, an export).
+ * The numbers are found through an open addressing hash table of ints, which
+ * compare the packed ids.
+ * Thread safe, the numbers are never reused.
+ */
+class ContactDirectory {
+    private static final int ADDRESS = 16; //!< bytes of each address, an IPv4 one uses the first 4
+    private static final int FAMILY_SHIFT = 16; //!< the family (0 if there is no address, 4 or 6) is in the bits over the port
+
+    private final int bit_length;
+    private final int words; //!< longs per id
+    private long[] ids; //!< the packed ids, the i-th contact id from i * words
+    private byte[] addresses; //!< the i-th contact address from i * ADDRESS
+    private int[] ports; //!< the i-th contact port, and its address family
+    private int[] slots; //!< hash table, number + 1 of the contact, 0 if free
+    private int size;
+
+    /**
+     * Empty directory
+     * @param bit_length length of the ids
+     */
+    public ContactDirectory(int bit_length) {
+        this.bit_length = bit_length;
+        this.words = NodeId.wordsFor(bit_length);
+        this.ids = new long[16 * this.words];
+        this.addresses = new byte[16 * ADDRESS];
+        this.ports = new int[16];
+        this.slots = new int[32];
+        this.size = 0;
+    }
+
+    /**
+     * Check if the i-th packed id is id
+     * @param i the contact number
+     * @param id the id
+     * @return true if equal
+     */
+    private boolean idEquals(int i, NodeId id) {
+        final int base = i * this.words;
+        for(int w = 0; w < this.words; w++)
+            if(this.ids[base + w] != id.word(w))
+                return false;
+        return true;
+    }
+
+    /**
+     * Hash of an id, computed from its words as hashOf(int) does from the packed ones
+     * @param id the id
+     * @return the hash
+     */
+    private int hashOf(NodeId id) {
+        long h = 0;
+        for(int w = 0; w < this.words; w++)
+            h = 31 * h + id.word(w);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Hash of the i-th packed id
+     * @param i the contact number
+     * @return the hash
+     */
+    private int hashOf(int i) {
+        final int base = i * this.words;
+        long h = 0;
+        for(int w = 0; w < this.words; w++)
+            h = 31 * h + this.ids[base + w];
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Home slot of a hash, from the high bits of its product with the golden ratio
+     * @param hash the hash of the id
+     * @param length the table length, a power of 2
+     * @return the slot
+     */
+    private static int home(int hash, int length) {
+        return (hash * 0x9e3779b9) >>> Integer.numberOfLeadingZeros(length - 1);
+    }
+
+    /**
+     * Get the number of a contact, assigning it the first time
+     * @param c the contact, its id length must be bit_length
+     * @return the number of the contact
+     */
+    public synchronized int indexOf(Contact c) {
+        final int mask = this.slots.length - 1;
+        int h = home(this.hashOf(c.id), this.slots.length);
+        for(int s = this.slots[h]; s != 0; s = this.slots[h]) {
+            if(this.idEquals(s - 1, c.id))
+                return s - 1;
+            h = (h + 1) & mask;
+        }
+
+        final int index = this.size++;
+        if(index == this.ports.length) {
+            this.ids = Arrays.copyOf(this.ids, this.ids.length * 2);
+            this.addresses = Arrays.copyOf(this.addresses, this.addresses.length * 2);
+            this.ports = Arrays.copyOf(this.ports, this.ports.length * 2);
+        }
+        for(int w = 0; w < this.words; w++)
+            this.ids[index * this.words + w] = c.id.word(w);
+        int family = 0;
+        if(c.ip != null) {
+            byte[] addr = c.ip.getAddress();
+            System.arraycopy(addr, 0, this.addresses, index * ADDRESS, addr.length);
+            family = addr.length == 4 ? 4 : 6;
+        }
+        this.ports[index] = c.port | family << FAMILY_SHIFT;
+        this.slots[h] = index + 1;
+        if(this.size * 2 > this.slots.length)
+            this.rehash();
+        return index;
+    }
+
+    /**
+     * Double the hash table, keeping the load factor under 1/2
+     */
+    private void rehash() {
+        int[] next = new int[this.slots.length * 2];
+        final int mask = next.length - 1;
+        for(int i = 0; i < this.size; i++) {
+            int h = home(this.hashOf(i), next.length);
+            while(next[h] != 0)
+                h = (h + 1) & mask;
+            next[h] = i + 1;
+        }
+        this.slots = next;
+    }
+
+    /**
+     * Build the contact of a number (it's allocated, equal to the contact indexed)
+     * @param index a number returned by indexOf
+     * @return a new Contact
+     */
+    public synchronized Contact get(int index) {
+        final int family = this.ports[index] >>> FAMILY_SHIFT;
+        InetAddress ip = null;
+        if(family != 0) {
+            try {
+                ip = InetAddress.getByAddress(Arrays.copyOfRange(this.addresses, index * ADDRESS, index * ADDRESS + (family == 4 ? 4 : 16)));
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException("invalid address", e); // never, the length is 4 or 16
+            }
+        }
+        return new Contact(ip, this.ports[index] & 0xFFFF, NodeId.valueOf(Arrays.copyOfRange(this.ids, index * this.words, (index + 1) * this.words), this.bit_length));
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    public int bitLength() {
+        return this.bit_length;
+    }
+}
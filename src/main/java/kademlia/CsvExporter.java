@@ -0,0 +1,226 @@
+package kademlia;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Background writer of the Cytoscape csv (see Node.writeToCSV).
+ * The nodes are passed through a bounded queue to a writer thread, which format
+ * their rows and write them through a large buffer, optionally gzipped. So the
+ * caller only pay the enqueue, and it's slowed down only if the disk can't keep up.
+ * The rows of a node are formatted when the writer reach it: a node still
+ * changing is written as it is at that time, each bucket consistently.
+ * For a snapshot at a given time the rows are formatted by the caller instead
+ * (see snapshot), and only the writing is left to the writer.
+ */
+class CsvExporter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int QUEUE_SIZE = 1024; //!< nodes waiting to be written
+    private static final int CHUNK_SIZE = 1 << 16; //!< chars of formatted rows queued at once
+    private static final Object EOF = new Object(); //!< tell the writer to stop
+
+    private final String path;
+    private final BlockingQueue<Object> queue;
+    private final OutputStream out;
+    private final byte[] buf; //!< ascii bytes not yet written
+    private int pos;
+    private final Thread writer;
+    private volatile IOException error; //!< first error of the writer, reported by close
+    private final CompletableFuture<Void> done; //!< completed when the writer stops, exceptionally on error
+
+    /**
+     * Open the file and start the writer thread, the header is written first.
+     * @param path file to write, truncated if exists
+     * @param gzip compress the output
+     * @throws IOException if the file cannot be opened
+     */
+    public CsvExporter(String path, boolean gzip) throws IOException {
+        this.path = path;
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        OutputStream raw = Channels.newOutputStream(channel);
+        this.out = gzip ? new GZIPOutputStream(raw, 1 << 16) : raw;
+        this.queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+        this.buf = new byte[BUFFER_SIZE];
+        this.pos = 0;
+        this.error = null;
+        this.done = new CompletableFuture<Void>();
+        this.writer = new Thread(this::run, "csv-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue a node to be written, waiting if the queue is full
+     * @param node the node
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void write(Node node) throws InterruptedIOException {
+        try {
+            this.queue.put(node);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted writing " + this.path);
+        }
+    }
+
+    /**
+     * Queue many nodes, they take a single place in the queue.
+     * @param nodes the nodes, in order. Must not be modified until written
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void writeAll(Iterable<Node> nodes) throws InterruptedIOException {
+        try {
+            this.queue.put(nodes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted writing " + this.path);
+        }
+    }
+
+    /**
+     * Format the rows of the nodes now and queue them: the file has the nodes
+     * as they are during this call, whatever they do before the writer reach them.
+     * @param nodes the nodes, in order
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void snapshot(Iterable<Node> nodes) throws InterruptedIOException {
+        StringBuilder sb = new StringBuilder(CHUNK_SIZE + (1 << 12));
+        try {
+            for(Node n : nodes) {
+                n.appendCSV(sb);
+                if(sb.length() >= CHUNK_SIZE) {
+                    this.queue.put(sb.toString());
+                    sb.setLength(0);
+                }
+            }
+            if(sb.length() > 0)
+                this.queue.put(sb.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted writing " + this.path);
+        }
+    }
+
+    /**
+     * Format and write the rows of a node
+     * @param node the node
+     * @param sb a buffer for the formatting
+     * @throws IOException if the buffer cannot be written
+     */
+    private void format(Node node, StringBuilder sb) throws IOException {
+        sb.setLength(0);
+        node.appendCSV(sb);
+        this.append(sb);
+    }
+
+    /**
+     * Copy the ascii chars of sb to the buffer, flushing it when full
+     * @param sb the text
+     * @throws IOException if the buffer cannot be written
+     */
+    private void append(CharSequence sb) throws IOException {
+        final int len = sb.length();
+        for(int i = 0; i < len; i++) {
+            if(this.pos == this.buf.length) {
+                this.out.write(this.buf, 0, this.pos);
+                this.pos = 0;
+            }
+            this.buf[this.pos++] = (byte) sb.charAt(i);
+        }
+    }
+
+    /**
+     * The writer thread, until EOF
+     */
+    private void run() {
+        StringBuilder sb = new StringBuilder(1 << 12);
+        try {
+            Node.appendCSVHeader(sb);
+            this.append(sb);
+            for(Object o = this.queue.take(); o != EOF; o = this.queue.take()) {
+                if(o instanceof Node) {
+                    this.format((Node) o, sb);
+                } else if(o instanceof String) {
+                    this.append((String) o);
+                } else {
+                    @SuppressWarnings("unchecked")
+                    Iterable<Node> nodes = (Iterable<Node>) o;
+                    for(Node n : nodes)
+                        this.format(n, sb);
+                }
+            }
+            this.out.write(this.buf, 0, this.pos);
+            this.out.close();
+        } catch (IOException e) {
+            this.error = e;
+            this.drain();
+        } catch (InterruptedException e) {
+            this.error = new InterruptedIOException("csv writer interrupted");
+        }
+        if(this.error != null)
+            this.done.completeExceptionally(this.error);
+        else
+            this.done.complete(null);
+    }
+
+    /**
+     * After an error consume the queue until EOF, so that the producers don't block
+     */
+    private void drain() {
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            // already failed
+        }
+        try {
+            while(this.queue.take() != EOF)
+                ;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write the queued nodes and close the file, without waiting the writer thread.
+     * The exporter can be dropped: the future does not keep its buffer.
+     * @return completed when the file is closed, exceptionally with the IOException of the writer
+     * @throws InterruptedIOException if interrupted while waiting for a place in the queue
+     */
+    public CompletableFuture<Void> closeAsync() throws InterruptedIOException {
+        try {
+            this.queue.put(EOF);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted closing " + this.path);
+        }
+        return this.done;
+    }
+
+    /**
+     * Write the queued nodes and close the file, waiting the writer thread
+     * @throws IOException if the writer failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.queue.put(EOF);
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted closing " + this.path);
+        }
+        if(this.error != null)
+            throw this.error;
+    }
+}
@@ -0,0 +1,149 @@
+package kademlia;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Discrete event engine with a virtual clock.
+ * The events are executed in order of time (and of scheduling for the same time)
+ * by the thread calling run: the clock jump from an event to the next one, so
+ * simulated seconds cost only the time needed to execute the events.
+ * The time is in microseconds. Not thread safe, the events must be scheduled
+ * by the thread running the loop (or before running it).
+ */
+class EventLoop implements Executor {
+
+    /**
+     * A scheduled task
+     */
+    static final class Event implements Comparable<Event> {
+        public final long time; //!< when it will be executed
+        private final long seq; //!< scheduling order, to break the ties
+        private final Runnable task;
+        private boolean cancelled;
+
+        private Event(long time, long seq, Runnable task) {
+            this.time = time;
+            this.seq = seq;
+            this.task = task;
+            this.cancelled = false;
+        }
+
+        /**
+         * Prevent the execution, if not already executed
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if(this.time != other.time)
+                return Long.compare(this.time, other.time);
+            return Long.compare(this.seq, other.seq);
+        }
+    };
+
+    private final PriorityQueue<Event> queue;
+    private long now; //!< virtual time of the current event
+    private long seq; //!< events scheduled so far
+    private long executed; //!< events executed so far
+
+    public EventLoop() {
+        this.queue = new PriorityQueue<Event>();
+        this.now = 0;
+        this.seq = 0;
+        this.executed = 0;
+    }
+
+    /**
+     * The virtual clock
+     * @return the microseconds from the start of the simulation
+     */
+    public long now() {
+        return this.now;
+    }
+
+    /**
+     * Schedule a task after a delay
+     * @param delay microseconds from now, negative are considered 0
+     * @param task the task
+     * @return the event, to cancel it
+     */
+    public Event schedule(long delay, Runnable task) {
+        return this.scheduleAt(this.now + Math.max(delay, 0), task);
+    }
+
+    /**
+     * Schedule a task at a given time
+     * @param time virtual time of the execution, if past it's executed as soon as possible
+     * @param task the task
+     * @return the event, to cancel it
+     */
+    public Event scheduleAt(long time, Runnable task) {
+        Event ev = new Event(Math.max(time, this.now), this.seq++, task);
+        this.queue.add(ev);
+        return ev;
+    }
+
+    /**
+     * Execute the task at the current time, after the events already scheduled for now
+     */
+    @Override
+    public void execute(Runnable task) {
+        this.schedule(0, task);
+    }
+
+    /**
+     * Execute the next event
+     * @return false if there are no more events
+     */
+    public boolean step() {
+        Event ev;
+        do {
+            ev = this.queue.poll();
+            if(ev == null)
+                return false;
+        } while(ev.cancelled);
+        this.now = ev.time;
+        this.executed++;
+        ev.task.run();
+        return true;
+    }
+
+    /**
+     * Execute the events until there are no more
+     * @return the virtual time of the last event
+     */
+    public long run() {
+        while(this.step())
+            ;
+        return this.now;
+    }
+
+    /**
+     * Execute the events scheduled up to time, then move the clock to time
+     * @param time the virtual time to reach
+     */
+    public void runUntil(long time) {
+        for(Event ev = this.queue.peek(); ev != null && ev.time <= time; ev = this.queue.peek())
+            this.step();
+        this.now = Math.max(this.now, time);
+    }
+
+    /**
+     * How many events are waiting (also the cancelled ones)
+     * @return the queue length
+     */
+    public int pending() {
+        return this.queue.size();
+    }
+
+    /**
+     * How many events have been executed
+     * @return the executed events
+     */
+    public long executed() {
+        return this.executed;
+    }
+}
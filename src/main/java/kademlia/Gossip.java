@@ -0,0 +1,161 @@
+package kademlia;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The contacts a Node piggybacks on its FIND requests (see Node.setGossip).
+ * Instead of the whole list of the nodes traversed by the lookup, a request
+ * carries the sender and at most cap of the traversed contacts that the receiver
+ * probably does not know, the most recently contacted first. So the requests do
+ * not grow during the lookup, and the receiver adds to its buckets only a few
+ * contacts for each FIND.
+ *
+ * What a peer knows is guessed by a small Bloom filter for each peer: the contacts
+ * already sent to it and the ones it returned. A false positive just skips a
+ * contact; a filter is cleared when it's too full to be useful. Only the filters
+ * of the last used peers are kept. All the operations are synchronized.
+ */
+class Gossip {
+    public static final int DEFAULT_PEERS = 32; //!< 32 filters of 256 bytes for each node
+    private static final int BITS = 2048; //!< bits of a filter
+    private static final int MAX_ADDED = BITS / 8; //!< about 3% of false positives with 3 hashes
+
+    /**
+     * The contacts a peer probably knows
+     */
+    private static class Filter {
+        final long[] bits = new long[BITS / 64];
+        int added;
+
+        /**
+         * The 3 positions of a contact, taken from the high bits of its mixed hash
+         */
+        private static long hash(Contact c) {
+            return c.id.hashCode() * 0x9E3779B97F4A7C15L;
+        }
+
+        boolean contains(Contact c) {
+            final long h = hash(c);
+            for(int i = 0; i < 3; i++) {
+                final int bit = (int) (h >>> (53 - 11 * i)) & (BITS - 1);
+                if((this.bits[bit >>> 6] & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        void add(Contact c) {
+            if(this.added >= MAX_ADDED) {
+                Arrays.fill(this.bits, 0);
+                this.added = 0;
+            }
+            final long h = hash(c);
+            for(int i = 0; i < 3; i++) {
+                final int bit = (int) (h >>> (53 - 11 * i)) & (BITS - 1);
+                this.bits[bit >>> 6] |= 1L << bit;
+            }
+            this.added++;
+        }
+    };
+
+    private final int cap;
+    private final int peers;
+    private final LinkedHashMap<Contact, Filter> filters; //!< in access order, the least recently used is dropped
+
+    private long offered; //!< traversed contacts that could have been sent
+    private long sent; //!< contacts piggybacked, without the senders
+    private long filtered; //!< skipped as known by the receiver
+
+    /**
+     * Gossip with the DEFAULT_PEERS filters
+     * @param cap traversed contacts piggybacked on a request, besides the sender
+     */
+    public Gossip(int cap) {
+        this(cap, DEFAULT_PEERS);
+    }
+
+    /**
+     * Gossip
+     * @param cap traversed contacts piggybacked on a request, besides the sender
+     * @param peers filters kept, one for each peer
+     */
+    public Gossip(int cap, int peers) {
+        if(cap <= 0 || peers <= 0)
+            throw new IllegalArgumentException("gossip needs a positive cap and peers");
+        this.cap = cap;
+        this.peers = peers;
+        this.filters = new LinkedHashMap<Contact, Filter>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Contact, Filter> eldest) {
+                return this.size() > Gossip.this.peers;
+            }
+        };
+    }
+
+    private Filter filter(Contact peer) {
+        Filter f = this.filters.get(peer);
+        if(f == null) {
+            f = new Filter();
+            this.filters.put(peer, f);
+        }
+        return f;
+    }
+
+    /**
+     * The list to piggyback on a request
+     * @param sender who sends the request, always in the list
+     * @param receiver who receives it
+     * @param traversed the nodes traversed by the lookup until now, in the order they have been contacted
+     * @return the sender and at most cap traversed contacts not yet known by the receiver
+     */
+    public synchronized ShortList select(Contact sender, Contact receiver, ShortList traversed) {
+        ShortList res = new ShortList(this.cap + 1, sender, traversed.target);
+        res.add(sender);
+        Filter f = this.filter(receiver);
+        for(int i = traversed.size() - 1; i >= 0; i--) {
+            Contact c = traversed.get(i).contact;
+            if(c.equals(sender) || c.equals(receiver))
+                continue;
+            this.offered++;
+            if(res.size() > this.cap)
+                continue;
+            if(f.contains(c)) {
+                this.filtered++;
+                continue;
+            }
+            f.add(c);
+            res.append(c);
+            this.sent++;
+        }
+        return res;
+    }
+
+    /**
+     * Remember the contacts a peer returned, it does not need them back
+     * @param peer who responded
+     * @param candidates its response
+     */
+    public synchronized void known(Contact peer, CandidateSet candidates) {
+        if(candidates == null || candidates.isEmpty())
+            return;
+        Filter f = this.filter(peer);
+        for(CandidateSet.Candidate cand : candidates)
+            f.add(cand.contact);
+    }
+
+    public synchronized long offered() {
+        return this.offered;
+    }
+
+    public synchronized long sent() {
+        return this.sent;
+    }
+
+    public synchronized long filtered() {
+        return this.filtered;
+    }
+}
@@ -0,0 +1,378 @@
+package kademlia;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Parameters;
+import picocli.CommandLine.ParameterException;
+
+/**
+ * Binary snapshot of the routing tables of a network.
+ * It hold the same information of the Cytoscape csv in a compact form that can
+ * be read without parsing, mapping the file in memory.
+ *
+ * Layout, little endian:
+ * * header (64 bytes): magic "KADG", version (u16), flags (u16), bit_length (u32),
+ *   id_words (u32), node_count (u32), reserved (u32), edge_count (u64), then the
+ *   offsets (u64) of the ids, counters, rows and edges sections;
+ * * ids: node_count ids of id_words longs each, as NodeId.word;
+ * * counters: for each node its join number and the received find_node (i64 each),
+ *   the join number is -1 for contacts not in the snapshot;
+ * * rows: node_count + 1 offsets (u64), the edges of node i are from rows[i] to rows[i+1];
+ * * edges: the index of the target node of each routing entry (u32), in the
+ *   order of writeToCSV.
+ *
+ * Used as a command it convert a snapshot to the csv.
+ */
+@Command(mixinStandardHelpOptions = true, version = "v1.0.0", header = "Kademlia snapshot converter.", description = {
+    "Convert a binary snapshot written by the Simulator (--binary) to the csv",
+    "<SOURCE, TARGET, JOIN_NODE, N_RECIVED_FINDNODE> compatible with cytoscape.",
+    })
+public class GraphSnapshot implements Closeable {
+    public static final int MAGIC = 0x4744414B; //!< "KADG" in little endian
+    public static final short VERSION = 1;
+    static final int HEADER = 64;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    @Parameters(index = "0", paramLabel = "snapshot", description = "The binary snapshot.")
+    private String input;
+
+    @Parameters(index = "1", paramLabel = "csv", description = "The csv to write.")
+    private String output;
+
+    private final FileChannel channel;
+    private final ByteBuffer map; //!< the whole file
+    private final int bit_length;
+    private final int words; //!< longs per id
+    private final int node_count;
+    private final long edge_count;
+    private final int ids; //!< offset of the ids section
+    private final int counters; //!< offset of the counters section
+    private final int rows; //!< offset of the rows section
+    private final int edges; //!< offset of the edges section
+
+    /**
+     * Only for picocli
+     */
+    private GraphSnapshot() {
+        this.channel = null;
+        this.map = null;
+        this.bit_length = this.words = this.node_count = 0;
+        this.edge_count = 0;
+        this.ids = this.counters = this.rows = this.edges = 0;
+    }
+
+    /**
+     * Map a snapshot, see open
+     * @param channel the file, open for reading
+     * @throws IOException if it's not a valid snapshot
+     */
+    private GraphSnapshot(FileChannel channel) throws IOException {
+        this.channel = channel;
+        final long size = channel.size();
+        if(size < HEADER || size > Integer.MAX_VALUE)
+            throw new IOException("invalid snapshot size " + size);
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        this.map = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if(this.map.getInt(0) != MAGIC)
+            throw new IOException("not a snapshot");
+        if(this.map.getShort(4) != VERSION)
+            throw new IOException("unsupported snapshot version " + this.map.getShort(4));
+        this.bit_length = this.map.getInt(8);
+        this.words = this.map.getInt(12);
+        this.node_count = this.map.getInt(16);
+        this.edge_count = this.map.getLong(24);
+        this.ids = (int) this.map.getLong(32);
+        this.counters = (int) this.map.getLong(40);
+        this.rows = (int) this.map.getLong(48);
+        this.edges = (int) this.map.getLong(56);
+        if(this.words != NodeId.wordsFor(this.bit_length) || this.node_count < 0
+            || this.ids != HEADER
+            || this.counters != this.ids + (long) this.node_count * this.words * 8
+            || this.rows != this.counters + (long) this.node_count * 16
+            || this.edges != this.rows + ((long) this.node_count + 1) * 8
+            || size != this.edges + this.edge_count * 4)
+            throw new IOException("corrupted snapshot header");
+    }
+
+    /**
+     * Open a snapshot, it's mapped in memory and read without copies
+     * @param path the snapshot file
+     * @return the reader
+     * @throws IOException if the file cannot be read or it's not a valid snapshot
+     */
+    public static GraphSnapshot open(String path) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        try {
+            return new GraphSnapshot(channel);
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write the snapshot of some nodes.
+     * The contacts not among nodes are added to the id table, without edges.
+     * @param path the file to write, truncated if exists
+     * @param nodes the nodes, in the order of the snapshot
+     * @return the number of edges written
+     * @throws IOException if the file cannot be written or the snapshot would exceed 2GB
+     */
+    static long write(String path, Collection<Node> nodes) throws IOException {
+        if(nodes.isEmpty())
+            throw new IOException("no nodes to write");
+        final int bit_length = nodes.iterator().next().me.id_bit_length;
+        HashMap<NodeId, Integer> index = new HashMap<NodeId, Integer>(nodes.size() * 2);
+        ArrayList<NodeId> table = new ArrayList<NodeId>(nodes.size());
+        for(Node n : nodes)
+            if(index.putIfAbsent(n.me.id, table.size()) == null)
+                table.add(n.me.id);
+
+        // one pass on the routing tables, so they are read once also if still changing
+        long[] row = new long[nodes.size() + 1];
+        int[] edge = new int[1024];
+        int e = 0;
+        int i = 0;
+        for(Node n : nodes) {
+            row[i++] = e;
+            RoutingTable rt = n.routingTable();
+            for(int b = 0; b < rt.length(); b++) {
+                Contact[] bucket = rt.bucket(b);
+                if(bucket == null)
+                    continue;
+                for(Contact c : bucket) {
+                    Integer target = index.get(c.id);
+                    if(target == null) {
+                        target = table.size();
+                        index.put(c.id, target);
+                        table.add(c.id);
+                    }
+                    if(e == edge.length)
+                        edge = Arrays.copyOf(edge, edge.length * 2);
+                    edge[e++] = target;
+                }
+            }
+        }
+        row[i] = e;
+
+        final int words = NodeId.wordsFor(bit_length);
+        final long node_count = table.size();
+        final long ids = HEADER;
+        final long counters = ids + node_count * words * 8;
+        final long rows = counters + node_count * 16;
+        final long edges = rows + (node_count + 1) * 8;
+        if(edges + (long) e * 4 > Integer.MAX_VALUE)
+            throw new IOException("snapshot too big to be mapped");
+
+        try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC).putShort(VERSION).putShort((short) 0);
+            buf.putInt(bit_length).putInt(words).putInt((int) node_count).putInt(0);
+            buf.putLong(e).putLong(ids).putLong(counters).putLong(rows).putLong(edges);
+            for(NodeId id : table)
+                for(int w = 0; w < words; w++)
+                    putLong(channel, buf, id.word(w));
+            for(Node n : nodes) {
+                putLong(channel, buf, n.node_number);
+                putLong(channel, buf, n.receivedFindNode());
+            }
+            for(long j = nodes.size(); j < node_count; j++) {
+                putLong(channel, buf, -1);  // not in the snapshot
+                putLong(channel, buf, 0);
+            }
+            for(int j = 0; j < row.length; j++)
+                putLong(channel, buf, row[j]);
+            for(long j = row.length; j <= node_count; j++)
+                putLong(channel, buf, e);   // no edges for the contacts not in the snapshot
+            for(int j = 0; j < e; j++) {
+                if(buf.remaining() < 4)
+                    flush(channel, buf);
+                buf.putInt(edge[j]);
+            }
+            flush(channel, buf);
+        }
+        return e;
+    }
+
+    private static void putLong(FileChannel channel, ByteBuffer buf, long v) throws IOException {
+        if(buf.remaining() < 8)
+            flush(channel, buf);
+        buf.putLong(v);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+        Buffers.flip(buf);
+        while(buf.hasRemaining())
+            channel.write(buf);
+        Buffers.clear(buf);
+    }
+
+    public int bitLength() {
+        return this.bit_length;
+    }
+
+    /**
+     * Number of ids, the nodes of the snapshot followed by the other contacts
+     * @return the size of the id table
+     */
+    public int nodeCount() {
+        return this.node_count;
+    }
+
+    public long edgeCount() {
+        return this.edge_count;
+    }
+
+    /**
+     * A word of an id, without allocation
+     * @param node the node index
+     * @param w the word index, as NodeId.word
+     * @return the word
+     */
+    public long idWord(int node, int w) {
+        return this.map.getLong(this.ids + (node * this.words + w) * 8);
+    }
+
+    /**
+     * The id of a node
+     * @param node the node index
+     * @return a new NodeId
+     */
+    public NodeId id(int node) {
+        long[] w = new long[this.words];
+        for(int i = 0; i < w.length; i++)
+            w[i] = this.idWord(node, i);
+        return NodeId.valueOf(w, this.bit_length);
+    }
+
+    /**
+     * The join number of a node
+     * @param node the node index
+     * @return the join number, -1 for the contacts not in the snapshot
+     */
+    public long joinNumber(int node) {
+        return this.map.getLong(this.counters + node * 16);
+    }
+
+    public long receivedFindNode(int node) {
+        return this.map.getLong(this.counters + node * 16 + 8);
+    }
+
+    /**
+     * Index of the first edge of a node
+     * @param node the node index
+     * @return the position of the first routing entry of node
+     */
+    public long firstEdge(int node) {
+        return this.map.getLong(this.rows + node * 8);
+    }
+
+    /**
+     * Number of routing entries of a node
+     * @param node the node index
+     * @return the out degree
+     */
+    public int degree(int node) {
+        return (int) (this.firstEdge(node + 1) - this.firstEdge(node));
+    }
+
+    /**
+     * Target of an edge
+     * @param edge the edge position
+     * @return the target node index
+     */
+    public int edge(long edge) {
+        return this.map.getInt(this.edges + (int) edge * 4);
+    }
+
+    /**
+     * Target of the j-th routing entry of a node
+     * @param node the node index
+     * @param j the entry, in the order of writeToCSV
+     * @return the target node index
+     */
+    public int target(int node, int j) {
+        return this.edge(this.firstEdge(node) + j);
+    }
+
+    /**
+     * Write the csv of Node.writeToCSV
+     * @param path the csv file
+     * @throws IOException if the file cannot be written
+     */
+    public void toCSV(String path) throws IOException {
+        String[] hex = new String[this.node_count];
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < hex.length; i++) {
+            sb.setLength(0);
+            Contact.appendIdString(sb, this.id(i));
+            hex[i] = sb.toString();
+        }
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(path), BUFFER_SIZE)) {
+            sb.setLength(0);
+            Node.appendCSVHeader(sb);
+            for(int i = 0; i < this.node_count; i++) {
+                final long end = this.firstEdge(i + 1);
+                for(long e = this.firstEdge(i); e < end; e++) {
+                    sb.append(hex[i]).append(',').append(hex[this.edge(e)]).append(',');
+                    sb.append(this.joinNumber(i)).append(',').append(this.receivedFindNode(i)).append('\n');
+                }
+                if(sb.length() > BUFFER_SIZE / 2) {
+                    writeAscii(out, sb);
+                    sb.setLength(0);
+                }
+            }
+            writeAscii(out, sb);
+        }
+    }
+
+    private static void writeAscii(OutputStream out, StringBuilder sb) throws IOException {
+        for(int i = 0; i < sb.length(); i++)
+            out.write(sb.charAt(i));
+    }
+
+    /**
+     * Close the file, the mapping is released by the garbage collector
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    public static void main(String[] args) {
+        GraphSnapshot converter = new GraphSnapshot();
+        CommandLine commandLine = new CommandLine(converter);
+        try {
+            commandLine.parseArgs(args);
+            if (commandLine.isUsageHelpRequested()) {
+                commandLine.usage(System.out);
+                return;
+            }
+            try(GraphSnapshot snapshot = GraphSnapshot.open(converter.input)) {
+                snapshot.toCSV(converter.output);
+                System.out.println(snapshot.nodeCount() + " nodes, " + snapshot.edgeCount() + " edges");
+            }
+        } catch (ParameterException ex) {
+            System.err.println("Somthing wrong in parameters: " + ex.getMessage());
+        } catch (IOException ex) {
+            System.err.println("IO error: " + ex.getMessage());
+        }
+    }
+}
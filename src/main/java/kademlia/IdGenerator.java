@@ -0,0 +1,152 @@
+package kademlia;
+
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Seeded source of ids, addresses and contacts for the simulations.
+ * It's the SplitMix64 generator (the same of java.util.SplittableRandom): very
+ * fast, splittable so that each thread or node can get an independent but
+ * reproducible sequence, and with a state made of two longs that can be saved
+ * and restored.
+ * The addresses are built from random bytes, never parsed from strings.
+ * Not thread safe, use split to get a generator for each thread.
+ */
+class IdGenerator {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long seed; //!< the state, advanced by gamma at each step
+    private final long gamma; //!< odd increment
+
+    /**
+     * Generator of the given seed
+     * @param seed the seed, equal seeds produce equal sequences
+     */
+    public IdGenerator(long seed) {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    /**
+     * Generator with an explicit state, as returned by getSeed and getGamma
+     * @param seed the current state
+     * @param gamma the increment, must be odd
+     */
+    public IdGenerator(long seed, long gamma) {
+        if((gamma & 1) == 0)
+            throw new IllegalArgumentException("gamma must be odd");
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    public long getGamma() {
+        return this.gamma;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        final int n = Long.bitCount(z ^ (z >>> 1));
+        return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+
+    /**
+     * A new generator, independent from this one.
+     * This generator is advanced, so the split generators are reproducible too.
+     * @return the new generator
+     */
+    public IdGenerator split() {
+        return new IdGenerator(mix64(this.seed += this.gamma), mixGamma(this.seed += this.gamma));
+    }
+
+    public long nextLong() {
+        return mix64(this.seed += this.gamma);
+    }
+
+    /**
+     * Uniform double in [0, 1)
+     * @return the random double
+     */
+    public double nextDouble() {
+        return (this.nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Uniform int in [0, bound)
+     * @param bound upper bound (exclusive), must be positive
+     * @return the random int
+     */
+    public int nextInt(int bound) {
+        if(bound <= 0)
+            throw new IllegalArgumentException("bound must be positive");
+        // unbiased: the values in the last incomplete range are rejected
+        int r = (int) (this.nextLong() >>> 33);
+        for(int u = r; u - (r = u % bound) + (bound - 1) < 0; u = (int) (this.nextLong() >>> 33))
+            ;
+        return r;
+    }
+
+    /**
+     * Uniform id
+     * @param bit_length length of the id
+     * @return an id with bit_length random bits
+     */
+    public NodeId nextId(int bit_length) {
+        long[] words = new long[NodeId.wordsFor(bit_length)];
+        for(int i = 0; i < words.length; i++)
+            words[i] = this.nextLong();
+        return NodeId.valueOf(words, bit_length);
+    }
+
+    /**
+     * A random unique local IPv6 address (fd00::/8)
+     * @return the address
+     * @throws UnknownHostException should never be thrown, the address length is valid
+     */
+    public InetAddress nextAddress() throws UnknownHostException {
+        byte[] addr = new byte[16];
+        long hi = this.nextLong(), lo = this.nextLong();
+        for(int i = 0; i < 8; i++) {
+            addr[i] = (byte) (hi >>> (56 - i * 8));
+            addr[i + 8] = (byte) (lo >>> (56 - i * 8));
+        }
+        addr[0] = (byte) 0xfd;
+        return InetAddress.getByAddress(addr);
+    }
+
+    /**
+     * A random port, not in the well-known ones
+     * @return a port in [1024, 65535)
+     */
+    public int nextPort() {
+        return 1024 + this.nextInt(65535 - 1024);
+    }
+
+    /**
+     * A random contact
+     * @param id_bit_length length of the id
+     * @param hashed true to hash address and port as Contact(ip, port, bit_length) do,
+     * false to draw the id directly (faster, still uniform)
+     * @return the contact
+     * @throws UnknownHostException should never be thrown
+     * @throws UnsupportedEncodingException if hash cannot be performed, should never be thrown
+     */
+    public Contact nextContact(int id_bit_length, boolean hashed) throws UnknownHostException, UnsupportedEncodingException {
+        InetAddress ip = this.nextAddress();
+        int port = this.nextPort();
+        if(hashed)
+            return new Contact(ip, port, id_bit_length);
+        return new Contact(ip, port, this.nextId(id_bit_length));
+    }
+}
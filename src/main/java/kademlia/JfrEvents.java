@@ -0,0 +1,277 @@
+package kademlia;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the protocol, to see the RPCs, lookups and
+ * evictions in the same recording of GC, allocations and locks.
+ *
+ * The factories return null unless a recording is running, so without one an
+ * instrumented operation pays a volatile read and a null check, and nothing is
+ * allocated. On a JVM without JFR (as Java 8 before u262), or with
+ * -Dkademlia.jfr=false, the event classes are never loaded.
+ * Usage: the factory begins the event, the operation calls end (or its own
+ * method) when done, which fills and commits it if the recording wants it.
+ */
+final class JfrEvents {
+    private static volatile boolean recording; //!< a recording is running, set by available
+    public static final boolean AVAILABLE = available(); //!< JFR can be used
+
+    private JfrEvents() {
+    }
+
+    /**
+     * Check if JFR exists and follow the recordings
+     * @return true if the events can be emitted
+     */
+    private static boolean available() {
+        if("false".equals(System.getProperty("kademlia.jfr")))
+            return false;
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return Listener.register();
+        } catch (Throwable e) { // not a JFR capable JVM, or JFR disabled
+            return false;
+        }
+    }
+
+    /**
+     * Keep recording updated, in its own class so that JfrEvents can be loaded without JFR
+     */
+    private static final class Listener implements FlightRecorderListener {
+        static boolean register() {
+            FlightRecorder.addListener(new Listener());
+            update();
+            return true;
+        }
+
+        static void update() {
+            boolean running = false;
+            if(FlightRecorder.isInitialized())
+                for(Recording r : FlightRecorder.getFlightRecorder().getRecordings())
+                    running |= r.getState() == RecordingState.RUNNING;
+            recording = running;
+        }
+
+        @Override
+        public void recordingStateChanged(Recording r) {
+            update();
+        }
+    };
+
+    /**
+     * Hex id of a contact, null if there is no contact
+     */
+    private static String id(Contact c) {
+        return c == null ? null : c.idString();
+    }
+
+    @Name("kademlia.Rpc")
+    @Label("RPC")
+    @Category("Kademlia")
+    @Description("A request sent by the transport, until its response or timeout")
+    @StackTrace(false)
+    static final class Rpc extends Event {
+        @Label("Kind")
+        String kind;
+        @Label("Sender")
+        String sender;
+        @Label("Receiver")
+        String receiver;
+        @Label("RPC Id")
+        long rpcId;
+        @Label("Responded")
+        boolean responded;
+
+        /**
+         * The request is completed
+         * @param mes the request
+         * @param responded false if it timed out
+         */
+        void end(Message mes, boolean responded) {
+            this.end();
+            if(this.shouldCommit()) {
+                this.kind = mes.type.name();
+                this.sender = id(mes.sender);
+                this.receiver = id(mes.receiver);
+                this.rpcId = mes.rpc_id;
+                this.responded = responded;
+                this.commit();
+            }
+        }
+    };
+
+    @Name("kademlia.Receive")
+    @Label("Receive")
+    @Category("Kademlia")
+    @Description("A request served by a node")
+    @StackTrace(false)
+    static final class Receive extends Event {
+        @Label("Kind")
+        String kind;
+        @Label("Sender")
+        String sender;
+        @Label("Node")
+        String node;
+        @Label("Received FIND_NODE")
+        long receivedFindNode;
+
+        void end(Message mes, long received_find_node) {
+            this.end();
+            if(this.shouldCommit()) {
+                this.kind = mes.type.name();
+                this.sender = id(mes.sender);
+                this.node = id(mes.receiver);
+                this.receivedFindNode = received_find_node;
+                this.commit();
+            }
+        }
+    };
+
+    @Name("kademlia.Ping")
+    @Label("Ping")
+    @Category("Kademlia")
+    @Description("A synchronous ping")
+    @StackTrace(false)
+    static final class Ping extends Event {
+        @Label("Node")
+        String node;
+        @Label("Target")
+        String target;
+        @Label("Alive")
+        boolean alive;
+
+        void end(Contact node, Contact target, boolean alive) {
+            this.end();
+            if(this.shouldCommit()) {
+                this.node = id(node);
+                this.target = id(target);
+                this.alive = alive;
+                this.commit();
+            }
+        }
+    };
+
+    @Name("kademlia.LookupRound")
+    @Label("Lookup Round")
+    @Category("Kademlia")
+    @Description("The alpha requests of a round of the iterative lookup")
+    @StackTrace(false)
+    static final class LookupRound extends Event {
+        @Label("Node")
+        String node;
+        @Label("Target")
+        String target;
+        @Label("Round")
+        int round;
+        @Label("Requests")
+        int requests;
+        @Label("Timeouts")
+        int timeouts;
+        @Label("Improved")
+        @Description("The round found a contact closer to the target")
+        boolean improved;
+
+        void end(Contact node, NodeId target, int round, int requests, int timeouts, boolean improved) {
+            this.end();
+            if(this.shouldCommit()) {
+                StringBuilder sb = new StringBuilder();
+                Contact.appendIdString(sb, target);
+                this.node = id(node);
+                this.target = sb.toString();
+                this.round = round;
+                this.requests = requests;
+                this.timeouts = timeouts;
+                this.improved = improved;
+                this.commit();
+            }
+        }
+    };
+
+    @Name("kademlia.Eviction")
+    @Label("Bucket Eviction")
+    @Category("Kademlia")
+    @Description("A full bucket pinged its least recently seen contact to make room for a new one")
+    @StackTrace(false)
+    static final class Eviction extends Event {
+        @Label("Node")
+        String node;
+        @Label("Least Recently Seen")
+        String head;
+        @Label("Candidate")
+        String candidate;
+        @Label("Evicted")
+        @Description("The least recently seen did not respond and it has been replaced")
+        boolean evicted;
+
+        void end(Contact node, Contact head, Contact candidate, boolean evicted) {
+            this.end();
+            if(this.shouldCommit()) {
+                this.node = id(node);
+                this.head = id(head);
+                this.candidate = id(candidate);
+                this.evicted = evicted;
+                this.commit();
+            }
+        }
+    };
+
+    static Rpc rpc() {
+        if(!recording)
+            return null;
+        Rpc e = new Rpc();
+        if(!e.isEnabled())
+            return null;
+        e.begin();
+        return e;
+    }
+
+    static Receive receive() {
+        if(!recording)
+            return null;
+        Receive e = new Receive();
+        if(!e.isEnabled())
+            return null;
+        e.begin();
+        return e;
+    }
+
+    static Ping ping() {
+        if(!recording)
+            return null;
+        Ping e = new Ping();
+        if(!e.isEnabled())
+            return null;
+        e.begin();
+        return e;
+    }
+
+    static LookupRound lookupRound() {
+        if(!recording)
+            return null;
+        LookupRound e = new LookupRound();
+        if(!e.isEnabled())
+            return null;
+        e.begin();
+        return e;
+    }
+
+    static Eviction eviction() {
+        if(!recording)
+            return null;
+        Eviction e = new Eviction();
+        if(!e.isEnabled())
+            return null;
+        e.begin();
+        return e;
+    }
+}
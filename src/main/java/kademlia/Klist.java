@@ -1,50 +1,212 @@
 package kademlia;
 
-import java.util.ArrayDeque;
+import java.util.Arrays;
 
 /**
  * Very simple class with represent a bucket of Kademlia
  * it's called K list because it ensure that almost k element will be contained
  * it's very basic because ping function it's needed to trigger a refresh.
+ *
+ * The content is an immutable array, replaced at each update (copy on write):
+ * readers never lock and always see a consistent bucket, the writers of the
+ * same klist are serialized by its monitor, so each bucket has its own lock.
+ * The last time each contact has been seen is kept in a parallel array, for the
+ * persistence of the routing table (see RoutingTableFile); it's best effort:
+ * a refresh of the most recently seen contact updates it without locking.
+ *
+ * When the klist is full a new contact waits in a bounded replacement cache, while
+ * the least recently seen contact is pinged (see Node.addContact): if it does not
+ * respond it's evicted and the most recently seen replacement takes its place.
  */
-class Klist extends ArrayDeque<Contact> {
-    private static final long serialVersionUID = 1L;
+class Klist {
+    private static final Contact[] EMPTY = new Contact[0];
+    private static final long[] NEVER = new long[0];
     private final int k; /*!< maximum number of element in the Klist*/
+    private volatile Contact[] contacts; //!< from the least recently seen, never modified once published
+    private volatile long[] seen; //!< milliseconds, the i-th is the last time contacts[i] has been seen
+    private volatile Contact[] replacements; //!< at most k candidates from the least recently seen, never modified once published
 
     /**
      * The only constructor
      * @param k the maximum dimension of the container
      */
     public Klist(int k){
-        // no super constructor called because not all bucket will reach dimension k
         this.k = k;
+        this.contacts = EMPTY;
+        this.seen = NEVER;
+        this.replacements = EMPTY;
+    }
+
+    /**
+     * Position of a contact
+     * @param cur the content to search in
+     * @param c the contact
+     * @return the index of c, -1 if absent
+     */
+    private static int indexOf(Contact[] cur, Contact c) {
+        for(int i = 0; i < cur.length; i++)
+            if(cur[i].equals(c))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Content without the element at pos
+     * @param cur the content
+     * @param pos the position to remove
+     * @param extra room left at the end
+     * @return a new array of cur.length - 1 + extra elements
+     */
+    private static Contact[] without(Contact[] cur, int pos, int extra) {
+        Contact[] next = new Contact[cur.length - 1 + extra];
+        System.arraycopy(cur, 0, next, 0, pos);
+        System.arraycopy(cur, pos + 1, next, pos, cur.length - pos - 1);
+        return next;
+    }
+
+    /**
+     * Times without the element at pos, as without
+     * @param cur the times
+     * @param pos the position to remove
+     * @param extra room left at the end
+     * @return a new array of cur.length - 1 + extra elements
+     */
+    private static long[] without(long[] cur, int pos, int extra) {
+        long[] next = new long[cur.length - 1 + extra];
+        System.arraycopy(cur, 0, next, 0, pos);
+        System.arraycopy(cur, pos + 1, next, pos, cur.length - pos - 1);
+        return next;
+    }
+
+    /**
+     * Publish a new content, called holding the monitor
+     * @param contacts the contacts
+     * @param seen their times
+     */
+    private void publish(Contact[] contacts, long[] seen) {
+        this.seen = seen;
+        this.contacts = contacts;
+    }
+
+    /**
+     * The most recently seen has been seen again, no need to copy the content
+     * @param length the length of the content
+     */
+    private void touchTail(int length) {
+        long[] s = this.seen;
+        if(s.length == length)
+            s[length - 1] = System.currentTimeMillis();
     }
 
     /**
      * Add a contact procedure of the bucket (some of it's preformed by the Node)
      * It add a Contact to the klist if:
-     * * the contact it's not present, if it is it's removed because if this contact
-     * is in the network must be moved to the tail
+     * * the contact it's present, it's moved to the tail because it is alive
+     * and it's returned
      * * else if the klist is not full, add it and report success using null
-     * * otherwise return the first contact.
+     * * otherwise keep it as a replacement and return the first contact, that stays
+     * in the klist.
      *
      * calling it a first can add the element o provide a node to ping
-     * if receive the pong you can recall di function with the returned element
-     * otherwise you can add again the same element of the first call
+     * if receive the pong you can refresh the returned element
+     * otherwise you can evict it, and the most recent replacement takes its place
      * @param c the contact you desire to add
      * @return the element passed if was present, null if was not present and if
      * it is inserted otherwise an older node to contact
      */
     public Contact addContact(Contact c) {
-        if(this.remove(c))
-            return c;    // need a ping to be refreshed
+        Contact[] cur = this.contacts;
+        if(cur.length > 0 && cur[cur.length - 1].equals(c)) {
+            this.touchTail(cur.length);
+            return c; // already the most recently seen, nothing to copy
+        }
+
+        synchronized(this) {
+            cur = this.contacts;
+            final long now = System.currentTimeMillis();
+            final int pos = indexOf(cur, c);
+            if(pos >= 0) {
+                Contact[] next = without(cur, pos, 1);
+                long[] next_seen = without(this.seen, pos, 1);
+                next[next.length - 1] = c;
+                next_seen[next.length - 1] = now;
+                this.publish(next, next_seen);
+                return c;
+            }
+
+            if(cur.length < this.k) {
+                Contact[] next = Arrays.copyOf(cur, cur.length + 1);
+                long[] next_seen = Arrays.copyOf(this.seen, cur.length + 1);
+                next[cur.length] = c;
+                next_seen[cur.length] = now;
+                this.publish(next, next_seen);
+                return null;
+            }
 
-        if(this.size() < this.k) {
-            this.addLast(c);
-            return null;
+            this.replace(c);
+            return cur[0]; // need a ping to be refreshed or evicted
         }
+    }
 
-        return this.removeFirst(); // need a ping to be refreshed
+    /**
+     * Keep a contact as the most recent replacement, called holding the monitor
+     * @param c the contact
+     */
+    private void replace(Contact c) {
+        Contact[] cur = this.replacements;
+        final int pos = indexOf(cur, c);
+        Contact[] next;
+        if(pos >= 0)
+            next = without(cur, pos, 1);
+        else if(cur.length < this.k)
+            next = Arrays.copyOf(cur, cur.length + 1);
+        else
+            next = without(cur, 0, 1); // the least recently seen is dropped
+        next[next.length - 1] = c;
+        this.replacements = next;
+    }
+
+    /**
+     * Take the most recent replacement not already in a content, called holding the monitor
+     * @param cur the content
+     * @return the replacement, null if there is none
+     */
+    private Contact takeReplacement(Contact[] cur) {
+        for(Contact[] r = this.replacements; r.length > 0; r = this.replacements) {
+            this.replacements = Arrays.copyOf(r, r.length - 1);
+            if(indexOf(cur, r[r.length - 1]) < 0) // added meanwhile as a contact
+                return r[r.length - 1];
+        }
+        return null;
+    }
+
+    /**
+     * Remove a contact that did not respond, its room is taken by the most
+     * recently seen replacement
+     * @param dead the contact
+     * @return true if it was present
+     */
+    public synchronized boolean evict(Contact dead) {
+        Contact[] next = this.contacts;
+        long[] next_seen = this.seen;
+        final int pos = indexOf(next, dead);
+        if(pos >= 0) {
+            next = without(next, pos, 0);
+            next_seen = without(next_seen, pos, 0);
+        }
+        final int r = indexOf(this.replacements, dead);
+        if(r >= 0)
+            this.replacements = without(this.replacements, r, 0);
+        Contact promoted = next.length < this.k ? this.takeReplacement(next) : null;
+        if(promoted != null) {
+            next = Arrays.copyOf(next, next.length + 1);
+            next_seen = Arrays.copyOf(next_seen, next.length);
+            next[next.length - 1] = promoted;
+            next_seen[next.length - 1] = System.currentTimeMillis();
+        }
+        if(pos >= 0 || promoted != null)
+            this.publish(next, next_seen);
+        return pos >= 0;
     }
 
     /**
@@ -52,7 +214,100 @@ class Klist extends ArrayDeque<Contact> {
      * @param c contact to be refreshed
      */
     public void refresh(Contact c) {
-        if(this.remove(c) || this.size() < this.k)
-            this.addLast(c);
+        Contact[] cur = this.contacts;
+        if(cur.length > 0 && cur[cur.length - 1].equals(c)) {
+            this.touchTail(cur.length);
+            return;
+        }
+        this.insert(c, System.currentTimeMillis());
+    }
+
+    /**
+     * Add a contact seen at a given time, if there is room (used restoring a saved table).
+     * As refresh, but the time is not now.
+     * @param c the contact
+     * @param seen when it has been seen the last time, milliseconds
+     */
+    public void restore(Contact c, long seen) {
+        this.insert(c, seen);
+    }
+
+    /**
+     * Move c to the tail, or append it if there is room
+     * @param c the contact
+     * @param now its last seen time
+     */
+    private synchronized void insert(Contact c, long now) {
+        Contact[] cur = this.contacts;
+        final int pos = indexOf(cur, c);
+        Contact[] next;
+        long[] next_seen;
+        if(pos >= 0) {
+            next = without(cur, pos, 1);
+            next_seen = without(this.seen, pos, 1);
+        } else if(cur.length < this.k) {
+            next = Arrays.copyOf(cur, cur.length + 1);
+            next_seen = Arrays.copyOf(this.seen, cur.length + 1);
+        } else {
+            return;
+        }
+        next[next.length - 1] = c;
+        next_seen[next.length - 1] = now;
+        this.publish(next, next_seen);
+    }
+
+    /**
+     * Remove a contact (a dead one)
+     * @param c the contact
+     * @return true if it was present
+     */
+    public synchronized boolean remove(Contact c) {
+        Contact[] cur = this.contacts;
+        final int pos = indexOf(cur, c);
+        if(pos < 0)
+            return false;
+        this.publish(without(cur, pos, 0), without(this.seen, pos, 0));
+        return true;
+    }
+
+    /**
+     * The current content, from the least recently seen.
+     * It's never modified by the klist, so it can be iterated while other
+     * threads update the klist, but it must not be modified by the caller.
+     * @return the contacts in this klist
+     */
+    public Contact[] snapshot() {
+        return this.contacts;
+    }
+
+    /**
+     * The current content with the last seen times.
+     * @param seen filled with the time of each contact, at least k long
+     * @return the contacts, as snapshot
+     */
+    public synchronized Contact[] snapshot(long[] seen) {
+        System.arraycopy(this.seen, 0, seen, 0, this.seen.length);
+        return this.contacts;
+    }
+
+    /**
+     * The replacement cache, from the least recently seen. It must not be modified.
+     * @return the candidates to take the place of the contacts that do not respond
+     */
+    public Contact[] replacements() {
+        return this.replacements;
+    }
+
+    public int size() {
+        return this.contacts.length;
+    }
+
+    public boolean isEmpty() {
+        return this.contacts.length == 0;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(this.contacts);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package kademlia;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Routing table made of a Klist for each bucket.
+ * The klists are created lazily, the reads never lock (see Klist).
+ */
+class KlistTable implements RoutingTable {
+    private final NodeId owner; //!< the id of the node owning the table
+    private final int k; //!< length of buckets
+    private final AtomicReferenceArray<Klist> buckets; //!< created lazily, also by concurrent receive
+
+    /**
+     * Empty table
+     * @param owner the id of the node
+     * @param k length of buckets
+     */
+    public KlistTable(NodeId owner, int k) {
+        this.owner = owner;
+        this.k = k;
+        this.buckets = new AtomicReferenceArray<Klist>(owner.bit_length);
+    }
+
+    /**
+     * Search for most appropriate bucket to contain the contact provided.
+     * @param contact the contact to chose the klist
+     * @return the appropriate klist to contain contact, null if contact is the owner
+     */
+    private Klist getKbucket(Contact contact) {
+        final int pos = this.owner.bucketIndex(contact.id);
+        if(pos == -1)
+            return null;
+        Klist klist = this.buckets.get(pos);
+        if(klist == null) {
+            klist = new Klist(this.k);
+            if(!this.buckets.compareAndSet(pos, null, klist))
+                klist = this.buckets.get(pos); // created meanwhile by another thread
+        }
+        return klist;
+    }
+
+    @Override
+    public int length() {
+        return this.buckets.length();
+    }
+
+    @Override
+    public Contact addContact(Contact c) {
+        Klist klist = this.getKbucket(c);
+        return klist == null ? null : klist.addContact(c);
+    }
+
+    @Override
+    public void refresh(Contact c) {
+        Klist klist = this.getKbucket(c);
+        if(klist != null) // null if the owner is pinging itself
+            klist.refresh(c);
+    }
+
+    @Override
+    public void restore(Contact c, long seen) {
+        Klist klist = this.getKbucket(c);
+        if(klist != null)
+            klist.restore(c, seen);
+    }
+
+    @Override
+    public boolean remove(Contact c) {
+        final int pos = this.owner.bucketIndex(c.id);
+        Klist klist = pos == -1 ? null : this.buckets.get(pos);
+        return klist != null && klist.remove(c);
+    }
+
+    @Override
+    public boolean evict(Contact dead, Contact candidate) {
+        Klist klist = this.getKbucket(dead);
+        return klist != null && klist.evict(dead); // candidate is already a replacement
+    }
+
+    @Override
+    public Contact[] bucket(int i, long[] seen) {
+        Klist klist = this.buckets.get(i);
+        return klist == null ? null : klist.snapshot(seen);
+    }
+
+    @Override
+    public Contact[] bucket(int i) {
+        Klist klist = this.buckets.get(i);
+        return klist == null ? null : klist.snapshot();
+    }
+}
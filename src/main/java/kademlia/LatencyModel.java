@@ -0,0 +1,66 @@
+package kademlia;
+
+/**
+ * One way delay of the links of a simulated network.
+ * The delays are in microseconds, the randomness comes from the generator of the
+ * transport so the simulation is reproducible.
+ */
+interface LatencyModel {
+    long LOST = -1; //!< the message is not delivered
+
+    /**
+     * Delay of a message
+     * @param from the sender
+     * @param to the receiver
+     * @param random source of randomness
+     * @return microseconds before the delivery, or LOST
+     */
+    long delay(Contact from, Contact to, IdGenerator random);
+
+    /**
+     * Every message take the same time
+     * @param delay microseconds
+     * @return the model
+     */
+    static LatencyModel constant(final long delay) {
+        return (from, to, random) -> delay;
+    }
+
+    /**
+     * Delays uniformly distributed
+     * @param min minimum microseconds
+     * @param max maximum microseconds (inclusive)
+     * @return the model
+     */
+    static LatencyModel uniform(final long min, final long max) {
+        return (from, to, random) -> min + random.nextInt((int) (max - min + 1));
+    }
+
+    /**
+     * Each link has its own base delay, the same in both directions, plus a random jitter.
+     * The base delay is derived from the ids, so it does not need to be stored.
+     * @param min minimum base delay in microseconds
+     * @param max maximum base delay in microseconds (inclusive)
+     * @param jitter maximum microseconds added to each message
+     * @return the model
+     */
+    static LatencyModel perLink(final long min, final long max, final long jitter) {
+        return (from, to, random) -> {
+            long h = (from.id.hashCode() ^ to.id.hashCode()) * 0x9e3779b97f4a7c15L; // symmetric
+            h ^= h >>> 29;
+            return min + Long.remainderUnsigned(h, max - min + 1) + random.nextInt((int) jitter + 1);
+        };
+    }
+
+    /**
+     * Drop some messages
+     * @param model the delay of the delivered messages
+     * @param loss probability of losing a message, in [0, 1]
+     * @return the model
+     */
+    static LatencyModel lossy(final LatencyModel model, final double loss) {
+        if(loss <= 0)
+            return model;
+        return (from, to, random) -> random.nextDouble() < loss ? LOST : model.delay(from, to, random);
+    }
+}
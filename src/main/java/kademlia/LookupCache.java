@@ -0,0 +1,230 @@
+package kademlia;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Recent lookup results of a Node, to not walk the network again for the same
+ * or a nearby target (see Node.setLookupCache).
+ * * a result younger than fresh is returned as it is, without any request;
+ * * an older one, or the one of the cached target sharing the longest prefix with
+ *   the searched id, seeds the candidates of the new lookup, which then starts
+ *   closer to the target;
+ * * the results older than max_age are dropped, and the least recently used
+ *   one when there are more than capacity;
+ * * a result containing a contact that failed a ping is dropped.
+ *
+ * The targets are indexed by value too (a TreeMap), so the cached target with the
+ * longest common prefix with an id is its floor or its ceiling.
+ * All the operations are synchronized on the cache.
+ */
+class LookupCache {
+
+    /**
+     * A cached result
+     */
+    private static class Entry {
+        final NodeId target;
+        final Contact[] closest; //!< from the closest to the target
+        final long time; //!< when the lookup ended, milliseconds
+        final int rpcs; //!< requests sent by the lookup
+
+        Entry(NodeId target, Contact[] closest, long time, int rpcs) {
+            this.target = target;
+            this.closest = closest;
+            this.time = time;
+            this.rpcs = rpcs;
+        }
+    };
+
+    private final int capacity;
+    private final long fresh; //!< milliseconds a result is returned without requests
+    private final long max_age; //!< milliseconds a result is kept to seed the lookups
+    private final LongSupplier clock; //!< milliseconds
+    private final LinkedHashMap<NodeId, Entry> entries; //!< in access order, for the LRU eviction
+    private final TreeMap<NodeId, Entry> by_target; //!< the prefix index
+
+    private long hits; //!< lookups answered by the cache
+    private long seeded; //!< lookups started from a cached result
+    private long misses;
+    private long saved_rpcs; //!< requests of the cached lookups, not sent again by the hits
+    private long evictions;
+    private long expirations;
+    private long invalidations;
+
+    /**
+     * Cache timed by the wall clock
+     * @param capacity maximum number of results
+     * @param fresh milliseconds a result is returned without requests
+     * @param max_age milliseconds a result is kept to seed the lookups
+     */
+    public LookupCache(int capacity, long fresh, long max_age) {
+        this(capacity, fresh, max_age, System::currentTimeMillis);
+    }
+
+    /**
+     * Cache timed by a given clock
+     * @param capacity maximum number of results
+     * @param fresh milliseconds a result is returned without requests
+     * @param max_age milliseconds a result is kept to seed the lookups
+     * @param clock the current time in milliseconds
+     */
+    public LookupCache(int capacity, long fresh, long max_age, LongSupplier clock) {
+        if(capacity <= 0 || fresh < 0 || max_age < fresh)
+            throw new IllegalArgumentException("invalid lookup cache parameters");
+        this.capacity = capacity;
+        this.fresh = fresh;
+        this.max_age = max_age;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<NodeId, Entry>(16, 0.75f, true);
+        this.by_target = new TreeMap<NodeId, Entry>();
+    }
+
+    private void remove(Entry e) {
+        this.entries.remove(e.target);
+        this.by_target.remove(e.target);
+    }
+
+    /**
+     * Drop e if it's too old
+     * @return true if it has been dropped
+     */
+    private boolean expired(Entry e, long now) {
+        if(now - e.time < this.max_age)
+            return false;
+        this.remove(e);
+        this.expirations++;
+        return true;
+    }
+
+    /**
+     * The cached result of id, if fresh
+     * @param id the target
+     * @param k length of the result
+     * @return the closest contacts, null if there is no fresh result
+     */
+    public synchronized CandidateSet get(NodeId id, int k) {
+        Entry e = this.entries.get(id);
+        final long now = this.clock.getAsLong();
+        if(e == null || this.expired(e, now) || now - e.time >= this.fresh)
+            return null;
+        this.hits++;
+        this.saved_rpcs += e.rpcs;
+        CandidateSet res = new CandidateSet(k, id);
+        for(Contact c : e.closest)
+            res.add(c);
+        return res;
+    }
+
+    /**
+     * Add to the candidates of a new lookup the cached result of its target, or
+     * else the one of the target sharing the longest prefix with it
+     * @param candidates the initial candidates of the lookup
+     * @return true if a cached result has been used
+     */
+    public synchronized boolean seed(CandidateSet candidates) {
+        final NodeId id = candidates.target;
+        final long now = this.clock.getAsLong();
+        Entry e = this.entries.get(id);
+        if(e != null && this.expired(e, now))
+            e = null;
+        if(e == null) {
+            Map.Entry<NodeId, Entry> lo = this.by_target.floorEntry(id);
+            Map.Entry<NodeId, Entry> hi = this.by_target.ceilingEntry(id);
+            if(lo == null)
+                e = hi == null ? null : hi.getValue();
+            else if(hi == null)
+                e = lo.getValue();
+            else
+                e = lo.getKey().bucketIndex(id) <= hi.getKey().bucketIndex(id) ? lo.getValue() : hi.getValue();
+            if(e != null && this.expired(e, now))
+                e = null;
+        }
+        if(e == null) {
+            this.misses++;
+            return false;
+        }
+        this.seeded++;
+        for(Contact c : e.closest)
+            candidates.add(c);
+        return true;
+    }
+
+    /**
+     * Cache the result of a lookup
+     * @param result the closest contacts found
+     * @param rpcs the requests the lookup sent
+     */
+    public synchronized void put(CandidateSet result, int rpcs) {
+        if(result.isEmpty())
+            return;
+        Contact[] closest = new Contact[result.size()];
+        for(int i = 0; i < closest.length; i++)
+            closest[i] = result.get(i).contact;
+        Entry e = new Entry(result.target, closest, this.clock.getAsLong(), rpcs);
+        this.entries.put(e.target, e);
+        this.by_target.put(e.target, e);
+        if(this.entries.size() > this.capacity) {
+            Iterator<Entry> eldest = this.entries.values().iterator();
+            this.by_target.remove(eldest.next().target);
+            eldest.remove();
+            this.evictions++;
+        }
+    }
+
+    /**
+     * Drop the results containing a contact that did not respond
+     * @param c the contact
+     * @return how many results have been dropped
+     */
+    public synchronized int invalidate(Contact c) {
+        int n = 0;
+        for(Iterator<Entry> it = this.entries.values().iterator(); it.hasNext();) {
+            Entry e = it.next();
+            for(Contact cached : e.closest)
+                if(cached.equals(c)) {
+                    it.remove();
+                    this.by_target.remove(e.target);
+                    n++;
+                    break;
+                }
+        }
+        this.invalidations += n;
+        return n;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    public synchronized long hits() {
+        return this.hits;
+    }
+
+    public synchronized long seeded() {
+        return this.seeded;
+    }
+
+    public synchronized long misses() {
+        return this.misses;
+    }
+
+    public synchronized long savedRpcs() {
+        return this.saved_rpcs;
+    }
+
+    public synchronized long evictions() {
+        return this.evictions;
+    }
+
+    public synchronized long expirations() {
+        return this.expirations;
+    }
+
+    public synchronized long invalidations() {
+        return this.invalidations;
+    }
+}
@@ -0,0 +1,291 @@
+package kademlia;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Statistics of the lookups of many nodes, shared by all the nodes of a simulation
+ * (see Node.setMetrics).
+ * Each lookup is followed by a Trace, confined to it, that is recorded at its end
+ * in a Histogram for each quantity. The histograms are made of LongAdders, so
+ * the concurrent lookups never contend on a counter.
+ */
+class LookupMetrics {
+
+    /**
+     * Log-linear histogram of non negative values, as HdrHistogram with 3 bits of precision:
+     * the values under 8 have their own bucket, the others are grouped in 8 buckets
+     * for each power of 2, so a percentile is at most 1/8 over the true value.
+     */
+    static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+        private final LongAdder[] buckets;
+        private final LongAdder count;
+        private final LongAdder sum;
+        private final LongAccumulator max;
+        private final LongAccumulator min;
+
+        public Histogram() {
+            this.buckets = new LongAdder[BUCKETS];
+            for(int i = 0; i < BUCKETS; i++)
+                this.buckets[i] = new LongAdder();
+            this.count = new LongAdder();
+            this.sum = new LongAdder();
+            this.max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+            this.min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        }
+
+        /**
+         * Bucket of a value
+         * @param v a non negative value
+         * @return the bucket index
+         */
+        static int index(long v) {
+            if(v < SUB)
+                return (int) v;
+            final int exp = 63 - Long.numberOfLeadingZeros(v);
+            return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+        }
+
+        /**
+         * Smallest value of a bucket
+         * @param i the bucket index
+         * @return the lower bound, inclusive
+         */
+        static long lowerBound(int i) {
+            if(i < SUB)
+                return i;
+            final int exp = i / SUB + SUB_BITS - 1;
+            return (long) (SUB + i % SUB) << (exp - SUB_BITS);
+        }
+
+        /**
+         * Record a value, the negative ones are recorded as 0
+         * @param v the value
+         */
+        public void record(long v) {
+            if(v < 0)
+                v = 0;
+            this.buckets[index(v)].increment();
+            this.count.increment();
+            this.sum.add(v);
+            this.max.accumulate(v);
+            this.min.accumulate(v);
+        }
+
+        public long count() {
+            return this.count.sum();
+        }
+
+        public long max() {
+            return this.count() == 0 ? 0 : this.max.get();
+        }
+
+        public long min() {
+            return this.count() == 0 ? 0 : this.min.get();
+        }
+
+        public double mean() {
+            final long n = this.count();
+            return n == 0 ? 0 : (double) this.sum.sum() / n;
+        }
+
+        /**
+         * Approximated percentile, the highest value of the bucket containing it
+         * @param p the percentile, from 0 to 100
+         * @return the value, 0 if nothing has been recorded
+         */
+        public long percentile(double p) {
+            final long n = this.count();
+            if(n == 0)
+                return 0;
+            final long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                seen += this.buckets[i].sum();
+                if(seen >= rank)
+                    return Math.min(i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE, this.max());
+            }
+            return this.max();
+        }
+
+        /**
+         * Append the histogram as a json object: the summary and the not empty
+         * buckets, as pairs [lower bound, count]
+         * @param sb where append the json
+         */
+        public void appendJson(StringBuilder sb) {
+            sb.append("{\"count\":").append(this.count());
+            sb.append(",\"min\":").append(this.min());
+            sb.append(",\"max\":").append(this.max());
+            sb.append(",\"mean\":").append(String.format(Locale.ROOT, "%.3f", this.mean()));
+            sb.append(",\"p50\":").append(this.percentile(50));
+            sb.append(",\"p90\":").append(this.percentile(90));
+            sb.append(",\"p99\":").append(this.percentile(99));
+            sb.append(",\"p999\":").append(this.percentile(99.9));
+            sb.append(",\"buckets\":[");
+            boolean first = true;
+            for(int i = 0; i < BUCKETS; i++) {
+                final long n = this.buckets[i].sum();
+                if(n == 0)
+                    continue;
+                if(!first)
+                    sb.append(',');
+                sb.append('[').append(lowerBound(i)).append(',').append(n).append(']');
+                first = false;
+            }
+            sb.append("]}");
+        }
+    };
+
+    /**
+     * Counters of a single lookup, used only by the thread running it
+     */
+    static class Trace {
+        private final LookupMetrics metrics; //!< where the lookup is recorded, null to discard it
+        private final long start;
+        private int hops; //!< responses that improved the closest contact
+        private int rpcs; //!< requests sent
+        private int timeouts; //!< requests not answered
+        private int responses; //!< requests answered
+
+        /**
+         * Start following a lookup
+         * @param metrics where it will be recorded, null if not needed
+         */
+        public Trace(LookupMetrics metrics) {
+            this.metrics = metrics;
+            this.start = metrics == null ? 0 : metrics.clock.getAsLong();
+        }
+
+        /**
+         * A request has been sent
+         */
+        public void sent() {
+            this.rpcs++;
+        }
+
+        /**
+         * A request had no response
+         */
+        public void timeout() {
+            this.timeouts++;
+        }
+
+        /**
+         * A response has been received
+         * @param improved if it gave a contact closer than the known ones
+         */
+        public void responded(boolean improved) {
+            this.responses++;
+            if(improved)
+                this.hops++;
+        }
+
+        /**
+         * Requests not answered until now
+         * @return the timeouts
+         */
+        public int timeouts() {
+            return this.timeouts;
+        }
+
+        /**
+         * Requests sent until now
+         * @return the rpcs
+         */
+        public int rpcs() {
+            return this.rpcs;
+        }
+
+        /**
+         * Record the lookup
+         * @param closest the closest contact found, null if none
+         * @param target the searched id
+         */
+        public void finish(Contact closest, NodeId target) {
+            if(this.metrics != null)
+                this.metrics.record(this, closest, target);
+        }
+    };
+
+    private final LongSupplier clock; //!< microseconds
+    private final LongAdder lookups;
+    public final Histogram hops;
+    public final Histogram rpcs;
+    public final Histogram timeouts;
+    public final Histogram contacted; //!< nodes that responded
+    public final Histogram distance; //!< bits of the xor distance between the closest found and the target
+    public final Histogram duration; //!< microseconds
+
+    /**
+     * Metrics timed by the wall clock
+     */
+    public LookupMetrics() {
+        this(() -> System.nanoTime() / 1000);
+    }
+
+    /**
+     * Metrics timed by a given clock, as the virtual time of an EventLoop
+     * @param clock the current time in microseconds
+     */
+    public LookupMetrics(LongSupplier clock) {
+        this.clock = clock;
+        this.lookups = new LongAdder();
+        this.hops = new Histogram();
+        this.rpcs = new Histogram();
+        this.timeouts = new Histogram();
+        this.contacted = new Histogram();
+        this.distance = new Histogram();
+        this.duration = new Histogram();
+    }
+
+    /**
+     * Record a finished lookup
+     * @param trace its counters
+     * @param closest the closest contact found, null if none
+     * @param target the searched id
+     */
+    private void record(Trace trace, Contact closest, NodeId target) {
+        this.lookups.increment();
+        this.hops.record(trace.hops);
+        this.rpcs.record(trace.rpcs);
+        this.timeouts.record(trace.timeouts);
+        this.contacted.record(trace.responses);
+        if(closest != null)
+            this.distance.record(closest.id.bucketIndex(target) + 1);
+        this.duration.record(this.clock.getAsLong() - trace.start);
+    }
+
+    public long lookups() {
+        return this.lookups.sum();
+    }
+
+    /**
+     * The summary of all the lookups, as a json object
+     * @return the json
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(1 << 12);
+        sb.append("{\"lookups\":").append(this.lookups());
+        sb.append(",\"hops\":");
+        this.hops.appendJson(sb);
+        sb.append(",\"rpcs\":");
+        this.rpcs.appendJson(sb);
+        sb.append(",\"timeouts\":");
+        this.timeouts.appendJson(sb);
+        sb.append(",\"contacted\":");
+        this.contacted.appendJson(sb);
+        sb.append(",\"distance_bits\":");
+        this.distance.appendJson(sb);
+        sb.append(",\"duration_us\":");
+        this.duration.appendJson(sb);
+        sb.append("}\n");
+        return sb.toString();
+    }
+}
@@ -1,6 +1,8 @@
 package kademlia;
 
-import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Messages used in kademlia. 
@@ -9,12 +11,18 @@ import java.util.BitSet;
 class Message {
     public enum kind {
         PING,
-        FIND
+        FIND,
+        STORE,
+        FIND_VALUE,
+        BATCH
     };
 
+    private static final AtomicLong rpc_counter = new AtomicLong(new Random().nextLong()); //!< random start, to not collide with other processes
+
     public final kind type;
     public final Contact sender;
     public final Contact receiver;
+    public final long rpc_id; //!< correlation id, a response has the same rpc_id of its request
 
     /**
      * Basic Message.
@@ -24,9 +32,22 @@ class Message {
      * @param receiver the contact reciving
      */
     public Message(Message.kind type, Contact sender, Contact receiver) {
+        this(type, sender, receiver, rpc_counter.getAndIncrement());
+    }
+
+    /**
+     * Message with a given correlation id.
+     * Used by responses and by who decode received messages.
+     * @param type the type of message
+     * @param sender the contact sending
+     * @param receiver the contact reciving
+     * @param rpc_id the correlation id
+     */
+    protected Message(Message.kind type, Contact sender, Contact receiver, long rpc_id) {
         this.type = type;
         this.sender = sender;
         this.receiver = receiver;
+        this.rpc_id = rpc_id;
     }
 
     /**
@@ -38,7 +59,7 @@ class Message {
          * @param mes receiver a message to copy inverting sender and receiver
          */
         public Response(Message mes) {
-            super(mes.type, mes.receiver, mes.sender);
+            super(mes.type, mes.receiver, mes.sender, mes.rpc_id);
         }
     };
 
@@ -46,8 +67,9 @@ class Message {
      * FindRequest, used for FIND_NODE
      */
     public static class FindRequest extends Message {
-        public final BitSet id;
+        public final NodeId id;
         public final ShortList traversed_nodes;
+        public final MessageCodec.ContactView traversed_view; //!< the traversed nodes still encoded, when decoded by MessageCodec (traversed_nodes is then null)
 
         /**
          * This construct a FIND_NODE request
@@ -56,10 +78,53 @@ class Message {
          * @param sender    sender contact
          * @param receiver  receiver contact
          */
-        public FindRequest(BitSet id, ShortList traversed_nodes, Contact sender, Contact receiver) {
+        public FindRequest(NodeId id, ShortList traversed_nodes, Contact sender, Contact receiver) {
             super(Message.kind.FIND, sender, receiver);
             this.id = id;
             this.traversed_nodes = traversed_nodes;
+            this.traversed_view = null;
+        }
+
+        /**
+         * FIND_NODE request with a given correlation id, used decoding a received message
+         * @param id the id to find
+         * @param traversed_nodes node queried until now
+         * @param sender    sender contact
+         * @param receiver  receiver contact
+         * @param rpc_id the correlation id
+         */
+        FindRequest(NodeId id, ShortList traversed_nodes, Contact sender, Contact receiver, long rpc_id) {
+            this(id, traversed_nodes, null, sender, receiver, rpc_id);
+        }
+
+        /**
+         * FIND_NODE request decoded with its traversed nodes still encoded
+         * @param id the id to find
+         * @param traversed_nodes node queried until now, null if given as traversed_view
+         * @param traversed_view node queried until now, as a list over the encoded contacts
+         * @param sender    sender contact
+         * @param receiver  receiver contact
+         * @param rpc_id the correlation id
+         */
+        FindRequest(NodeId id, ShortList traversed_nodes, MessageCodec.ContactView traversed_view, Contact sender, Contact receiver, long rpc_id) {
+            this(Message.kind.FIND, id, traversed_nodes, traversed_view, sender, receiver, rpc_id);
+        }
+
+        /**
+         * A FIND of a given kind, for FindValueRequest
+         * @param type FIND or FIND_VALUE
+         * @param id the id to find
+         * @param traversed_nodes node queried until now
+         * @param traversed_view node queried until now still encoded, or null
+         * @param sender    sender contact
+         * @param receiver  receiver contact
+         * @param rpc_id the correlation id
+         */
+        protected FindRequest(Message.kind type, NodeId id, ShortList traversed_nodes, MessageCodec.ContactView traversed_view, Contact sender, Contact receiver, long rpc_id) {
+            super(type, sender, receiver, rpc_id);
+            this.id = id;
+            this.traversed_nodes = traversed_nodes;
+            this.traversed_view = traversed_view;
         }
     };
 
@@ -67,19 +132,180 @@ class Message {
      * This class is the response to a FindRequest
      */
     public static class FindResponse extends Response {
-        public final BitSet id;
-        public final ShortList shortlist;
+        public final NodeId id;
+        public final CandidateSet candidates;
 
         /**
          * Create a Response given the parameters.
-         * @param shortlist the list of element taken from the buckets
+         * @param candidates the closest contacts taken from the buckets
          * @param mes the FindRequest to which respond
          */
-        public FindResponse(ShortList shortlist, Message mes) {
+        public FindResponse(CandidateSet candidates, Message mes) {
             super(mes);
             FindRequest req = (FindRequest) mes;
             this.id = req.id;
-            this.shortlist = shortlist;
+            this.candidates = candidates;
+        }
+    };
+
+    /**
+     * FIND_VALUE request: a FIND_NODE that the receiver answers with the value of
+     * the key, if it has it
+     */
+    public static class FindValueRequest extends FindRequest {
+        /**
+         * This construct a FIND_VALUE request
+         * @param key the key of the value, it's also the id to find
+         * @param traversed_nodes node queried until now
+         * @param sender    sender contact
+         * @param receiver  receiver contact
+         */
+        public FindValueRequest(NodeId key, ShortList traversed_nodes, Contact sender, Contact receiver) {
+            this(key, traversed_nodes, sender, receiver, rpc_counter.getAndIncrement());
+        }
+
+        /**
+         * FIND_VALUE request with a given correlation id, used decoding a received message
+         * @param key the key of the value
+         * @param traversed_nodes node queried until now
+         * @param sender    sender contact
+         * @param receiver  receiver contact
+         * @param rpc_id the correlation id
+         */
+        FindValueRequest(NodeId key, ShortList traversed_nodes, Contact sender, Contact receiver, long rpc_id) {
+            this(key, traversed_nodes, null, sender, receiver, rpc_id);
+        }
+
+        /**
+         * FIND_VALUE request decoded with its traversed nodes still encoded
+         * @param key the key of the value
+         * @param traversed_nodes node queried until now, null if given as traversed_view
+         * @param traversed_view node queried until now, as a list over the encoded contacts
+         * @param sender    sender contact
+         * @param receiver  receiver contact
+         * @param rpc_id the correlation id
+         */
+        FindValueRequest(NodeId key, ShortList traversed_nodes, MessageCodec.ContactView traversed_view, Contact sender, Contact receiver, long rpc_id) {
+            super(Message.kind.FIND_VALUE, key, traversed_nodes, traversed_view, sender, receiver, rpc_id);
+        }
+    };
+
+    /**
+     * The response to a FindValueRequest: the value, or the closest contacts as FIND_NODE
+     */
+    public static class FindValueResponse extends FindResponse {
+        public final byte[] value; //!< null if the receiver has not the value
+
+        /**
+         * Create a Response given the parameters.
+         * @param value the value found, null if not found
+         * @param candidates the closest contacts, empty if the value is found
+         * @param mes the FindValueRequest to which respond
+         */
+        public FindValueResponse(byte[] value, CandidateSet candidates, Message mes) {
+            super(candidates, mes);
+            this.value = value;
+        }
+    };
+
+    /**
+     * STORE request, the receiver keep the value for ttl milliseconds
+     */
+    public static class StoreRequest extends Message {
+        public final NodeId key;
+        public final byte[] value;
+        public final long ttl; //!< milliseconds
+
+        /**
+         * This construct a STORE request
+         * @param key the key
+         * @param value the value
+         * @param ttl milliseconds the value is kept
+         * @param sender    sender contact
+         * @param receiver  receiver contact
+         */
+        public StoreRequest(NodeId key, byte[] value, long ttl, Contact sender, Contact receiver) {
+            this(key, value, ttl, sender, receiver, rpc_counter.getAndIncrement());
+        }
+
+        /**
+         * STORE request with a given correlation id, used decoding a received message
+         * @param key the key
+         * @param value the value
+         * @param ttl milliseconds the value is kept
+         * @param sender    sender contact
+         * @param receiver  receiver contact
+         * @param rpc_id the correlation id
+         */
+        StoreRequest(NodeId key, byte[] value, long ttl, Contact sender, Contact receiver, long rpc_id) {
+            super(Message.kind.STORE, sender, receiver, rpc_id);
+            this.key = key;
+            this.value = value;
+            this.ttl = ttl;
+        }
+    };
+
+    /**
+     * The response to a StoreRequest
+     */
+    public static class StoreResponse extends Response {
+        public final boolean stored; //!< false if the receiver has no room for the value
+
+        /**
+         * Create a Response given the parameters.
+         * @param stored if the value has been stored
+         * @param mes the StoreRequest to which respond
+         */
+        public StoreResponse(boolean stored, Message mes) {
+            super(mes);
+            this.stored = stored;
+        }
+    };
+
+    /**
+     * More requests to the same node in a single message, see BatchingTransport.
+     * Each request keeps its own rpc_id, the receiver answers with a BatchResponse.
+     */
+    public static class BatchRequest extends Message {
+        public final List<Message> requests; //!< PING and FIND requests, not other batches
+
+        /**
+         * This construct a BATCH request
+         * @param requests the requests, all from sender to receiver
+         * @param sender    sender contact
+         * @param receiver  receiver contact
+         */
+        public BatchRequest(List<Message> requests, Contact sender, Contact receiver) {
+            this(requests, sender, receiver, rpc_counter.getAndIncrement());
+        }
+
+        /**
+         * BATCH request with a given correlation id, used decoding a received message
+         * @param requests the requests, all from sender to receiver
+         * @param sender    sender contact
+         * @param receiver  receiver contact
+         * @param rpc_id the correlation id
+         */
+        BatchRequest(List<Message> requests, Contact sender, Contact receiver, long rpc_id) {
+            super(Message.kind.BATCH, sender, receiver, rpc_id);
+            this.requests = requests;
+        }
+    };
+
+    /**
+     * The response to a BatchRequest
+     */
+    public static class BatchResponse extends Response {
+        public final List<Message> responses; //!< the responses of the requests answered, in their order
+
+        /**
+         * Create a Response given the parameters.
+         * @param responses the responses, matched to the requests by rpc_id
+         * @param mes the BatchRequest to which respond
+         */
+        public BatchResponse(List<Message> responses, Message mes) {
+            super(mes);
+            this.responses = responses;
         }
     };
-}
\ No newline at end of file
+}
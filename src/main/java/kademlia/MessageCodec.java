@@ -0,0 +1,735 @@
+package kademlia;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Versioned binary encoding of the messages, used by the network transports.
+ * Layout of a message (big endian, u16 are unsigned shorts):
+ * * byte VERSION, byte kind (bit 7 set if it's a response), long rpc_id, u16 id bit length;
+ * * sender and receiver contacts;
+ * * for FIND requests and responses the searched id and a list of contacts (u16 count + contacts);
+ * * FIND_VALUE as FIND, the response is followed by the value (i32 length, -1 if not found, + bytes);
+ * * for STORE requests the key (as an id), the ttl (long milliseconds) and the value (i32 length + bytes),
+ *   for STORE responses a byte, 1 if the value has been stored;
+ * * for BATCH requests and responses the number of messages (u16), then each message
+ *   encoded as a whole (a batch does not contain other batches).
+ *
+ * An id is written as its raw bytes, least significant first (bit length / 8 rounded up).
+ * A contact is: id, byte address family (4 or 6), the 4 or 16 bytes of the address, u16 port.
+ *
+ * Besides the decoding to Message, the buffer can be read in place through View and
+ * ContactView, flyweights that allocate nothing per contact.
+ */
+final class MessageCodec {
+    public static final byte VERSION = 1; //!< bumped at every incompatible change of the layout
+    private static final int RESPONSE = 0x80; //!< flag in the kind byte
+    private static final int HEADER = 1 + 1 + 8 + 2; //!< bytes before the sender contact
+    private static final Message.kind[] kinds = Message.kind.values();
+
+    private MessageCodec() {}
+
+    /**
+     * Bytes needed to store an id
+     * @param bit_length the id bit length
+     * @return bit_length / 8 rounded up
+     */
+    static int idBytes(int bit_length) {
+        return (bit_length + 7) >>> 3;
+    }
+
+    /**
+     * Bytes needed to encode a contact
+     * @param c the contact
+     * @return the size of the contact on the wire
+     */
+    static int contactSize(Contact c) {
+        return idBytes(c.id_bit_length) + 1 + c.ip.getAddress().length + 2;
+    }
+
+    /**
+     * Exact size of the encoded message, without encoding it
+     * @param mes the message
+     * @return the number of bytes written by encode
+     */
+    public static int encodedSize(Message mes) {
+        int size = HEADER + contactSize(mes.sender) + contactSize(mes.receiver);
+        if(mes instanceof Message.FindRequest) {
+            Message.FindRequest req = (Message.FindRequest) mes;
+            size += idBytes(req.id.bit_length) + 2;
+            if(req.traversed_view != null) {
+                for(req.traversed_view.rewind(); req.traversed_view.next(); )
+                    size += req.traversed_view.size();
+            } else if(req.traversed_nodes != null) {
+                for(int i = 0; i < req.traversed_nodes.size(); i++)
+                    size += contactSize(req.traversed_nodes.get(i).contact);
+            }
+        } else if(mes instanceof Message.FindResponse) {
+            Message.FindResponse res = (Message.FindResponse) mes;
+            size += idBytes(res.id.bit_length) + 2;
+            for(CandidateSet.Candidate cand : res.candidates)
+                size += contactSize(cand.contact);
+            if(mes instanceof Message.FindValueResponse) {
+                byte[] value = ((Message.FindValueResponse) mes).value;
+                size += 4 + (value == null ? 0 : value.length);
+            }
+        } else if(mes instanceof Message.StoreRequest) {
+            Message.StoreRequest req = (Message.StoreRequest) mes;
+            size += idBytes(req.key.bit_length) + 8 + 4 + req.value.length;
+        } else if(mes instanceof Message.StoreResponse) {
+            size += 1;
+        } else if(mes instanceof Message.BatchRequest) {
+            size += 2;
+            for(Message req : ((Message.BatchRequest) mes).requests)
+                size += encodedSize(req);
+        } else if(mes instanceof Message.BatchResponse) {
+            size += 2;
+            for(Message res : ((Message.BatchResponse) mes).responses)
+                size += encodedSize(res);
+        }
+        return size;
+    }
+
+    /**
+     * Write the message in buf starting from its position.
+     * @param mes the message to encode
+     * @param buf the destination
+     * @throws BufferOverflowException if the message does not fit
+     */
+    public static void encode(Message mes, ByteBuffer buf) {
+        final int bit_length = mes.sender.id_bit_length;
+        buf.put(VERSION);
+        buf.put((byte) (mes.type.ordinal() | (mes instanceof Message.Response ? RESPONSE : 0)));
+        buf.putLong(mes.rpc_id);
+        buf.putShort((short) bit_length);
+        putContact(buf, mes.sender);
+        putContact(buf, mes.receiver);
+        if(mes instanceof Message.FindRequest) {
+            Message.FindRequest req = (Message.FindRequest) mes;
+            putId(buf, req.id);
+            if(req.traversed_view != null) {
+                putCount(buf, req.traversed_view.count());
+                for(req.traversed_view.rewind(); req.traversed_view.next(); )
+                    req.traversed_view.put(buf);
+            } else if(req.traversed_nodes == null) {
+                buf.putShort((short) 0);
+            } else {
+                putCount(buf, req.traversed_nodes.size());
+                for(int i = 0; i < req.traversed_nodes.size(); i++)
+                    putContact(buf, req.traversed_nodes.get(i).contact);
+            }
+        } else if(mes instanceof Message.FindResponse) {
+            Message.FindResponse res = (Message.FindResponse) mes;
+            putId(buf, res.id);
+            putCount(buf, res.candidates.size());
+            for(CandidateSet.Candidate cand : res.candidates)
+                putContact(buf, cand.contact);
+            if(mes instanceof Message.FindValueResponse)
+                putValue(buf, ((Message.FindValueResponse) mes).value);
+        } else if(mes instanceof Message.StoreRequest) {
+            Message.StoreRequest req = (Message.StoreRequest) mes;
+            putId(buf, req.key);
+            buf.putLong(req.ttl);
+            putValue(buf, req.value);
+        } else if(mes instanceof Message.StoreResponse) {
+            buf.put((byte) (((Message.StoreResponse) mes).stored ? 1 : 0));
+        } else if(mes instanceof Message.BatchRequest) {
+            Message.BatchRequest req = (Message.BatchRequest) mes;
+            putCount(buf, req.requests.size());
+            for(Message part : req.requests)
+                encode(part, buf);
+        } else if(mes instanceof Message.BatchResponse) {
+            Message.BatchResponse res = (Message.BatchResponse) mes;
+            putCount(buf, res.responses.size());
+            for(Message part : res.responses)
+                encode(part, buf);
+        }
+    }
+
+    /**
+     * Read a message from buf, starting from its position.
+     * At the end the position is after the message.
+     * @param buf the source
+     * @return the decoded message
+     * @throws IllegalArgumentException if the content is not a valid message
+     */
+    public static Message decode(ByteBuffer buf) {
+        View view = new View().wrap(buf);
+        ContactView cursor = new ContactView();
+        final Contact sender = view.sender(cursor).toContact();
+        final Contact receiver = view.receiver(cursor).toContact();
+        final long rpc_id = view.rpcId();
+        Message res;
+        switch(view.kind()) {
+            case PING:
+                if(view.isResponse()) // the response is built from its request
+                    res = new Message.Response(new Message(Message.kind.PING, receiver, sender, rpc_id));
+                else
+                    res = new Message(Message.kind.PING, sender, receiver, rpc_id);
+                break;
+            case FIND:
+            case FIND_VALUE:
+                final NodeId id = view.id();
+                final boolean value = view.kind() == Message.kind.FIND_VALUE;
+                view.contacts(cursor);
+                if(view.isResponse()) {
+                    CandidateSet candidates = new CandidateSet(view.contactCount(), id);
+                    candidates.addAll(cursor);
+                    if(value)
+                        res = new Message.FindValueResponse(view.value(), candidates, new Message.FindValueRequest(id, null, null, receiver, sender, rpc_id));
+                    else
+                        res = new Message.FindResponse(candidates, new Message.FindRequest(id, null, null, receiver, sender, rpc_id));
+                } else {
+                    // kept encoded, the receiver materializes only the contacts it adds
+                    ContactView traversed = view.copyContacts(new ContactView());
+                    if(value)
+                        res = new Message.FindValueRequest(id, null, traversed, sender, receiver, rpc_id);
+                    else
+                        res = new Message.FindRequest(id, null, traversed, sender, receiver, rpc_id);
+                }
+                break;
+            case STORE:
+                if(view.isResponse())
+                    res = new Message.StoreResponse(view.stored(), new Message.StoreRequest(null, null, 0, receiver, sender, rpc_id));
+                else
+                    res = new Message.StoreRequest(view.id(), view.value(), view.ttl(), sender, receiver, rpc_id);
+                break;
+            case BATCH:
+                ArrayList<Message> parts = new ArrayList<Message>(view.messageCount());
+                Buffers.position(buf, view.firstMessage());
+                for(int i = 0; i < view.messageCount(); i++)
+                    parts.add(decode(buf));
+                if(view.isResponse())
+                    res = new Message.BatchResponse(parts, new Message.BatchRequest(null, receiver, sender, rpc_id));
+                else
+                    res = new Message.BatchRequest(parts, sender, receiver, rpc_id);
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported message kind " + view.kind());
+        }
+        Buffers.position(buf, view.end());
+        return res;
+    }
+
+    /**
+     * Write the length of a list of contacts
+     * @param buf the destination
+     * @param n the length, at most 65535
+     */
+    private static void putCount(ByteBuffer buf, int n) {
+        if(n > 0xFFFF)
+            throw new BufferOverflowException();
+        buf.putShort((short) n);
+    }
+
+    /**
+     * Write a value, as its length and its bytes
+     * @param buf the destination
+     * @param value the value, null is written as length -1
+     */
+    private static void putValue(ByteBuffer buf, byte[] value) {
+        if(value == null) {
+            buf.putInt(-1);
+        } else {
+            buf.putInt(value.length);
+            buf.put(value);
+        }
+    }
+
+    /**
+     * Write the raw bytes of an id
+     * @param buf the destination
+     * @param id the id
+     */
+    private static void putId(ByteBuffer buf, NodeId id) {
+        final int n = idBytes(id.bit_length);
+        for(int i = 0; i < n; i++)
+            buf.put(id.byteAt(i));
+    }
+
+    /**
+     * Write a contact
+     * @param buf the destination
+     * @param c the contact
+     */
+    private static void putContact(ByteBuffer buf, Contact c) {
+        putId(buf, c.id);
+        byte[] addr = c.ip.getAddress();
+        buf.put((byte) (addr.length == 4 ? 4 : 6));
+        buf.put(addr);
+        buf.putShort((short) c.port);
+    }
+
+    /**
+     * Flyweight over an encoded message.
+     * It read the buffer with absolute gets, so its position is never modified,
+     * and the same instance can be reused for many messages.
+     */
+    static final class View {
+        private ByteBuffer buf;
+        private int start; //!< offset of the message
+        private int bit_length;
+        private int id_offset; //!< offset of the searched id or the key, -1 if not a FIND nor a STORE request
+        private int count; //!< number of contacts in the list, or of messages of a BATCH
+        private int list_offset; //!< offset of the first contact of the list, -1 if there is no list
+        private int list_end; //!< offset after the last contact of the list
+        private int value_offset; //!< offset of the value bytes, -1 if there is no value
+        private int value_length;
+        private int extra_offset; //!< offset of the ttl of a STORE request, the flag of a STORE response or the first message of a BATCH
+        private int end; //!< offset after the message
+
+        /**
+         * Point this view to the message starting at the position of buf.
+         * The whole message is validated.
+         * @param buf the encoded message
+         * @return this view
+         * @throws IllegalArgumentException if the content is not a valid message
+         */
+        public View wrap(ByteBuffer buf) {
+            return this.at(buf, buf.position(), true);
+        }
+
+        /**
+         * Point this view to the message starting at start, validating it
+         * @param buf the encoded message
+         * @param start the absolute offset of the message
+         * @param batch if the message can be a BATCH
+         * @return this view
+         * @throws IllegalArgumentException if the content is not a valid message
+         */
+        private View at(ByteBuffer buf, int start, boolean batch) {
+            this.buf = buf;
+            this.start = start;
+            if(buf.limit() - this.start < HEADER)
+                throw new IllegalArgumentException("truncated message");
+            if(buf.get(this.start) != VERSION)
+                throw new IllegalArgumentException("unsupported version " + buf.get(this.start));
+            final int kind = buf.get(this.start + 1) & ~RESPONSE & 0xFF;
+            if(kind >= kinds.length)
+                throw new IllegalArgumentException("unknown message kind " + kind);
+            this.bit_length = buf.getShort(this.start + 10) & 0xFFFF;
+            int off = this.start + HEADER;
+            off = ContactView.skip(buf, off, this.bit_length);
+            off = ContactView.skip(buf, off, this.bit_length);
+            this.id_offset = -1;
+            this.count = 0;
+            this.value_offset = -1;
+            this.value_length = 0;
+            this.extra_offset = -1;
+            this.list_offset = -1;
+            this.list_end = -1;
+            final boolean response = (buf.get(this.start + 1) & RESPONSE) != 0;
+            switch(kinds[kind]) {
+                case FIND:
+                case FIND_VALUE:
+                    this.id_offset = off;
+                    off += idBytes(this.bit_length);
+                    check(buf, off, 2);
+                    this.count = buf.getShort(off) & 0xFFFF;
+                    off += 2;
+                    this.list_offset = off;
+                    for(int i = 0; i < this.count; i++)
+                        off = ContactView.skip(buf, off, this.bit_length);
+                    this.list_end = off;
+                    if(kinds[kind] == Message.kind.FIND_VALUE && response)
+                        off = this.skipValue(buf, off, true);
+                    break;
+                case STORE:
+                    this.extra_offset = off;
+                    if(response) {
+                        check(buf, off, 1);
+                        off += 1;
+                    } else {
+                        this.id_offset = off;
+                        off += idBytes(this.bit_length);
+                        check(buf, off, 8);
+                        this.extra_offset = off;
+                        off = this.skipValue(buf, off + 8, false);
+                    }
+                    break;
+                case BATCH:
+                    if(!batch)
+                        throw new IllegalArgumentException("nested batch");
+                    check(buf, off, 2);
+                    this.count = buf.getShort(off) & 0xFFFF;
+                    off += 2;
+                    this.extra_offset = off;
+                    View part = new View();
+                    for(int i = 0; i < this.count; i++)
+                        off = part.at(buf, off, false).end;
+                    break;
+                default:
+                    break;
+            }
+            this.end = off;
+            return this;
+        }
+
+        public Message.kind kind() {
+            return kinds[this.buf.get(this.start + 1) & ~RESPONSE & 0xFF];
+        }
+
+        public boolean isResponse() {
+            return (this.buf.get(this.start + 1) & RESPONSE) != 0;
+        }
+
+        public long rpcId() {
+            return this.buf.getLong(this.start + 2);
+        }
+
+        public int bitLength() {
+            return this.bit_length;
+        }
+
+        /**
+         * Point cursor to the sender
+         * @param cursor the flyweight to reuse
+         * @return cursor
+         */
+        public ContactView sender(ContactView cursor) {
+            return cursor.at(this.buf, this.start + HEADER, this.bit_length);
+        }
+
+        /**
+         * Point cursor to the receiver
+         * @param cursor the flyweight to reuse
+         * @return cursor
+         */
+        public ContactView receiver(ContactView cursor) {
+            return cursor.at(this.buf, ContactView.skip(this.buf, this.start + HEADER, this.bit_length), this.bit_length);
+        }
+
+        /**
+         * The searched id of a FIND, or the key of a STORE request (it's allocated)
+         * @return the id, null if the message has none
+         */
+        public NodeId id() {
+            if(this.id_offset == -1)
+                return null;
+            byte[] bytes = new byte[idBytes(this.bit_length)];
+            for(int i = 0; i < bytes.length; i++)
+                bytes[i] = this.buf.get(this.id_offset + i);
+            return NodeId.valueOf(bytes, 0, bytes.length, this.bit_length);
+        }
+
+        public int contactCount() {
+            return this.kind() == Message.kind.BATCH ? 0 : this.count;
+        }
+
+        /**
+         * Number of messages of a BATCH
+         * @return the messages, 0 if the message is not a BATCH
+         */
+        public int messageCount() {
+            return this.kind() == Message.kind.BATCH ? this.count : 0;
+        }
+
+        /**
+         * Offset of the first message of a BATCH, to wrap it with another view
+         * @return the absolute position, the end if the message is not a BATCH
+         */
+        public int firstMessage() {
+            return this.kind() == Message.kind.BATCH ? this.extra_offset : this.end;
+        }
+
+        /**
+         * Validate a value and remember where it is
+         * @param buf the buffer
+         * @param off the offset of its length
+         * @param optional if the length can be -1
+         * @return the offset after the value
+         */
+        private int skipValue(ByteBuffer buf, int off, boolean optional) {
+            check(buf, off, 4);
+            final int len = buf.getInt(off);
+            off += 4;
+            if(len == -1 && optional)
+                return off;
+            if(len < 0)
+                throw new IllegalArgumentException("invalid value length " + len);
+            check(buf, off, len);
+            this.value_offset = off;
+            this.value_length = len;
+            return off + len;
+        }
+
+        /**
+         * The value of a STORE request or of a FIND_VALUE response (it's allocated)
+         * @return a copy of the value, null if there is none
+         */
+        public byte[] value() {
+            if(this.value_offset == -1)
+                return null;
+            byte[] res = new byte[this.value_length];
+            for(int i = 0; i < res.length; i++)
+                res[i] = this.buf.get(this.value_offset + i);
+            return res;
+        }
+
+        /**
+         * The ttl of a STORE request
+         * @return milliseconds, 0 if the message is not a STORE request
+         */
+        public long ttl() {
+            if(this.kind() != Message.kind.STORE || this.isResponse())
+                return 0;
+            return this.buf.getLong(this.extra_offset);
+        }
+
+        /**
+         * The result of a STORE response
+         * @return true if the value has been stored, false also if the message is not a STORE response
+         */
+        public boolean stored() {
+            return this.kind() == Message.kind.STORE && this.isResponse() && this.buf.get(this.extra_offset) != 0;
+        }
+
+        /**
+         * Prepare cursor to iterate the contact list, call next before reading each contact
+         * @param cursor the flyweight to reuse
+         * @return cursor
+         */
+        public ContactView contacts(ContactView cursor) {
+            if(this.list_offset == -1)
+                return cursor.list(this.buf, this.end, this.bit_length, 0);
+            return cursor.list(this.buf, this.list_offset, this.bit_length, this.count);
+        }
+
+        /**
+         * As contacts, over a copy of the list that stays valid when the buffer is reused
+         * (one allocation for the whole list)
+         * @param cursor the flyweight to reuse
+         * @return cursor
+         */
+        public ContactView copyContacts(ContactView cursor) {
+            if(this.list_offset == -1)
+                return cursor.list(ByteBuffer.allocate(0), 0, this.bit_length, 0);
+            byte[] bytes = new byte[this.list_end - this.list_offset];
+            for(int i = 0; i < bytes.length; i++)
+                bytes[i] = this.buf.get(this.list_offset + i);
+            return cursor.list(ByteBuffer.wrap(bytes), 0, this.bit_length, this.count);
+        }
+
+        /**
+         * Offset after the message
+         * @return the absolute position of the end
+         */
+        public int end() {
+            return this.end;
+        }
+
+        /**
+         * Size of the message
+         * @return bytes of the message
+         */
+        public int size() {
+            return this.end - this.start;
+        }
+    };
+
+    /**
+     * Throw if the buffer does not contain n bytes from off
+     * @param buf the buffer
+     * @param off the absolute offset
+     * @param n the bytes needed
+     */
+    private static void check(ByteBuffer buf, int off, int n) {
+        if(off + n > buf.limit())
+            throw new IllegalArgumentException("truncated message");
+    }
+
+    /**
+     * Flyweight over an encoded contact, also usable as cursor over a list of contacts.
+     * Ids can be compared with NodeId without materializing the contact.
+     */
+    static final class ContactView {
+        private ByteBuffer buf;
+        private int offset; //!< offset of the current contact
+        private int bit_length;
+        private int id_bytes;
+        private int next_offset; //!< offset of the next contact of the list
+        private int remaining; //!< contacts of the list not yet visited
+        private int list_offset; //!< offset of the first contact of the list
+        private int count; //!< length of the list
+
+        /**
+         * Skip a contact validating it
+         * @param buf the buffer
+         * @param off the absolute offset of the contact
+         * @param bit_length the bit length of the id
+         * @return the offset after the contact
+         */
+        static int skip(ByteBuffer buf, int off, int bit_length) {
+            final int id_bytes = idBytes(bit_length);
+            check(buf, off, id_bytes + 1);
+            final int family = buf.get(off + id_bytes);
+            if(family != 4 && family != 6)
+                throw new IllegalArgumentException("invalid address family " + family);
+            final int len = id_bytes + 1 + (family == 4 ? 4 : 16) + 2;
+            check(buf, off, len);
+            return off + len;
+        }
+
+        /**
+         * Point to a single contact
+         * @param buf the buffer
+         * @param offset the absolute offset of the contact
+         * @param bit_length the bit length of the id
+         * @return this
+         */
+        ContactView at(ByteBuffer buf, int offset, int bit_length) {
+            this.buf = buf;
+            this.offset = offset;
+            this.bit_length = bit_length;
+            this.id_bytes = idBytes(bit_length);
+            this.remaining = 0;
+            this.next_offset = -1;
+            this.list_offset = -1;
+            this.count = 0;
+            return this;
+        }
+
+        /**
+         * Point before the first contact of a list
+         * @param buf the buffer
+         * @param offset the absolute offset of the first contact
+         * @param bit_length the bit length of the ids
+         * @param count the length of the list
+         * @return this
+         */
+        ContactView list(ByteBuffer buf, int offset, int bit_length, int count) {
+            this.at(buf, -1, bit_length);
+            this.list_offset = offset;
+            this.count = count;
+            return this.rewind();
+        }
+
+        /**
+         * Point again before the first contact of the list
+         * @return this
+         */
+        public ContactView rewind() {
+            this.offset = -1;
+            this.next_offset = this.list_offset;
+            this.remaining = this.count;
+            return this;
+        }
+
+        /**
+         * Length of the list
+         * @return the contacts of the list, visited or not
+         */
+        public int count() {
+            return this.count;
+        }
+
+        /**
+         * Move to the next contact of the list
+         * @return false if the list is over
+         */
+        public boolean next() {
+            if(this.remaining == 0)
+                return false;
+            this.remaining--;
+            this.offset = this.next_offset;
+            this.next_offset = skip(this.buf, this.offset, this.bit_length);
+            return true;
+        }
+
+        public int bitLength() {
+            return this.bit_length;
+        }
+
+        /**
+         * Get a word of the id, with the same layout of NodeId.word
+         * @param w index of the word (0 is the least significant)
+         * @return the word
+         */
+        public long idWord(int w) {
+            long res = 0;
+            final int first = w << 3;
+            final int last = Math.min(first + 8, this.id_bytes);
+            for(int i = first; i < last; i++)
+                res |= (this.buf.get(this.offset + i) & 0xFFL) << ((i - first) << 3);
+            return res;
+        }
+
+        /**
+         * Check the id without allocating
+         * @param id the id to compare
+         * @return true if the contact has this id
+         */
+        public boolean idEquals(NodeId id) {
+            final int n = Math.max(NodeId.wordsFor(this.bit_length), id.wordCount());
+            for(int w = 0; w < n; w++)
+                if(this.idWord(w) != id.word(w))
+                    return false;
+            return true;
+        }
+
+        /**
+         * Compare the xor distance of this contact and other from target, without allocating
+         * @param other the other id
+         * @param target the reference id
+         * @return negative if this contact is closer than other, positive if farther, 0 if equal
+         */
+        public int compareDistance(NodeId other, NodeId target) {
+            final int n = Math.max(NodeId.wordsFor(this.bit_length), target.wordCount());
+            for(int w = n - 1; w >= 0; w--) {
+                final long t = target.word(w);
+                final long da = this.idWord(w) ^ t;
+                final long db = other.word(w) ^ t;
+                if(da != db)
+                    return Long.compareUnsigned(da, db);
+            }
+            return 0;
+        }
+
+        public boolean isIPv4() {
+            return this.buf.get(this.offset + this.id_bytes) == 4;
+        }
+
+        /**
+         * Bytes of the contact
+         * @return the size of the contact on the wire
+         */
+        public int size() {
+            return skip(this.buf, this.offset, this.bit_length) - this.offset;
+        }
+
+        /**
+         * Copy the contact as it is encoded
+         * @param dst the destination, from its position
+         */
+        public void put(ByteBuffer dst) {
+            final int end = this.offset + this.size();
+            for(int i = this.offset; i < end; i++)
+                dst.put(this.buf.get(i));
+        }
+
+        public int port() {
+            return this.buf.getShort(this.offset + this.id_bytes + 1 + (this.isIPv4() ? 4 : 16)) & 0xFFFF;
+        }
+
+        /**
+         * Materialize the contact (this allocates)
+         * @return a new Contact
+         */
+        public Contact toContact() {
+            byte[] id = new byte[this.id_bytes];
+            for(int i = 0; i < id.length; i++)
+                id[i] = this.buf.get(this.offset + i);
+            byte[] addr = new byte[this.isIPv4() ? 4 : 16];
+            for(int i = 0; i < addr.length; i++)
+                addr[i] = this.buf.get(this.offset + this.id_bytes + 1 + i);
+            try {
+                return new Contact(InetAddress.getByAddress(addr), this.port(), NodeId.valueOf(id, 0, id.length, this.bit_length));
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("invalid address", e); // never, the length is checked
+            }
+        }
+    };
+}
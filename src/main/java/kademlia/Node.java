@@ -1,10 +1,30 @@
 package kademlia;
 
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
 
 import com.opencsv.CSVWriter;
 
@@ -14,31 +34,215 @@ import com.opencsv.CSVWriter;
 class Node {
 
     // visualization utility
-    private static long node_counter = 1; //!< used to check the chronological order of creation
+    private static final AtomicLong node_counter = new AtomicLong(1); //!< used to check the chronological order of creation
+    private static final int EVICTION_THREADS = 4; //!< threads of the shared eviction executor
+    private static final int EVICTION_QUEUE = 1 << 12; //!< pings waiting a thread of the shared eviction executor, the others are dropped
+    private static Executor shared_eviction = null; //!< created on first use
     public final long node_number; //!< this node join order
-    private long received_find_node; //!< how many find_node this Node has received
+    private final AtomicLong received_find_node; //!< how many find_node (FIND_VALUE included) this Node has received
 
     public final int alpha; //!< kademlia parameter (usually 3), used with Shortlist
     private final int k; //!< length of buckets
     public final Contact me; //!< Node contact information (and id)
-    private SocketNode socket;
-    private Klist[] routing_table;
+    private final Transport socket; //!< used to reach the other nodes
+    private volatile long rpc_timeout; //!< milliseconds waited for a response
+    private final RoutingTable routing_table; //!< the buckets
+    private volatile Executor lookup_executor; //!< if not null Lookup send the alpha requests concurrently
+    private volatile LookupMetrics metrics; //!< if not null every lookup is recorded in it
+    private final ConcurrentLinkedQueue<Contact> unverified; //!< restored contacts to ping, see validate
+    private volatile ValueStore store; //!< if not null the values received by STORE are kept here
+    private volatile LookupCache lookup_cache; //!< if not null the results of the lookups are reused
+    private volatile Executor eviction_executor; //!< the eviction pings are sent from it, if null see setEvictionExecutor
+    private final Set<Contact> probing; //!< least recently seen contacts being pinged, see addContact
+    private volatile Gossip gossip; //!< if not null the FIND requests carry only a few of the traversed nodes
+    private final AtomicLongArray bucket_seen; //!< milliseconds, the last time a contact of each bucket has been seen or a lookup ended in it
+    private volatile Refresh refresh; //!< if not null the stale buckets are refreshed by it
+    private final AtomicLong refreshed_buckets; //!< buckets refreshed by refreshStale
 
     /**
-     * The only Node constructor.
+     * Node with a routing table made of Klists.
      * @param socket used to send message to other nodes.
      * @param me Node contact information (and id)
      * @param k  //!< length of buckets
      * @param alpha //!< kademlia parameter
      */
-    public Node(SocketNode socket, Contact me, int k,  int alpha) {
+    public Node(Transport socket, Contact me, int k,  int alpha) {
+        this(socket, me, k, alpha, new KlistTable(me.id, k));
+    }
+
+    /**
+     * Node with a given routing table, as a CompactRoutingTable.
+     * @param socket used to send message to other nodes.
+     * @param me Node contact information (and id)
+     * @param k  //!< length of buckets
+     * @param alpha //!< kademlia parameter
+     * @param routing_table an empty table of buckets of length k, owned by me
+     */
+    public Node(Transport socket, Contact me, int k,  int alpha, RoutingTable routing_table) {
+        this(socket, me, k, alpha, routing_table, node_counter.getAndIncrement(), 0);
+    }
+
+    /**
+     * Node restored from a Checkpoint, with the counters it had.
+     * The following nodes are numbered after it.
+     * @param socket used to send message to other nodes.
+     * @param me Node contact information (and id)
+     * @param k  //!< length of buckets
+     * @param alpha //!< kademlia parameter
+     * @param routing_table an empty table of buckets of length k, owned by me
+     * @param node_number its join order
+     * @param received_find_node how many find_node it has received
+     */
+    Node(Transport socket, Contact me, int k,  int alpha, RoutingTable routing_table, long node_number, long received_find_node) {
         this.alpha = alpha;
         this.k = k;
         this.me = me;
         this.socket = socket;
-        this.routing_table = new Klist[me.id_bit_length];
-        this.node_number = node_counter++;
-        this.received_find_node = 0;
+        this.rpc_timeout = Transport.DEFAULT_TIMEOUT;
+        this.routing_table = routing_table;
+        this.node_number = node_number;
+        node_counter.accumulateAndGet(node_number + 1, Math::max);
+        this.received_find_node = new AtomicLong(received_find_node);
+        this.lookup_executor = null;
+        this.metrics = null;
+        this.unverified = new ConcurrentLinkedQueue<Contact>();
+        this.store = null;
+        this.lookup_cache = null;
+        this.eviction_executor = null;
+        this.probing = ConcurrentHashMap.newKeySet();
+        this.gossip = null;
+        this.bucket_seen = new AtomicLongArray(routing_table.length());
+        final long now = System.currentTimeMillis();
+        for(int i = 0; i < this.bucket_seen.length(); i++)
+            this.bucket_seen.set(i, now);
+        this.refresh = null;
+        this.refreshed_buckets = new AtomicLong(0);
+    }
+
+    /**
+     * Enable the parallel lookup.
+     * The requests of a Lookup are sent from the threads of executor, so at most
+     * alpha requests are in flight at the same time, and a new one is sent as soon as a
+     * response arrive. The executor must not be the one running the Lookup itself.
+     * With an asynchronous Transport a direct executor (Runnable::run) is enough.
+     * @param executor the executor used to send the requests, null to go back to the sequential lookup
+     */
+    public void setLookupExecutor(Executor executor) {
+        this.lookup_executor = executor;
+    }
+
+    /**
+     * Record the lookups of this node (usually shared by all the nodes)
+     * @param metrics where record the lookups, null to stop recording
+     */
+    public void setMetrics(LookupMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Keep the values sent by STORE, otherwise they are refused
+     * @param store where keep them, null to refuse the next ones
+     */
+    public void setStore(ValueStore store) {
+        this.store = store;
+    }
+
+    /**
+     * The values kept by this node
+     * @return the store, null if it does not keep values
+     */
+    public ValueStore store() {
+        return this.store;
+    }
+
+    /**
+     * Reuse the results of the lookups: a fresh result of the same target is returned
+     * without requests, an older one or the one of a near target seeds the candidates
+     * @param cache where keep the results, null to always start from the routing table
+     */
+    public void setLookupCache(LookupCache cache) {
+        this.lookup_cache = cache;
+    }
+
+    /**
+     * Send the pings of the least recently seen contacts of the full buckets from
+     * executor, so the requests that add contacts never wait them (with a synchronous
+     * Transport the ping would be answered by the thread adding the contact).
+     * By default they are sent from the thread adding the contact, that does not wait
+     * the pong, or from the shared eviction executor if the Transport is synchronous.
+     * Runnable::run sends them from the thread adding the contact in any case.
+     * @param executor the executor sending the pings, null for the default
+     */
+    public void setEvictionExecutor(Executor executor) {
+        this.eviction_executor = executor;
+    }
+
+    /**
+     * The eviction executor of the nodes that have not their own: a few daemon
+     * threads, stopped when idle
+     * @return the shared executor
+     */
+    static synchronized Executor sharedEvictionExecutor() {
+        if(shared_eviction == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(EVICTION_THREADS, EVICTION_THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(EVICTION_QUEUE), (r) -> {
+                    Thread t = new Thread(r, "eviction");
+                    t.setDaemon(true);
+                    return t;
+                });
+            pool.allowCoreThreadTimeOut(true);
+            shared_eviction = pool;
+        }
+        return shared_eviction;
+    }
+
+    /**
+     * Piggyback on the FIND requests only the sender and the few traversed nodes
+     * the receiver probably does not know, instead of all the traversed nodes
+     * @param gossip chooses the contacts sent, null to send all the traversed nodes
+     */
+    public void setGossip(Gossip gossip) {
+        this.gossip = gossip;
+    }
+
+    /**
+     * The choice of the contacts piggybacked on the requests
+     * @return the gossip, null if all the traversed nodes are sent
+     */
+    public Gossip gossip() {
+        return this.gossip;
+    }
+
+    /**
+     * The results of the lookups of this node
+     * @return the cache, null if the results are not reused
+     */
+    public LookupCache lookupCache() {
+        return this.lookup_cache;
+    }
+
+    /**
+     * The buckets of this node, to export them
+     * @return the routing table
+     */
+    RoutingTable routingTable() {
+        return this.routing_table;
+    }
+
+    /**
+     * How many FIND and FIND_VALUE requests this node has served
+     * @return the counter
+     */
+    public long receivedFindNode() {
+        return this.received_find_node.get();
+    }
+
+    /**
+     * Set how long wait for a response
+     * @param timeout milliseconds waited before considering a contact unreachable
+     */
+    public void setRpcTimeout(long timeout) {
+        this.rpc_timeout = timeout;
     }
 
     /**
@@ -53,25 +257,270 @@ class Node {
         this.Lookup(this.me.id);
     }
 
+    /**
+     * Asynchronous bootstrap procedure, see bootstrap
+     * @param bootstrap the first node inserted int he routing table
+     * @return a future completed when the first lookup end
+     */
+    public CompletableFuture<CandidateSet> bootstrapAsync(Contact bootstrap) {
+        ShortList list = new ShortList(this.k, this.me, this.me.id);
+        list.add(bootstrap);
+        this.updateKlist(list);
+        return this.lookupAsync(this.me.id);
+    }
+
+    /**
+     * Save the routing table, to restart with restore instead of bootstrap
+     * @param path the file, replaced atomically
+     * @return the number of contacts saved
+     * @throws IOException if the file cannot be written
+     */
+    public int save(String path) throws IOException {
+        return RoutingTableFile.write(path, this.me.id, this.k, this.routing_table);
+    }
+
+    /**
+     * Save the routing table periodically.
+     * A save at shutdown is up to the caller (as a shutdown hook calling save).
+     * @param scheduler where the saves run
+     * @param path the file, replaced at each save
+     * @param period_ms milliseconds between the saves
+     * @return the scheduled saves, cancel it to stop them
+     */
+    public ScheduledFuture<?> saveEvery(ScheduledExecutorService scheduler, String path, long period_ms) {
+        return scheduler.scheduleAtFixedRate(() -> {
+            try {
+                this.save(path);
+            } catch (IOException e) { // the previous file is still there, retry at the next period
+                System.err.println("cannot save the routing table in " + path + ": " + e.getMessage());
+            }
+        }, period_ms, period_ms, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Warm restart: fill the routing table from a file written by save, instead of bootstrap.
+     * The contacts are restored with the order and the times they had. The ones not seen
+     * in the last max_age milliseconds may be gone: they are queued to be pinged by validate.
+     * @param path the file
+     * @param max_age milliseconds after which a contact must be verified
+     * @return the number of contacts read
+     * @throws IOException if the file cannot be read, or it belongs to another node
+     */
+    public int restore(String path, long max_age) throws IOException {
+        RoutingTableFile file = RoutingTableFile.read(path);
+        if(!file.owner().equals(this.me.id))
+            throw new IOException("the routing table in " + path + " belongs to another node");
+        final long oldest = System.currentTimeMillis() - max_age;
+        for(RoutingTableFile.Entry e : file.entries()) {
+            if(e.contact.equals(this.me))
+                continue;
+            this.routing_table.restore(e.contact, e.last_seen);
+            if(e.last_seen < oldest)
+                this.unverified.add(e.contact);
+        }
+        return file.entries().size();
+    }
+
+    /**
+     * Ping some of the restored contacts not recently seen: the ones that respond are
+     * refreshed, the others are evicted from the routing table.
+     * @param max the maximum number of pings to send
+     * @return the number of pings sent
+     */
+    public int validate(int max) {
+        int sent = 0;
+        Contact c;
+        while(sent < max && (c = this.unverified.poll()) != null) {
+            final Contact who = c;
+            this.pingAsync(who).thenAccept(alive -> {
+                if(alive)
+                    this.refresh(who);
+                else
+                    this.routing_table.evict(who, null);
+            });
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Lookup a random id of each bucket not seen in the last stale_ms milliseconds
+     * (a bucket never used is not refreshed), all of them in a single sweep.
+     * @param stale_ms milliseconds after which a bucket is refreshed
+     * @return the buckets refreshed
+     */
+    public int refreshStale(long stale_ms) {
+        final long now = System.currentTimeMillis();
+        ArrayList<NodeId> targets = new ArrayList<NodeId>();
+        for(int i = 0; i < this.bucket_seen.length(); i++) {
+            if(now - this.bucket_seen.get(i) < stale_ms || this.routing_table.bucketSize(i) < 0)
+                continue;
+            this.bucket_seen.set(i, now);
+            targets.add(this.randomId(i));
+        }
+        if(!targets.isEmpty())
+            this.sweep(targets.toArray(new NodeId[targets.size()]));
+        this.refreshed_buckets.addAndGet(targets.size());
+        return targets.size();
+    }
+
+    /**
+     * A random id falling in a bucket
+     * @param i the bucket index
+     * @return an id sharing with me the bits above i, and not the i-th
+     */
+    private NodeId randomId(int i) {
+        final int bit_length = this.bucket_seen.length();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] words = new long[(bit_length + 63) / 64];
+        for(int w = 0; w < words.length; w++)
+            words[w] = random.nextLong();
+        words[i >>> 6] = (words[i >>> 6] & ~(1L << i)) | (~this.me.id.word(i >>> 6) & (1L << i));
+        return NodeId.valueOf(words, bit_length).withPrefix(this.me.id, i + 1);
+    }
+
+    /**
+     * Refresh the stale buckets, every time one of them becomes stale (see refreshStale).
+     * A single timer of wheel is used for each node, so a wheel can serve many nodes.
+     * @param wheel the timers, usually TimerWheel.shared()
+     * @param stale_ms milliseconds after which a bucket is refreshed
+     * @param executor where the lookups run, null to run them from the thread of the wheel
+     */
+    public void refreshEvery(TimerWheel wheel, long stale_ms, Executor executor) {
+        if(stale_ms <= 0)
+            throw new IllegalArgumentException("the refresh period must be positive");
+        this.stopRefresh();
+        Refresh r = new Refresh(wheel, stale_ms, executor);
+        this.refresh = r;
+        r.schedule(stale_ms);
+    }
+
+    /**
+     * Stop the refresh started by refreshEvery, the lookups running are completed
+     */
+    public void stopRefresh() {
+        Refresh r = this.refresh;
+        this.refresh = null;
+        if(r != null)
+            r.stop();
+    }
+
+    /**
+     * Buckets refreshed because stale, each one by a target of a sweep
+     * @return the counter
+     */
+    public long refreshedBuckets() {
+        return this.refreshed_buckets.get();
+    }
+
+    /**
+     * The refresh timer of a node, rescheduled when the next bucket becomes stale
+     */
+    private class Refresh implements Runnable {
+        private final TimerWheel wheel;
+        private final long stale_ms;
+        private final Executor executor;
+        private volatile boolean stopped;
+        private volatile TimerWheel.Timeout timer;
+
+        public Refresh(TimerWheel wheel, long stale_ms, Executor executor) {
+            this.wheel = wheel;
+            this.stale_ms = stale_ms;
+            this.executor = executor;
+            this.stopped = false;
+        }
+
+        public void schedule(long delay) {
+            if(!this.stopped)
+                this.timer = this.wheel.schedule(this::fire, delay);
+        }
+
+        public void stop() {
+            this.stopped = true;
+            TimerWheel.Timeout t = this.timer;
+            if(t != null)
+                t.cancel();
+        }
+
+        /**
+         * Called by the wheel, the lookups are handed off to the executor
+         */
+        private void fire() {
+            if(this.stopped)
+                return;
+            if(this.executor == null) {
+                this.run();
+                return;
+            }
+            try {
+                this.executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                this.stopped = true; // the executor is shut down
+            }
+        }
+
+        @Override
+        public void run() {
+            Node.this.refreshStale(this.stale_ms);
+            final long now = System.currentTimeMillis();
+            long next = this.stale_ms;
+            for(int i = 0; i < Node.this.bucket_seen.length(); i++)
+                if(Node.this.routing_table.bucketSize(i) >= 0)
+                    next = Math.min(next, Node.this.bucket_seen.get(i) + this.stale_ms - now);
+            this.schedule(Math.max(next, 1));
+        }
+    };
+
     /**
      * Simulate receiving a message
      * @param msg the message received
      * @return the response message
      */
     public Message receive(Message msg) {
+        JfrEvents.Receive event = JfrEvents.receive();
+        Message res;
         switch(msg.type) {
             case PING:
                 //refresh the sender contact in the routing table
-                this.getKbucket(msg.sender).refresh(msg.sender);
-                return new Message.Response(msg);
+                this.refresh(msg.sender);
+                res = new Message.Response(msg);
+                break;
             case FIND:
                 Message.FindRequest fr = (Message.FindRequest) msg;
-                this.received_find_node++;
-                this.updateKlist(fr.traversed_nodes);
-                return new Message.FindResponse(this.findNode(fr.id), msg);
+                this.received_find_node.incrementAndGet();
+                this.updateKlist(fr);
+                res = new Message.FindResponse(this.findNode(fr.id), msg);
+                break;
+            case FIND_VALUE:
+                Message.FindRequest fv = (Message.FindRequest) msg;
+                this.received_find_node.incrementAndGet();
+                this.updateKlist(fv);
+                ValueStore values = this.store;
+                byte[] value = values == null ? null : values.get(fv.id);
+                res = new Message.FindValueResponse(value, value == null ? this.findNode(fv.id) : new CandidateSet(this.k, fv.id), msg);
+                break;
+            case STORE:
+                Message.StoreRequest sr = (Message.StoreRequest) msg;
+                this.refresh(msg.sender);
+                ValueStore target = this.store;
+                res = new Message.StoreResponse(target != null && target.put(sr.key, sr.value, sr.ttl), msg);
+                break;
+            case BATCH:
+                Message.BatchRequest br = (Message.BatchRequest) msg;
+                ArrayList<Message> responses = new ArrayList<Message>(br.requests.size());
+                for(Message req : br.requests) {
+                    Message part = req.type == Message.kind.BATCH ? null : this.receive(req); // no nested batches
+                    if(part != null)
+                        responses.add(part);
+                }
+                res = new Message.BatchResponse(responses, msg);
+                break;
             default:
-                return null; //should never appen
+                res = null; //should never appen
         }
+        if(event != null)
+            event.end(msg, this.received_find_node.get());
+        return res;
     }
 
     /**
@@ -81,11 +530,35 @@ class Node {
      * @return if pong is received (true) or not (false)
      */
     public boolean ping(Contact who) {
+        JfrEvents.Ping event = JfrEvents.ping();
         Message msg = new Message(Message.kind.PING, this.me, who);
-        msg = this.socket.sendAndReceive(msg);
+        msg = this.socket.sendAndReceive(msg, this.rpc_timeout);
+        if(event != null)
+            event.end(this.me, who, msg != null);
+        LookupCache cache = this.lookup_cache;
+        if(msg == null && cache != null)
+            cache.invalidate(who);
         return msg != null;
     }
 
+    /**
+     * Asynchronous PING primitive.
+     * @param who to who send the ping
+     * @return a future completed with true if pong is received or false if the ping timed out
+     */
+    public CompletableFuture<Boolean> pingAsync(Contact who) {
+        Message msg = new Message(Message.kind.PING, this.me, who);
+        CompletableFuture<Boolean> alive = this.socket.send(msg, this.rpc_timeout).handle((res, err) -> err == null && res != null);
+        LookupCache cache = this.lookup_cache;
+        if(cache == null)
+            return alive;
+        return alive.thenApply(pong -> {
+            if(!pong)
+                cache.invalidate(who);
+            return pong;
+        });
+    }
+
     /**
      * Add all element of the Shortlist list, to the routing table.
      * using he utility addContact prevent duplicates.
@@ -100,39 +573,58 @@ class Node {
     }
 
     /**
-     * Used for debug (not used in the code).
-     * It provide a bitString for a BitSet
-     * @param b the bitset to stringify
-     * @return the stringified bitset
+     * Add the nodes traversed by a FIND to the routing table.
+     * If the request has been decoded they are still encoded, and each contact
+     * is materialized only when it's added.
+     * @param req the FIND or FIND_VALUE request
      */
-    @SuppressWarnings("unused") 
-    private static String toByteString(BitSet b) {
-        StringBuilder res = new StringBuilder();
-        for(int i = b.size(); i > 0; i--)
-            if(b.get(i))
-                res.append("1");
-            else
-                res.append("0");
-        return res.toString();
+    private void updateKlist(Message.FindRequest req) {
+        if(req.traversed_view == null) {
+            this.updateKlist(req.traversed_nodes);
+            return;
+        }
+
+        for(req.traversed_view.rewind(); req.traversed_view.next(); )
+            this.addContact(req.traversed_view.toContact());
     }
 
     /**
-     * Search for most appropriate bucket to contain the contact provided.
-     * @param contact the contact to chose the klist
-     * @return the appropriate klist to contain contact, null if contact is the same as this Node
+     * Add all the candidates of set to the routing table.
+     * @param set the candidates to add
      */
-    private Klist getKbucket(Contact contact) {
-        BitSet app = (BitSet) contact.id.clone();
-        app.xor(this.me.id);
-        final int pos = app.previousSetBit(app.length()-1);
-        if(pos == -1)
-            return null;
-        Klist klist = this.routing_table[pos];
-        if(klist == null) {
-            klist = new Klist(this.k);
-            this.routing_table[pos] = klist;
-        }
-        return klist;
+    private void updateKlist(CandidateSet set) {
+        if(set == null)
+            return;
+
+        for (CandidateSet.Candidate cand : set)
+            this.addContact(cand.contact);
+    }
+
+    /**
+     * Add the candidates returned by a node to the routing table, and
+     * remember that it knows them
+     * @param set the candidates to add
+     * @param from who returned them
+     */
+    private void updateKlist(CandidateSet set, Contact from) {
+        this.updateKlist(set);
+        Gossip g = this.gossip;
+        if(g != null)
+            g.known(from, set);
+    }
+
+    /**
+     * The traversed nodes to piggyback on a FIND request
+     * @param to the receiver of the request
+     * @param traversed the nodes traversed by the lookup
+     * @param copy if the request is sent while traversed keeps changing
+     * @return traversed (or its copy), or the contacts chosen by the gossip
+     */
+    private ShortList piggyback(Contact to, ShortList traversed, boolean copy) {
+        Gossip g = this.gossip;
+        if(g != null)
+            return g.select(this.me, to, traversed);
+        return copy ? (ShortList) traversed.clone() : traversed;
     }
 
     /**
@@ -140,26 +632,84 @@ class Node {
      * * the contact is not insert if is equal to the contact of this node;
      * * the contact is refreshed if present and reachable;
      * * the contact is added if there is room in the appropriate klist and is not present;
-     * * the contact is not inserted at all if the klist is full and the head of the klist is reachable.
+     * * if the klist is full the contact waits as a replacement while the head of the
+     *   klist is pinged: it's evicted if it does not respond.
+     * A head is pinged once at a time, never waiting the pong (see setEvictionExecutor).
      * @param contact the contact that wanna be add
      */
     private void addContact(Contact contact) {
         if(contact.equals(this.me))
             return;
-        Klist klist = this.getKbucket(contact);
-        if(klist == null) //should be prevented by previous equals, no bucket for same node
-            return;
-
-        Contact res = klist.addContact(contact); //check if there is a scapegoat
+        Contact res = this.routing_table.addContact(contact); //check if there is a scapegoat
+        if(res == null || res == contact || res.equals(contact))
+            this.seen(contact.id); // added or refreshed
         if(res != null) { //gotcha!
-            //if added is equal to scapegoat, refresh it, also if not but is reachable
-            if(res.equals(contact) || this.ping(res))
-                klist.addContact(res); // refresh this contact
-            else
-                klist.addContact(contact);  // old contact timed out, replace it with new contact
+            //if added is equal to scapegoat it's already refreshed, otherwise ping it
+            if(res == contact || res.equals(contact))
+                return;
+            if(!this.probing.add(res))
+                return; // already being pinged
+            Executor executor = this.eviction_executor;
+            if(executor == null && !this.socket.synchronous()) {
+                this.probe(res, contact); // sent, the pong completes it
+                return;
+            }
+            try {
+                (executor == null ? sharedEvictionExecutor() : executor).execute(() -> this.probe(res, contact));
+            } catch (RejectedExecutionException e) {
+                this.probing.remove(res); // overloaded, the next full bucket event will retry
+            }
         } //else is added
     }
 
+    /**
+     * Move a contact that responded to the tail of its bucket (or add it if there is room)
+     * @param c the contact
+     */
+    private void refresh(Contact c) {
+        this.routing_table.refresh(c);
+        this.seen(c.id);
+    }
+
+    /**
+     * Record an activity in the bucket of id
+     * @param id a contact seen, or the target of a lookup
+     */
+    private void seen(NodeId id) {
+        final int i = this.me.id.bucketIndex(id);
+        if(i >= 0)
+            this.bucket_seen.lazySet(i, System.currentTimeMillis());
+    }
+
+    /**
+     * The last time a contact of a bucket has been seen, or a lookup ended in it
+     * (at the creation of the node if never)
+     * @param i the bucket index
+     * @return milliseconds
+     */
+    public long bucketSeen(int i) {
+        return this.bucket_seen.get(i);
+    }
+
+    /**
+     * Ping the head of a full bucket, refresh it if it responds, evict it otherwise
+     * @param head the least recently seen contact of the bucket
+     * @param candidate the contact that did not find room
+     */
+    private void probe(Contact head, Contact candidate) {
+        // the caller does not wait the pong (unless the transport is synchronous)
+        JfrEvents.Eviction event = JfrEvents.eviction();
+        this.pingAsync(head).thenAccept(alive -> {
+            if(alive)
+                this.refresh(head);
+            else
+                this.routing_table.evict(head, candidate); // timed out, a replacement takes its place
+            this.probing.remove(head);
+            if(event != null)
+                event.end(this.me, head, candidate, !alive);
+        });
+    }
+
     /**
      * A primitive operation of kademlia. Query a Node for closest Contact to id.
      * The procedure consist into searching for the best fit klist, take alpha elements from it
@@ -168,97 +718,440 @@ class Node {
      * @param id the searched id
      * @return a list containing at most k elements, taken alpha from each bucket.
      */
-    private ShortList findNode(BitSet id) {
-        ShortList res = new ShortList(this.k, this.me, id);
+    CandidateSet findNode(NodeId id) {
+        CandidateSet res = new CandidateSet(this.k, id);
         int pos;
         if(this.me.id.equals(id)) {
             res.add(this.me); //if you are searching for me, here I am!
-            pos = this.routing_table.length / 2;    //start from half to take closest to me
+            pos = this.routing_table.length() / 2;    //start from half to take closest to me
         } else {
-            BitSet app = (BitSet) me.id.clone();
-            app.xor(id);
-            pos = app.previousSetBit(app.length()-1); //searching for the fittest klist position
+            pos = this.me.id.bucketIndex(id); //searching for the fittest klist position
         }
 
-        Klist list = null;
-        //iterate over klist backward to add element to shortlist until k elment are added
-        for(int j = 0; res.size() < this.k && j < this.routing_table.length; j++) {
-            list = this.routing_table[pos];
-            pos = (pos == 0 ? this.routing_table.length : pos) - 1;
-            if(list == null)
-                continue;
-            for(Contact c: list) {
-                res.add(c);
-                if(res.size() == this.k)
-                    return res;
-            }
+        //iterate over klist backward to add element to the set until k elment are added
+        for(int j = 0; res.size() < this.k && j < this.routing_table.length(); j++) {
+            this.routing_table.collect(pos, res, this.k);
+            pos = (pos == 0 ? this.routing_table.length() : pos) - 1;
         }
         return res;
     }
 
+    /**
+     * The initial candidates of a lookup: the closest contacts of the routing table,
+     * and the cached result of id or of a near target
+     * @param id the searched id
+     * @return the candidates
+     */
+    private CandidateSet startLookup(NodeId id) {
+        CandidateSet res = this.findNode(id);
+        LookupCache cache = this.lookup_cache;
+        if(cache != null)
+            cache.seed(res);
+        return res;
+    }
+
+    /**
+     * Record a completed lookup
+     * @param trace its counters
+     * @param candidates its result
+     */
+    private void finishLookup(LookupMetrics.Trace trace, CandidateSet candidates) {
+        trace.finish(candidates.closest(), candidates.target);
+        this.seen(candidates.target);
+        LookupCache cache = this.lookup_cache;
+        if(cache != null)
+            cache.put(candidates, trace.rpcs());
+    }
+
     /**
      * Searching for the node identified by id
      * alpha node are contacted for each step. This function is conceptually
      * recursive (repeat recursion until no best node then previous closes node is found).
-     * but for simplicity is written iterative
+     * but for simplicity is written iterative.
+     * With a lookup cache a fresh result of id is returned without requests.
      * @param id the id to be searched
+     * @return the closest contacts to id found
      */
-    public void Lookup(BitSet id) {
-        ShortList short_list = findNode(id);
-        short_list.sort();
+    public CandidateSet Lookup(NodeId id) {
+        LookupCache cache = this.lookup_cache;
+        CandidateSet cached = cache == null ? null : cache.get(id, this.k);
+        if(cached != null)
+            return cached;
+        Executor executor = this.lookup_executor;
+        if(executor != null)
+            return this.parallelLookup(id, executor);
+        return this.iterativeLookup(id, null);
+    }
+
+    /**
+     * The value found by a FIND_VALUE lookup
+     */
+    private static class FoundValue {
+        public byte[] value; //!< null until a node returns it
+    };
+
+    /**
+     * The sequential Lookup, also used by FIND_VALUE
+     * @param id the id to be searched
+     * @param found null for FIND_NODE, otherwise the requests are FIND_VALUE and the
+     * lookup stops when a node returns the value, that is stored in found
+     * @return the closest contacts to id found
+     */
+    private CandidateSet iterativeLookup(NodeId id, FoundValue found) {
+        LookupMetrics.Trace trace = new LookupMetrics.Trace(this.metrics);
+        CandidateSet candidates = this.startLookup(id);
         ShortList traversed = new ShortList(this.k, this.me, id);
         traversed.add(this.me);
-        ArrayList<Element> list = short_list.getAlpha(this.alpha);
+        ArrayList<CandidateSet.Candidate> list = candidates.nextUncontacted(this.alpha);
+        int round = 0;
         if(list.size() != 0) {
             Contact nearest;
             Contact new_nearest = list.get(0).contact;
             do {
+                JfrEvents.LookupRound event = JfrEvents.lookupRound();
+                final int timeouts = trace.timeouts();
+                final Contact closest = candidates.closest();
                 nearest = new_nearest;
                 /*
                     is wrote in functional style to switch easily to real parallel search
                     but in this simulation synchronization problem may arise
                     (but not in the real case in witch the nodes are separate distributed processes)
                 */
-                ShortList requested = list.stream().map(el -> {
-                    Message.FindRequest msg = new Message.FindRequest(id, traversed, this.me, el.contact);
-                    Message.FindResponse res = (Message.FindResponse) this.socket.sendAndReceive(msg);
+                List<CandidateSet> requested = list.stream().map(el -> {
+                    ShortList piggyback = this.piggyback(el.contact, traversed, false);
+                    Message.FindRequest msg = found == null ? new Message.FindRequest(id, piggyback, this.me, el.contact)
+                        : new Message.FindValueRequest(id, piggyback, this.me, el.contact);
+                    trace.sent();
+                    Message.FindResponse res = findResponse(this.socket.sendAndReceive(msg, this.rpc_timeout));
                     if(res == null)
                         return null;
-                    else{
-                        el.setContacted();
-                        return res.shortlist;
+                    if(found != null && found.value == null && res instanceof Message.FindValueResponse)
+                        found.value = ((Message.FindValueResponse) res).value;
+                    return res.candidates;
+                }).collect(Collectors.toList());
+
+                for(int i = 0; i < list.size(); i++) {
+                    CandidateSet.Candidate el = list.get(i);
+                    CandidateSet res = requested.get(i);
+                    if(res == null) {
+                        trace.timeout();
+                        candidates.fail(el); // not reachable, no more a candidate
+                        continue;
                     }
-                }).reduce((sl1, sl2) -> {
-                    sl1.addAll(sl2);
-                    return sl1;
-                }).get();
-
-                this.updateKlist(requested);
-                short_list.merge(requested);
-                //add contacted node to traversed
-                for (Element el : list) {
-                    if(el.getContacted())
-                        traversed.add(el);
+                    this.updateKlist(res, el.contact);
+                    Contact before = candidates.closest();
+                    candidates.addAll(res);
+                    trace.responded(candidates.closest() != before);
+                    traversed.add(el.contact); //add contacted node to traversed
                 }
-                list = short_list.getAlpha(this.alpha);
-                nearest = short_list.get(0).contact;
-            } while(nearest.equals(new_nearest) && list.size() != 0);
+                if(event != null)
+                    event.end(this.me, id, round, list.size(), trace.timeouts() - timeouts, candidates.closest() != closest);
+                round++;
+                if(found != null && found.value != null)
+                    break; // FIND_VALUE ends at the first node having the value
+                list = candidates.nextUncontacted(this.alpha);
+                nearest = candidates.closest();
+            } while(nearest != null && nearest.equals(new_nearest) && list.size() != 0);
             /*
                 The termination condition is when no more node to be contacted are present,
                 or when the closest node remain the same (no improvement).
             */
 
             //contact all te remaining node in the list anyway
-            for(; list.size() != 0; list = short_list.getAlpha(this.alpha)) {
-                for (Element el : list) {
-                    Message.FindRequest msg = new Message.FindRequest(id, traversed, this.me, el.contact);
-                    Message.FindResponse res = (Message.FindResponse) this.socket.sendAndReceive(msg);
-                    if(res != null)
-                        el.setContacted();
-                        this.updateKlist(res.shortlist);
+            for(; list.size() != 0 && (found == null || found.value == null); list = candidates.nextUncontacted(this.alpha)) {
+                JfrEvents.LookupRound event = JfrEvents.lookupRound();
+                final int timeouts = trace.timeouts();
+                for (CandidateSet.Candidate el : list) {
+                    ShortList piggyback = this.piggyback(el.contact, traversed, false);
+                    Message.FindRequest msg = found == null ? new Message.FindRequest(id, piggyback, this.me, el.contact)
+                        : new Message.FindValueRequest(id, piggyback, this.me, el.contact);
+                    trace.sent();
+                    Message.FindResponse res = findResponse(this.socket.sendAndReceive(msg, this.rpc_timeout));
+                    if(res != null) {
+                        trace.responded(false);
+                        this.updateKlist(res.candidates, el.contact);
+                        if(found != null && found.value == null && res instanceof Message.FindValueResponse)
+                            found.value = ((Message.FindValueResponse) res).value;
+                    } else {
+                        trace.timeout();
+                        candidates.fail(el);
+                    }
+                }
+                if(event != null)
+                    event.end(this.me, id, round, list.size(), trace.timeouts() - timeouts, false);
+                round++;
+            }
+        }
+        if(found == null)
+            this.finishLookup(trace, candidates);
+        else
+            trace.finish(candidates.closest(), id); // stopped at the value, not a complete result
+        return candidates;
+    }
+
+    /**
+     * STORE primitive: look up the k nodes closest to the key and ask them to keep the value.
+     * @param key the key of the value
+     * @param value the value
+     * @param ttl milliseconds the nodes keep the value
+     * @return how many nodes stored it
+     */
+    public int store(NodeId key, byte[] value, long ttl) {
+        int stored = 0;
+        for(CandidateSet.Candidate cand : this.Lookup(key)) {
+            Message res = this.socket.sendAndReceive(new Message.StoreRequest(key, value, ttl, this.me, cand.contact), this.rpc_timeout);
+            if(res instanceof Message.StoreResponse && ((Message.StoreResponse) res).stored)
+                stored++;
+        }
+        return stored;
+    }
+
+    /**
+     * FIND_VALUE primitive: the iterative lookup of the key, that stops at the first
+     * node returning the value. The own store is checked first.
+     * The rounds are the ones of Lookup without executor, also when one is set.
+     * @param key the key of the value
+     * @return the value, null if no node has it
+     */
+    public byte[] findValue(NodeId key) {
+        ValueStore local = this.store;
+        byte[] value = local == null ? null : local.get(key);
+        if(value != null)
+            return value;
+        FoundValue found = new FoundValue();
+        this.iterativeLookup(key, found);
+        return found.value;
+    }
+
+    /**
+     * Lookup many targets (as the ids of the buckets to refresh) in a single traversal.
+     * Each target has its own candidates, but the responses are merged into the
+     * candidates of all the targets, so the answers near a target help the ones near
+     * it too. A node is asked again only for a target falling in another of its
+     * buckets: its response would come from the same bucket, so it's just marked as
+     * contacted. A node that did not respond is never asked again.
+     * In each round every target sends alpha requests, until all the k closest
+     * candidates of every target have been contacted.
+     * The sweep is recorded in the metrics as a single lookup of its first target.
+     * @param targets the ids to be searched
+     * @return the closest contacts found for each target
+     */
+    public CandidateSet[] sweep(NodeId[] targets) {
+        LookupMetrics.Trace trace = new LookupMetrics.Trace(this.metrics);
+        CandidateSet[] sets = new CandidateSet[targets.length];
+        for(int i = 0; i < targets.length; i++)
+            sets[i] = this.startLookup(targets[i]);
+        HashMap<Contact, BitSet> answered = new HashMap<Contact, BitSet>(); // the buckets of each node that answered, offset by 1
+        HashSet<Contact> failed = new HashSet<Contact>();
+        ShortList traversed = new ShortList(this.k, this.me, this.me.id);
+        traversed.add(this.me);
+        boolean active = true;
+        while(active) {
+            active = false;
+            for(CandidateSet set : sets) {
+                for(CandidateSet.Candidate cand : set.nextUncontacted(this.alpha)) {
+                    active = true;
+                    if(cand.contact.equals(this.me))
+                        continue; // returned by the others, no need to ask
+                    if(failed.contains(cand.contact)) {
+                        set.fail(cand);
+                        continue;
+                    }
+                    final int bucket = cand.contact.id.bucketIndex(set.target) + 1;
+                    BitSet buckets = answered.get(cand.contact);
+                    if(buckets != null && buckets.get(bucket))
+                        continue; // already answered from that bucket
+                    Message.FindRequest msg = new Message.FindRequest(set.target, this.piggyback(cand.contact, traversed, false), this.me, cand.contact);
+                    trace.sent();
+                    Message.FindResponse res = findResponse(this.socket.sendAndReceive(msg, this.rpc_timeout));
+                    if(res == null) {
+                        trace.timeout();
+                        failed.add(cand.contact);
+                        set.fail(cand); // not reachable, no more a candidate
+                        continue;
+                    }
+                    if(buckets == null) {
+                        buckets = new BitSet();
+                        answered.put(cand.contact, buckets);
+                    }
+                    buckets.set(bucket);
+                    this.updateKlist(res.candidates, cand.contact);
+                    Contact before = set.closest();
+                    for(CandidateSet other : sets)
+                        other.addAll(res.candidates);
+                    trace.responded(set.closest() != before);
+                    traversed.add(cand.contact);
                 }
             }
         }
+        if(sets.length > 0)
+            trace.finish(sets[0].closest(), sets[0].target);
+        LookupCache cache = this.lookup_cache;
+        for(CandidateSet set : sets) {
+            this.seen(set.target);
+            if(cache != null)
+                cache.put(set, trace.rpcs() / sets.length); // an even share of the requests
+        }
+        return sets;
+    }
+
+    /**
+     * A response (or its absence) received during a parallel lookup
+     */
+    private static class Reply {
+        public final CandidateSet.Candidate candidate;
+        public final Message.FindResponse response;
+
+        public Reply(CandidateSet.Candidate candidate, Message.FindResponse response) {
+            this.candidate = candidate;
+            this.response = response;
+        }
+    };
+
+    /**
+     * The concurrent version of Lookup.
+     * At most alpha requests are in flight: every response is merged into the candidates
+     * as soon as it arrive, and the next not contacted candidate is immediately queried.
+     * It terminate when all the k closest candidates have been contacted.
+     * Only the calling thread touch the candidates, the executor just send the requests
+     * and the responses are collected through the futures of the Transport.
+     * @param id the id to be searched
+     * @param executor the executor that send the requests
+     * @return the closest contacts to id found
+     */
+    private CandidateSet parallelLookup(NodeId id, Executor executor) {
+        LookupMetrics.Trace trace = new LookupMetrics.Trace(this.metrics);
+        CandidateSet candidates = this.startLookup(id);
+        ShortList traversed = new ShortList(this.k, this.me, id);
+        traversed.add(this.me);
+        BlockingQueue<Reply> replies = new LinkedBlockingQueue<Reply>();
+        int in_flight = 0;
+        while(true) {
+            for(CandidateSet.Candidate cand : candidates.nextUncontacted(this.alpha - in_flight)) {
+                // every request get its own copy, traversed is updated while the others are in flight
+                final Message.FindRequest msg = new Message.FindRequest(id, this.piggyback(cand.contact, traversed, true), this.me, cand.contact);
+                CompletableFuture.supplyAsync(() -> msg, executor)
+                    .thenCompose(m -> this.socket.send(m, this.rpc_timeout))
+                    .whenComplete((res, err) -> replies.add(new Reply(cand, err == null ? findResponse(res) : null)));
+                trace.sent();
+                in_flight++;
+            }
+            if(in_flight == 0)
+                break;
+
+            Reply reply;
+            try {
+                reply = replies.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return candidates;
+            }
+            in_flight--;
+            if(reply.response == null) {
+                trace.timeout();
+                candidates.fail(reply.candidate); // not reachable, no more a candidate
+                continue;
+            }
+            this.updateKlist(reply.response.candidates, reply.candidate.contact);
+            Contact before = candidates.closest();
+            candidates.addAll(reply.response.candidates);
+            trace.responded(candidates.closest() != before);
+            traversed.add(reply.candidate.contact);
+        }
+        this.finishLookup(trace, candidates);
+        return candidates;
+    }
+
+    /**
+     * State of a lookup driven by the responses, see lookupAsync
+     */
+    private class AsyncLookup {
+        private final NodeId id;
+        private final CandidateSet candidates;
+        private final ShortList traversed;
+        private final CompletableFuture<CandidateSet> result;
+        private final LookupMetrics.Trace trace;
+        private int in_flight; //!< requests sent and not yet answered
+        private boolean sending; //!< next is running, the responses arrived meanwhile are handled by it
+        private boolean again; //!< a response arrived while sending
+
+        public AsyncLookup(NodeId id) {
+            this.id = id;
+            this.trace = new LookupMetrics.Trace(Node.this.metrics);
+            this.candidates = Node.this.startLookup(id);
+            this.traversed = new ShortList(Node.this.k, Node.this.me, id);
+            this.traversed.add(Node.this.me);
+            this.result = new CompletableFuture<CandidateSet>();
+            this.in_flight = 0;
+            this.sending = false;
+            this.again = false;
+        }
+
+        /**
+         * Send requests until alpha are in flight, complete the result when none is left.
+         * A synchronous transport call reply from send, so the loop is
+         * repeated instead of recursing.
+         */
+        public synchronized void next() {
+            if(this.sending) {
+                this.again = true;
+                return;
+            }
+            this.sending = true;
+            do {
+                this.again = false;
+                for(CandidateSet.Candidate cand : this.candidates.nextUncontacted(Node.this.alpha - this.in_flight)) {
+                    Message.FindRequest msg = new Message.FindRequest(this.id, Node.this.piggyback(cand.contact, this.traversed, true), Node.this.me, cand.contact);
+                    this.in_flight++;
+                    this.trace.sent();
+                    Node.this.socket.send(msg, Node.this.rpc_timeout)
+                        .whenComplete((res, err) -> this.reply(cand, err == null ? findResponse(res) : null));
+                }
+            } while(this.again);
+            this.sending = false;
+            if(this.in_flight == 0 && !this.result.isDone()) {
+                Node.this.finishLookup(this.trace, this.candidates);
+                this.result.complete(this.candidates);
+            }
+        }
+
+        /**
+         * Merge a response
+         * @param cand the contacted candidate
+         * @param response its response, null if it did not respond
+         */
+        public synchronized void reply(CandidateSet.Candidate cand, Message.FindResponse response) {
+            this.in_flight--;
+            if(response == null) {
+                this.trace.timeout();
+                this.candidates.fail(cand); // not reachable, no more a candidate
+            } else {
+                Node.this.updateKlist(response.candidates, cand.contact);
+                Contact before = this.candidates.closest();
+                this.candidates.addAll(response.candidates);
+                this.trace.responded(this.candidates.closest() != before);
+                this.traversed.add(cand.contact);
+            }
+            this.next();
+        }
+    };
+
+    /**
+     * Non blocking version of the parallel lookup.
+     * The same algorithm of Lookup with an executor, but driven by the completion
+     * of the responses instead of a waiting thread: it's meant for event driven
+     * transports (as SimulatedTransport), where blocking would stop the simulation.
+     * @param id the id to be searched
+     * @return a future completed with the closest contacts to id found
+     */
+    public CompletableFuture<CandidateSet> lookupAsync(NodeId id) {
+        LookupCache cache = this.lookup_cache;
+        CandidateSet cached = cache == null ? null : cache.get(id, this.k);
+        if(cached != null)
+            return CompletableFuture.completedFuture(cached);
+        AsyncLookup lookup = new AsyncLookup(id);
+        lookup.next();
+        return lookup.result;
     }
 
     /**
@@ -270,20 +1163,47 @@ class Node {
      * @param traversed the list of node traversed
      *  (provide a new Shortlist containing this.me for the first)
      */
-    public void recursiveFindNode(Contact nearest, final BitSet id, ShortList traversed) {
-        Message.FindRequest msg = new Message.FindRequest(id, traversed, this.me, nearest);
-        Message.FindResponse res = (Message.FindResponse) this.socket.sendAndReceive(msg);
-        if(res == null || res.shortlist.size() == 0)
-            return;
+    public void recursiveFindNode(Contact nearest, final NodeId id, ShortList traversed) {
+        LookupMetrics.Trace trace = new LookupMetrics.Trace(this.metrics);
+        trace.finish(this.recursiveFindNode(nearest, id, traversed, trace), id);
+    }
 
-        res.shortlist.sort();
-        this.updateKlist(res.shortlist);
-        Contact newNearest = res.shortlist.get(0).contact;
-        if(newNearest.distance(this.me) >= nearest.distance(this.me))
-            return;
+    /**
+     * The reply to a FIND request
+     * @param res the reply, null if the request timed out
+     * @return the reply, null if timed out or of another kind (a failed candidate)
+     */
+    private static Message.FindResponse findResponse(Message res) {
+        return res instanceof Message.FindResponse ? (Message.FindResponse) res : null;
+    }
 
+    /**
+     * A step of recursiveFindNode
+     * @param nearest the nearest known node
+     * @param id the id to be searched
+     * @param traversed the list of node traversed
+     * @param trace the counters of the whole lookup
+     * @return the nearest node found
+     */
+    private Contact recursiveFindNode(Contact nearest, final NodeId id, ShortList traversed, LookupMetrics.Trace trace) {
+        Message.FindRequest msg = new Message.FindRequest(id, this.piggyback(nearest, traversed, false), this.me, nearest);
+        trace.sent();
+        Message.FindResponse res = findResponse(this.socket.sendAndReceive(msg, this.rpc_timeout));
+        if(res == null)
+            trace.timeout();
+        if(res == null || res.candidates.size() == 0)
+            return nearest;
+
+        this.updateKlist(res.candidates, nearest);
+        Contact newNearest = res.candidates.closest();
+        if(newNearest.compareDistance(nearest, id) >= 0) {
+            trace.responded(false);
+            return nearest;
+        }
+
+        trace.responded(true);
         traversed.add(nearest);
-        recursiveFindNode(newNearest, id, traversed);
+        return recursiveFindNode(newNearest, id, traversed, trace);
     }
 
     private static String[] headers = {"SOURCE", "TARGET", "JOIN_NUMBER", "RECEIVED_FINDNODE"}; //!< default header for csw cytoscape compatible
@@ -295,7 +1215,7 @@ class Node {
      */
     public static CSVWriter getDefaultCSVWriter(String path) throws IOException
     {
-        CSVWriter writer = new CSVWriter(new FileWriter(path),  ',', CSVWriter.NO_QUOTE_CHARACTER, CSVWriter.DEFAULT_ESCAPE_CHARACTER, CSVWriter.DEFAULT_LINE_END);
+        CSVWriter writer = new CSVWriter(new BufferedWriter(new FileWriter(path), 1 << 16),  ',', CSVWriter.NO_QUOTE_CHARACTER, CSVWriter.DEFAULT_ESCAPE_CHARACTER, CSVWriter.DEFAULT_LINE_END);
         writer.writeNext(headers, true);
         return writer;
     }
@@ -350,7 +1270,7 @@ class Node {
      */
     public String toCSV() throws IOException {
         String hexId = this.me.idString() + "_" + this.node_number +".csv";
-        CSVWriter writer = new CSVWriter(new FileWriter(hexId));
+        CSVWriter writer = new CSVWriter(new BufferedWriter(new FileWriter(hexId)));
         String id = this.me.idByteString();
         List<String> buf = new ArrayList<String>();
         buf.add(this.me.idString());
@@ -358,7 +1278,7 @@ class Node {
         buf.add(id);
         write(writer, buf);
         for(int i = 0; i < this.me.id_bit_length; i++) {
-            if(this.routing_table[i] == null)
+            if(this.routing_table.bucketSize(i) < 0)
                 printN(buf, id.length(), 'N');
             else
                 printN(buf, i + 1, '*', id.substring(0, this.me.id_bit_length - i - 1));
@@ -368,11 +1288,12 @@ class Node {
         boolean loop = true;
 
         ArrayList<ArrayList<Contact>> contacts = new ArrayList<>();
-        for (Klist kl : this.routing_table) {
+        for (int i = 0; i < this.routing_table.length(); i++) {
+            Contact[] kl = this.routing_table.bucket(i);
             if(kl == null)
                 contacts.add(new ArrayList<>());
             else
-                contacts.add(new ArrayList<Contact>(kl));
+                contacts.add(new ArrayList<Contact>(Arrays.asList(kl)));
         }
         for(int i =0; loop; i++) {
             loop = false;
@@ -398,15 +1319,51 @@ class Node {
      */
     public void writeToCSV(CSVWriter csvw) {
         String [] row = new String[headers.length];
-        for (Klist klist : this.routing_table) {
+        for (int i = 0; i < this.routing_table.length(); i++) {
+            Contact[] klist = this.routing_table.bucket(i);
             if(klist != null)
                 for(Contact c: klist){
                     row[0] = this.me.idString();
                     row[1] = c.idString();
                     row[2] = Long.toString(this.node_number);
-                    row[3] = Long.toString(this.received_find_node);
+                    row[3] = Long.toString(this.received_find_node.get());
                     csvw.writeNext(row);
                 }
         }
     }
-};
\ No newline at end of file
+
+    /**
+     * Append the header of writeToCSV, as the CSVWriter of getDefaultCSVWriter write it
+     * @param sb where append the line
+     */
+    public static void appendCSVHeader(StringBuilder sb) {
+        for(int i = 0; i < headers.length; i++) {
+            if(i > 0)
+                sb.append(',');
+            sb.append(headers[i]);
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * Append the rows of writeToCSV, without a CSVWriter (used by CsvExporter).
+     * The output is the same, the fields never need quotes.
+     * @param sb where append the rows
+     */
+    public void appendCSV(StringBuilder sb) {
+        final int start = sb.length();
+        this.me.appendIdString(sb);
+        final String source = sb.substring(start);
+        sb.setLength(start);
+        final long received = this.received_find_node.get();
+        for (int i = 0; i < this.routing_table.length(); i++) {
+            Contact[] klist = this.routing_table.bucket(i);
+            if(klist != null)
+                for(Contact c: klist) {
+                    sb.append(source).append(',');
+                    c.appendIdString(sb);
+                    sb.append(',').append(this.node_number).append(',').append(received).append('\n');
+                }
+        }
+    }
+};
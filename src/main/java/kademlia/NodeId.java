@@ -0,0 +1,257 @@
+package kademlia;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Immutable Kademlia identifier of fixed bit length.
+ * The bits are packed in a long[] with the same layout of BitSet
+ * (bit i is stored in words[i / 64] at position i % 64), so the most significant
+ * bit of the id is the bit bit_length - 1.
+ * All the distance operations work word by word without allocating.
+ */
+final class NodeId implements Comparable<NodeId> {
+    private final long[] words; //!< packed bits, never exposed
+    public final int bit_length; //!< max length of the id
+    private final int hash; //!< cached hashCode
+
+    /**
+     * Wrap the given words, they must be already trimmed to bit_length.
+     * @param words the packed bits (the array is not copied)
+     * @param bit_length max length of the id
+     */
+    private NodeId(long[] words, int bit_length) {
+        this.words = words;
+        this.bit_length = bit_length;
+        this.hash = Arrays.hashCode(words);
+    }
+
+    /**
+     * Number of long needed to store bit_length bits.
+     * @param bit_length bits to store
+     * @return the number of words
+     */
+    static int wordsFor(int bit_length) {
+        return (bit_length + 63) >>> 6;
+    }
+
+    /**
+     * Clear the bits over bit_length of the last word.
+     * @param words words to trim in place
+     * @param bit_length max length of the id
+     * @return the same words
+     */
+    private static long[] trim(long[] words, int bit_length) {
+        final int rem = bit_length & 63;
+        if(rem != 0 && words.length > 0)
+            words[words.length - 1] &= (1L << rem) - 1;
+        return words;
+    }
+
+    /**
+     * Build an id from a BitSet, bits over bit_length are dropped.
+     * @param bits the bits of the id
+     * @param bit_length max length of the id
+     * @return the new id
+     */
+    public static NodeId valueOf(BitSet bits, int bit_length) {
+        return valueOf(bits.toLongArray(), bit_length);
+    }
+
+    /**
+     * Build an id from packed words (BitSet layout), bits over bit_length are dropped.
+     * @param longs the words, copied
+     * @param bit_length max length of the id
+     * @return the new id
+     */
+    public static NodeId valueOf(long[] longs, int bit_length) {
+        return new NodeId(trim(Arrays.copyOf(longs, wordsFor(bit_length)), bit_length), bit_length);
+    }
+
+    /**
+     * Build an id from little endian bytes (BitSet.valueOf(byte[]) layout),
+     * bits over bit_length are dropped.
+     * @param bytes the bytes of the id, byte 0 holds bits 0-7
+     * @param offset where the id start in bytes
+     * @param length how many bytes read
+     * @param bit_length max length of the id
+     * @return the new id
+     */
+    public static NodeId valueOf(byte[] bytes, int offset, int length, int bit_length) {
+        long[] w = new long[wordsFor(bit_length)];
+        final int n = Math.min(length, w.length * 8);
+        for(int i = 0; i < n; i++)
+            w[i >>> 3] |= (bytes[offset + i] & 0xFFL) << ((i & 7) << 3);
+        return new NodeId(trim(w, bit_length), bit_length);
+    }
+
+    /**
+     * Number of words used by this id.
+     * @return the number of long packing the id
+     */
+    public int wordCount() {
+        return this.words.length;
+    }
+
+    /**
+     * Get a packed word, 0 if out of range.
+     * @param i index of the word (0 is the least significant)
+     * @return the word
+     */
+    public long word(int i) {
+        return i < this.words.length ? this.words[i] : 0L;
+    }
+
+    /**
+     * Get a bit of the id.
+     * @param i the bit index, 0 is the least significant
+     * @return the bit value
+     */
+    public boolean get(int i) {
+        return i < this.bit_length && (this.words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * Copy this id replacing the bits from from_bit (included) up to bit_length
+     * with the ones of prefix. Used to build ids falling in a given bucket.
+     * @param prefix the id providing the most significant bits
+     * @param from_bit the first bit taken from prefix
+     * @return the new id
+     */
+    public NodeId withPrefix(NodeId prefix, int from_bit) {
+        long[] w = this.words.clone();
+        for(int i = from_bit >>> 6; i < w.length; i++) {
+            final long mask = i == from_bit >>> 6 ? -1L << from_bit : -1L;
+            w[i] = (w[i] & ~mask) | (prefix.word(i) & mask);
+        }
+        return new NodeId(trim(w, this.bit_length), this.bit_length);
+    }
+
+    /**
+     * The xor distance as a new id.
+     * Only for who need to store the distance, to compare use compareDistance.
+     * @param other the other end
+     * @return this xor other
+     */
+    public NodeId xor(NodeId other) {
+        long[] w = new long[this.words.length];
+        for(int i = 0; i < w.length; i++)
+            w[i] = this.words[i] ^ other.word(i);
+        return new NodeId(w, this.bit_length);
+    }
+
+    /**
+     * The 64 least significant bits of the xor distance.
+     * It's the exact distance only for ids up to 64 bits.
+     * @param other the other end
+     * @return the low word of this xor other
+     */
+    public long xorLow(NodeId other) {
+        return this.word(0) ^ other.word(0);
+    }
+
+    /**
+     * Index of the most significant bit in which this id and other differ.
+     * It's the index of the bucket that other occupy in the routing table of this
+     * (number of leading equal bits is bit_length - 1 - index).
+     * @param other the other id
+     * @return the bit index, -1 if the ids are equal
+     */
+    public int bucketIndex(NodeId other) {
+        final int n = Math.max(this.words.length, other.wordCount());
+        for(int i = n - 1; i >= 0; i--) {
+            final long x = this.word(i) ^ other.word(i);
+            if(x != 0)
+                return (i << 6) + 63 - Long.numberOfLeadingZeros(x);
+        }
+        return -1;
+    }
+
+    /**
+     * Compare the xor distance of a and b from target, without allocation.
+     * @param a first id
+     * @param b second id
+     * @param target the reference id
+     * @return negative if a is closer than b, positive if b is closer, 0 if equals
+     */
+    public static int compareDistance(NodeId a, NodeId b, NodeId target) {
+        final int n = Math.max(Math.max(a.words.length, b.words.length), target.words.length);
+        for(int i = n - 1; i >= 0; i--) {
+            final long t = target.word(i);
+            final long da = a.word(i) ^ t;
+            final long db = b.word(i) ^ t;
+            if(da != db)
+                return Long.compareUnsigned(da, db);
+        }
+        return 0;
+    }
+
+    /**
+     * Compare as unsigned numbers, used to order precomputed distances.
+     */
+    @Override
+    public int compareTo(NodeId other) {
+        final int n = Math.max(this.words.length, other.words.length);
+        for(int i = n - 1; i >= 0; i--) {
+            final long a = this.word(i);
+            final long b = other.word(i);
+            if(a != b)
+                return Long.compareUnsigned(a, b);
+        }
+        return 0;
+    }
+
+    /**
+     * Same layout of BitSet.toByteArray: little endian without trailing zero bytes.
+     * @return the bytes of the id
+     */
+    public byte[] toByteArray() {
+        int len = this.words.length * 8;
+        while(len > 0 && this.byteAt(len - 1) == 0)
+            len--;
+        byte[] res = new byte[len];
+        for(int i = 0; i < len; i++)
+            res[i] = this.byteAt(i);
+        return res;
+    }
+
+    /**
+     * Get a byte of the id.
+     * @param i index of the byte, 0 is the least significant
+     * @return the byte
+     */
+    public byte byteAt(int i) {
+        return (byte) (this.word(i >>> 3) >>> ((i & 7) << 3));
+    }
+
+    /**
+     * Conversion to BitSet, for legacy code.
+     * @return a new BitSet with the same bits
+     */
+    public BitSet toBitSet() {
+        return BitSet.valueOf(this.words);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj)
+            return true;
+        if(!(obj instanceof NodeId))
+            return false;
+        NodeId other = (NodeId) obj;
+        return this.hash == other.hash && Arrays.equals(this.words, other.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        for(int i = this.bit_length - 1; i >= 0; i--)
+            res.append(this.get(i) ? '1' : '0');
+        return res.toString();
+    }
+}
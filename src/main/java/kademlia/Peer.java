@@ -0,0 +1,192 @@
+package kademlia;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
+
+@Command(mixinStandardHelpOptions = true, version = "v1.0.0", header = "Kademlia UDP peer.", description = {
+    "Run one or more Kademlia nodes over UDP in this process.",
+    "Each node listen on its own port, its id is the hash of address and port,",
+    "so a bootstrap node is identified by its address only.",
+    })
+public class Peer {
+    @Option(names = { "-m", "--id_bit_length" }, paramLabel = "bit_len", defaultValue = "160", description = "Number of bits of the identifiers of the Kademlia network (default: ${DEFAULT-VALUE}).")
+    public int bit_len;
+
+    @Option(names = { "-k"}, paramLabel = "k", defaultValue = "20", description = "The dimension of the kbucket (default: ${DEFAULT-VALUE}).")
+    public int k;
+
+    @Option(names = { "-a", "--alpha"}, paramLabel = "alpha", defaultValue = "3", description = "The number of parallel requests of a lookup (default: ${DEFAULT-VALUE}).")
+    public int alpha;
+
+    @Option(names = { "-b", "--bind"}, paramLabel = "address", defaultValue = "127.0.0.1", description = "The local address (default: ${DEFAULT-VALUE}).")
+    public String bind;
+
+    @Option(names = { "-p", "--port"}, paramLabel = "port", defaultValue = "0", description = "Port of the first node, the others use the following ports. 0 to use free ports (default: ${DEFAULT-VALUE}).")
+    public int port;
+
+    @Option(names = { "-c", "--count"}, paramLabel = "n_nodes", defaultValue = "1", description = "Number of nodes started in this process (default: ${DEFAULT-VALUE}).")
+    public int count;
+
+    @Option(names = { "--bootstrap"}, paramLabel = "address:port", description = "A node already in the network, otherwise the first node of this process is used.")
+    public String bootstrap;
+
+    @Option(names = { "-l", "--lookups"}, paramLabel = "n_lookups", defaultValue = "0", description = "Random lookups performed by each node after the join, their latency is reported (default: ${DEFAULT-VALUE}).")
+    public int lookups;
+
+    @Option(names = { "-t", "--timeout"}, paramLabel = "ms", defaultValue = "2000", description = "Milliseconds waited for a response (default: ${DEFAULT-VALUE}).")
+    public long timeout;
+
+    @Option(names = { "--serve"}, defaultValue = "false", description = "Keep serving requests after the lookups (default: ${DEFAULT-VALUE}).")
+    public boolean serve;
+
+    @Option(names = { "--table"}, paramLabel = "path", description = "File of the routing table: restored at start instead of the bootstrap, saved periodically and at exit. With more nodes, each one use path-port.")
+    public String table;
+
+    @Option(names = { "--save_every"}, paramLabel = "ms", defaultValue = "60000", description = "Milliseconds between the saves of the routing table (default: ${DEFAULT-VALUE}).")
+    public long save_every;
+
+    @Option(names = { "--max_age"}, paramLabel = "ms", defaultValue = "600000", description = "Restored contacts not seen in the last ms milliseconds are pinged, and evicted if gone (default: ${DEFAULT-VALUE}).")
+    public long max_age;
+
+    public static void main(String[] args) {
+        Peer peer = new Peer();
+        CommandLine commandLine = new CommandLine(peer);
+        try {
+            commandLine.parseArgs(args);
+            if (commandLine.isUsageHelpRequested()) {
+                commandLine.usage(System.out);
+                return;
+            }
+            peer.start();
+        } catch (ParameterException ex) {
+            System.err.println("Somthing wrong in parameters: " + ex.getMessage());
+        } catch (IOException ex) {
+            System.err.println("IO error: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parse an address:port string
+     * @param address the string
+     * @return the contact of the node listening there
+     * @throws IOException if the address is not valid
+     */
+    private Contact parseContact(String address) throws IOException {
+        final int sep = address.lastIndexOf(':');
+        if(sep <= 0)
+            throw new IOException("invalid address " + address);
+        InetAddress ip = InetAddress.getByName(address.substring(0, sep));
+        return new Contact(ip, Integer.parseInt(address.substring(sep + 1)), this.bit_len);
+    }
+
+    /**
+     * The file of the routing table of a node
+     * @param node the node
+     * @return the path, null if the tables are not saved
+     */
+    private String tablePath(Node node) {
+        if(this.table == null)
+            return null;
+        return this.count == 1 ? this.table : this.table + "-" + node.me.port;
+    }
+
+    /**
+     * Warm restart of a node from its saved routing table, and ping of the contacts not
+     * recently seen
+     * @param node the node
+     * @return true if the table has been restored, false if the node must bootstrap
+     */
+    private boolean restore(Node node) {
+        String path = this.tablePath(node);
+        if(path == null || !new File(path).exists())
+            return false;
+        try {
+            int restored = node.restore(path, this.max_age);
+            int pinged = node.validate(restored);
+            System.out.println("restored " + restored + " contacts from " + path + ", " + pinged + " to verify");
+            return restored > 0;
+        } catch (IOException e) {
+            System.err.println("cannot restore the routing table from " + path + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void start() throws IOException, InterruptedException {
+        InetAddress ip = InetAddress.getByName(this.bind);
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        ArrayList<UdpTransport> transports = new ArrayList<UdpTransport>();
+        Contact boot = this.bootstrap == null ? null : this.parseContact(this.bootstrap);
+        long lookup_ns = 0;
+        long done = 0;
+        ScheduledExecutorService saver = null;
+        try {
+            for(int i = 0; i < this.count; i++) {
+                UdpTransport transport = new UdpTransport(new InetSocketAddress(ip, this.port == 0 ? 0 : this.port + i));
+                transports.add(transport);
+                Node node = new Node(transport, new Contact(ip, transport.port(), this.bit_len), this.k, this.alpha);
+                node.setRpcTimeout(this.timeout);
+                node.setLookupExecutor(Runnable::run);  // the transport is asynchronous
+                transport.bind(node);
+                if(!this.restore(node) && boot != null) // a restored node is already in the network
+                    node.bootstrap(boot);
+                if(boot == null)
+                    boot = node.me;
+                nodes.add(node);
+            }
+            System.out.println("started " + nodes.size() + " nodes, bootstrap " + boot);
+            if(this.table != null) {
+                saver = Executors.newSingleThreadScheduledExecutor((r) -> {
+                    Thread t = new Thread(r, "table-save");
+                    t.setDaemon(true);
+                    return t;
+                });
+                for(Node node : nodes)
+                    node.saveEvery(saver, this.tablePath(node), this.save_every);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    for(Node node : nodes) {
+                        try {
+                            node.save(this.tablePath(node));
+                        } catch (IOException e) {
+                            System.err.println("cannot save the routing table in " + this.tablePath(node) + ": " + e.getMessage());
+                        }
+                    }
+                }, "table-save-exit"));
+            }
+
+            for(Node node : nodes) {
+                for(int i = 0; i < this.lookups; i++) {
+                    long[] words = new long[NodeId.wordsFor(this.bit_len)];
+                    for(int w = 0; w < words.length; w++)
+                        words[w] = ThreadLocalRandom.current().nextLong();
+                    long start = System.nanoTime();
+                    node.Lookup(NodeId.valueOf(words, this.bit_len));
+                    lookup_ns += System.nanoTime() - start;
+                    done++;
+                }
+            }
+            if(done > 0)
+                System.out.println(done + " lookups, mean latency " + (lookup_ns / done / 1000) + " us");
+
+            if(this.serve)
+                Thread.currentThread().join(); // until killed
+        } finally {
+            if(saver != null)
+                saver.shutdownNow(); // the shutdown hook does the last save
+            for(UdpTransport transport : transports)
+                transport.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package kademlia;
+
+import java.util.Arrays;
+
+/**
+ * The buckets of a Node, the i-th bucket contains the contacts whose highest
+ * bit different from the owner id is i.
+ * Each bucket keeps at most k contacts, from the least recently seen.
+ */
+interface RoutingTable {
+
+    /**
+     * Number of buckets
+     * @return the id bit length
+     */
+    int length();
+
+    /**
+     * Add a contact to its bucket, with the semantic of Klist.addContact:
+     * * if present it's moved to the tail and returned;
+     * * else if the bucket is not full it's added and null is returned;
+     * * otherwise the least recently seen contact is returned, to be pinged, and
+     *   c may be kept as a replacement: the returned contact stays in the bucket until
+     *   it's refreshed or evicted.
+     * @param c the contact, must not be the owner
+     * @return null if added, c if already present, otherwise the contact to ping
+     */
+    Contact addContact(Contact c);
+
+    /**
+     * Move the contact to the tail of its bucket, or add it if there is room
+     * (used on receiving a ping). The owner is ignored.
+     * @param c contact to be refreshed
+     */
+    void refresh(Contact c);
+
+    /**
+     * Add a contact seen at a given time if there is room, as refresh
+     * (used restoring a saved table). By default the time is not kept.
+     * @param c the contact
+     * @param seen the last time it has been seen, milliseconds
+     */
+    default void restore(Contact c, long seen) {
+        this.refresh(c);
+    }
+
+    /**
+     * Remove a contact from its bucket (a contact that did not respond)
+     * @param c the contact
+     * @return true if it was present
+     */
+    boolean remove(Contact c);
+
+    /**
+     * Remove a contact that did not respond to a ping, and fill its room with a
+     * replacement. By default the table keeps no replacements and candidate is added.
+     * @param dead the contact
+     * @param candidate the contact refused because the bucket was full, can be null
+     * @return true if dead was present
+     */
+    default boolean evict(Contact dead, Contact candidate) {
+        final boolean present = this.remove(dead);
+        if(candidate != null)
+            this.addContact(candidate);
+        return present;
+    }
+
+    /**
+     * Content of a bucket, from the least recently seen.
+     * It must not be modified.
+     * @param i the bucket index
+     * @return the contacts, null if the bucket has never been used
+     */
+    Contact[] bucket(int i);
+
+    /**
+     * Size of a bucket, without getting its content
+     * @param i the bucket index
+     * @return the number of contacts, -1 if the bucket has never been used
+     */
+    default int bucketSize(int i) {
+        Contact[] contacts = this.bucket(i);
+        return contacts == null ? -1 : contacts.length;
+    }
+
+    /**
+     * Content of a bucket with the last time each contact has been seen.
+     * By default the times are not kept, and they are 0.
+     * @param i the bucket index
+     * @param seen filled with the times in milliseconds, at least k long
+     * @return the contacts as bucket(i)
+     */
+    default Contact[] bucket(int i, long[] seen) {
+        Contact[] contacts = this.bucket(i);
+        if(contacts != null)
+            Arrays.fill(seen, 0, contacts.length, 0);
+        return contacts;
+    }
+
+    /**
+     * Add the contacts of a bucket to res until it contains max candidates
+     * @param i the bucket index
+     * @param res where add the contacts
+     * @param max stop when res reach this size
+     */
+    default void collect(int i, CandidateSet res, int max) {
+        Contact[] contacts = this.bucket(i);
+        if(contacts == null)
+            return;
+        for(int j = 0; j < contacts.length && res.size() < max; j++)
+            res.add(contacts[j]);
+    }
+}
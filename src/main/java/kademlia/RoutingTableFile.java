@@ -0,0 +1,182 @@
+package kademlia;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Saved routing table of a node, to restart it without a new bootstrap.
+ *
+ * Layout, little endian, fixed size records so the file can be mapped and read in place:
+ * * header (32 bytes): magic "KADT", version (u16), reserved (u16), bit_length (u32),
+ *   k (u32), count (u32), id_words (u32), saved_at (i64, milliseconds);
+ * * the owner id: id_words longs, as NodeId.word;
+ * * count contacts, from the farthest bucket and in each bucket from the least
+ *   recently seen: id (id_words longs), last_seen (i64, milliseconds, 0 if unknown),
+ *   port (u32), address length (u8, 4 or 16), address (16 bytes), 3 bytes of padding.
+ *
+ * The file is written to a temporary file and then renamed, so a crash while
+ * saving leaves the previous table.
+ */
+class RoutingTableFile {
+    public static final int MAGIC = 0x5444414B; //!< "KADT" in little endian
+    public static final short VERSION = 1;
+    static final int HEADER = 32;
+
+    /**
+     * A saved contact
+     */
+    static class Entry {
+        public final Contact contact;
+        public final long last_seen; //!< milliseconds, 0 if unknown
+
+        public Entry(Contact contact, long last_seen) {
+            this.contact = contact;
+            this.last_seen = last_seen;
+        }
+    };
+
+    private final NodeId owner;
+    private final int k;
+    private final long saved_at; //!< milliseconds
+    private final ArrayList<Entry> entries; //!< in the order to restore them
+
+    private RoutingTableFile(NodeId owner, int k, long saved_at, ArrayList<Entry> entries) {
+        this.owner = owner;
+        this.k = k;
+        this.saved_at = saved_at;
+        this.entries = entries;
+    }
+
+    public NodeId owner() {
+        return this.owner;
+    }
+
+    public int k() {
+        return this.k;
+    }
+
+    public long savedAt() {
+        return this.saved_at;
+    }
+
+    /**
+     * The saved contacts, to be added in order
+     * @return the entries
+     */
+    public ArrayList<Entry> entries() {
+        return this.entries;
+    }
+
+    private static int recordSize(int words) {
+        return words * 8 + 32;
+    }
+
+    /**
+     * Save a routing table
+     * @param path the file, replaced
+     * @param owner the id of the node
+     * @param k length of the buckets
+     * @param table the buckets
+     * @return the number of contacts written
+     * @throws IOException if the file cannot be written
+     */
+    public static int write(String path, NodeId owner, int k, RoutingTable table) throws IOException {
+        final int words = owner.wordCount();
+        long[] seen = new long[k];
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        for(int i = table.length() - 1; i >= 0; i--) {
+            Contact[] bucket = table.bucket(i, seen);
+            if(bucket != null)
+                for(int j = 0; j < bucket.length; j++)
+                    entries.add(new Entry(bucket[j], seen[j]));
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + words * 8 + entries.size() * recordSize(words)).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC).putShort(VERSION).putShort((short) 0);
+        buf.putInt(owner.bit_length).putInt(k).putInt(entries.size()).putInt(words);
+        buf.putLong(System.currentTimeMillis());
+        for(int w = 0; w < words; w++)
+            buf.putLong(owner.word(w));
+        for(Entry e : entries) {
+            for(int w = 0; w < words; w++)
+                buf.putLong(e.contact.id.word(w));
+            buf.putLong(e.last_seen);
+            buf.putInt(e.contact.port);
+            byte[] addr = e.contact.ip.getAddress();
+            buf.put((byte) addr.length);
+            buf.put(addr);
+            Buffers.position(buf, buf.position() + 16 - addr.length + 3);
+        }
+        Buffers.flip(buf);
+
+        Path target = Paths.get(path);
+        Path tmp = Paths.get(path + ".tmp");
+        try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(buf.hasRemaining())
+                channel.write(buf);
+            channel.force(false);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries.size();
+    }
+
+    /**
+     * Read a saved table, mapping the file
+     * @param path the file
+     * @return the table
+     * @throws IOException if the file cannot be read or it's not valid
+     */
+    public static RoutingTableFile read(String path) throws IOException {
+        try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if(size < HEADER || size > Integer.MAX_VALUE)
+                throw new IOException("invalid routing table size " + size);
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            if(map.getInt(0) != MAGIC)
+                throw new IOException("not a routing table");
+            if(map.getShort(4) != VERSION)
+                throw new IOException("unsupported routing table version " + map.getShort(4));
+            final int bit_length = map.getInt(8);
+            final int k = map.getInt(12);
+            final int count = map.getInt(16);
+            final int words = map.getInt(20);
+            final long saved_at = map.getLong(24);
+            if(bit_length <= 0 || words != NodeId.wordsFor(bit_length) || count < 0
+                    || size != HEADER + words * 8L + (long) count * recordSize(words))
+                throw new IOException("corrupted routing table header");
+
+            long[] id = new long[words];
+            Buffers.position(map, HEADER);
+            for(int w = 0; w < words; w++)
+                id[w] = map.getLong();
+            NodeId owner = NodeId.valueOf(id, bit_length);
+            ArrayList<Entry> entries = new ArrayList<Entry>(count);
+            byte[] addr16 = new byte[16];
+            for(int i = 0; i < count; i++) {
+                for(int w = 0; w < words; w++)
+                    id[w] = map.getLong();
+                final long last_seen = map.getLong();
+                final int port = map.getInt();
+                final int len = map.get();
+                if(len != 4 && len != 16)
+                    throw new IOException("invalid address length " + len);
+                map.get(addr16);
+                Buffers.position(map, map.position() + 3);
+                InetAddress ip = InetAddress.getByAddress(len == 16 ? addr16 : Arrays.copyOf(addr16, 4));
+                entries.add(new Entry(new Contact(ip, port, NodeId.valueOf(id, bit_length)), last_seen));
+            }
+            return new RoutingTableFile(owner, k, saved_at, entries);
+        }
+    }
+}
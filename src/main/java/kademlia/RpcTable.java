@@ -0,0 +1,120 @@
+package kademlia;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Requests waiting for a response, indexed by their rpc_id.
+ * Used by the asynchronous transports to correlate the responses and to expire
+ * the requests that timed out.
+ */
+class RpcTable {
+    private static final ScheduledThreadPoolExecutor timer; //!< one thread for the timeouts of all the tables
+    static {
+        timer = new ScheduledThreadPoolExecutor(1, (r) -> {
+            Thread t = new Thread(r, "rpc-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * A request in flight
+     */
+    private static class Pending {
+        public final CompletableFuture<Message> future;
+        public final Contact receiver; //!< who must respond
+        public final Message.kind type; //!< a response has the type of its request
+        public volatile ScheduledFuture<?> timeout;
+
+        public Pending(Contact receiver, Message.kind type) {
+            this.future = new CompletableFuture<Message>();
+            this.receiver = receiver;
+            this.type = type;
+        }
+
+        /**
+         * Stop the timer, if already scheduled (the response can arrive before).
+         */
+        public void cancelTimeout() {
+            ScheduledFuture<?> t = this.timeout;
+            if(t != null)
+                t.cancel(false);
+        }
+    };
+
+    private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<Long, Pending>();
+
+    /**
+     * Register a request before sending it.
+     * @param mes the request
+     * @param timeout milliseconds after which the future fail with a TimeoutException
+     * @return the future that will be completed by complete
+     */
+    public CompletableFuture<Message> register(Message mes, long timeout) {
+        final Pending p = new Pending(mes.receiver, mes.type);
+        final Long key = mes.rpc_id;
+        this.pending.put(key, p);
+        p.timeout = timer.schedule(() -> {
+            if(this.pending.remove(key, p))
+                p.future.completeExceptionally(new TimeoutException("no response from " + p.receiver));
+        }, timeout, TimeUnit.MILLISECONDS);
+        return p.future;
+    }
+
+    /**
+     * Complete the request matching the response.
+     * Responses not expected (late, duplicated, from another contact or of another
+     * kind) are discarded, the request keeps waiting.
+     * @param response the response received
+     * @return true if a request has been completed
+     */
+    public boolean complete(Message response) {
+        final Long key = response.rpc_id;
+        Pending p = this.pending.get(key);
+        if(p == null || !p.receiver.equals(response.sender) || p.type != response.type || !this.pending.remove(key, p))
+            return false;
+        p.cancelTimeout();
+        return p.future.complete(response);
+    }
+
+    /**
+     * Fail immediately a request, for example because it cannot be sent.
+     * @param mes the request
+     * @param cause the reason
+     */
+    public void fail(Message mes, Throwable cause) {
+        Pending p = this.pending.remove(mes.rpc_id);
+        if(p == null)
+            return;
+        p.cancelTimeout();
+        p.future.completeExceptionally(cause);
+    }
+
+    /**
+     * Fail all the requests in flight
+     * @param cause the reason
+     */
+    public void failAll(Throwable cause) {
+        for(Long key : this.pending.keySet()) {
+            Pending p = this.pending.remove(key);
+            if(p != null) {
+                p.cancelTimeout();
+                p.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * How many requests are waiting a response
+     * @return the number of requests in flight
+     */
+    public int size() {
+        return this.pending.size();
+    }
+}
@@ -1,7 +1,6 @@
 package kademlia;
 
 import java.util.ArrayList;
-import java.util.BitSet;
 
 /**
  * Contact wrapper to provide contact check.
@@ -60,14 +59,14 @@ class Element {
 class ShortList extends ArrayList<Element>{
     private static final long serialVersionUID = 4193002791038011048L;
     private final int k;
-    public final BitSet target; //!< the owner, used to sort the Shortlist
+    public final NodeId target; //!< the owner, used to sort the Shortlist
 
     /**
      * Shortlist shrinkable to k owned by owner
      * @param k shrinking dimension
      * @param target target of this shortlist
      */
-    public ShortList(int k, Contact owner, BitSet target){
+    public ShortList(int k, Contact owner, NodeId target){
         this.k = k;
         this.ensureCapacity(k);
         this.target = target;
@@ -86,6 +85,14 @@ class ShortList extends ArrayList<Element>{
         this.add(new Element(cont));
     }
 
+    /**
+     * Add a contact known not to be in the list, without the duplicate check
+     * @param cont contact to add
+     */
+    public void append(Contact cont) {
+        this.add(new Element(cont));
+    }
+
     /**
      * Add all element of another shortlist.
      * Using the other public method add, it prevent duplicated
@@ -103,13 +110,7 @@ class ShortList extends ArrayList<Element>{
      * Sort using the xor distance metric provided by Contact
      */
     public void sort() {
-        this.sort((Element x, Element y) -> {
-            if(x.contact.distance(target) > y.contact.distance(target))
-                return 1; 
-            if(x.contact.distance(target) < y.contact.distance(target))
-                return -1;
-            return 0; 
-        });
+        this.sort((Element x, Element y) -> x.contact.compareDistance(y.contact, this.target));
     }
 
     /**
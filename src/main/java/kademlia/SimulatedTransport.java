@@ -0,0 +1,94 @@
+package kademlia;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * In memory Transport driven by an EventLoop.
+ * The delivery of a request, of its response and the timeout are events scheduled
+ * on the virtual clock (the timeout only when the response will not arrive in time),
+ * the delays come from a LatencyModel. Unknown receivers and lost messages are
+ * detected only by the timeout, as in a real network.
+ * Like the loop, it must be used only by the thread running the loop.
+ */
+class SimulatedTransport implements Transport {
+    private final EventLoop loop;
+    private final Map<NodeId, Node> all_nodes; //!< the reachable nodes
+    private final LatencyModel latency;
+    private final IdGenerator random; //!< source of the delays
+    private long sent; //!< messages sent, requests and responses
+    private long lost; //!< messages not delivered
+
+    /**
+     * @param loop the loop executing the deliveries
+     * @param all_nodes a Map containing all the reachable Node, indexed by their id
+     * @param latency the delays of the links
+     * @param random source of the delays, to reproduce the simulation
+     */
+    public SimulatedTransport(EventLoop loop, Map<NodeId, Node> all_nodes, LatencyModel latency, IdGenerator random) {
+        this.loop = loop;
+        this.all_nodes = all_nodes;
+        this.latency = latency;
+        this.random = random;
+        this.sent = 0;
+        this.lost = 0;
+    }
+
+    /**
+     * Delay of a message, counting it
+     * @param from sender
+     * @param to receiver
+     * @return microseconds, LatencyModel.LOST if lost
+     */
+    private long delay(Contact from, Contact to) {
+        this.sent++;
+        long d = this.latency.delay(from, to, this.random);
+        if(d == LatencyModel.LOST)
+            this.lost++;
+        return d;
+    }
+
+    @Override
+    public CompletableFuture<Message> send(Message mes, long timeout) {
+        final CompletableFuture<Message> res = new CompletableFuture<Message>();
+        final long deadline = this.loop.now() + timeout * 1000;
+        final Runnable expire = () -> res.completeExceptionally(new TimeoutException("no response from " + mes.receiver));
+
+        // the fate of each message is known when it's sent: the timeout is scheduled only
+        // if the response cannot arrive in time, so the queue holds no cancelled events
+        final long there = this.delay(mes.sender, mes.receiver);
+        if(there == LatencyModel.LOST || this.loop.now() + there >= deadline)
+            this.loop.scheduleAt(deadline, expire);
+        if(there == LatencyModel.LOST)
+            return res;
+        this.loop.schedule(there, () -> {
+            final Node node = this.all_nodes.get(mes.receiver.id);
+            final Message response = node == null ? null : node.receive(mes);
+            if(res.isDone())
+                return; // already timed out
+            final long back = response == null ? LatencyModel.LOST : this.delay(response.sender, response.receiver);
+            if(back == LatencyModel.LOST || this.loop.now() + back > deadline)
+                this.loop.scheduleAt(deadline, expire);
+            else
+                this.loop.schedule(back, () -> res.complete(response));
+        });
+        return res;
+    }
+
+    /**
+     * The virtual clock of the simulation
+     * @return the loop
+     */
+    public EventLoop loop() {
+        return this.loop;
+    }
+
+    public long sent() {
+        return this.sent;
+    }
+
+    public long lost() {
+        return this.lost;
+    }
+}
@@ -1,14 +1,27 @@
 package kademlia;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.InetAddress;
+import java.io.Writer;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.Map;
-import com.opencsv.CSVWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
 
 import picocli.CommandLine;
 import picocli.CommandLine.ArgGroup;
@@ -19,15 +32,13 @@ import picocli.CommandLine.Option;
 import picocli.CommandLine.Spec;
 import picocli.CommandLine.Model.CommandSpec;
 
-import static net.andreinc.mockneat.unit.types.Ints.ints;
-import static net.andreinc.mockneat.unit.networking.IPv6s.ipv6s;
-
 @Command(mixinStandardHelpOptions = true, version = "v1.0.0", header = "Kademlia Simulator.", description = {
     "This tool will produce a pari of csv files:",
     "\t* routing_table*.csv containing tuple <SOURCE, TARGET, JOIN_NODE, N_RECIVED_FINDNODE> compatible with cytoscape;",
     "\t* the other it's a routing table of the first kademlia node.",
     })
 public class Simulator {
+    private static final long CHECKPOINT_WAIT = 60; //!< seconds the exit waits for the checkpoint
     @Spec public CommandSpec spec;
     @ArgGroup(exclusive = false, multiplicity = "1")
     public Real_params params;
@@ -55,6 +66,93 @@ public class Simulator {
     @Option(names = { "-r", "--recursive"}, defaultValue = "false", required = true, description = "Select between a fullLookup function and a lighter recursivefindNode. (default: ${DEFAULT-VALUE}).")
     public boolean recursive;
 
+    @Option(names = { "-P", "--parallel_lookup"}, defaultValue = "false", required = false, description = "Send the alpha requests of each lookup concurrently, ignored with --recursive (default: ${DEFAULT-VALUE}).")
+    public boolean parallel_lookup;
+
+    @Option(names = { "-t", "--threads"}, paramLabel = "n_threads", defaultValue = "1", required = false, description = "Number of threads joining the nodes concurrently, 1 for the sequential simulation (default: ${DEFAULT-VALUE}).")
+    public int threads;
+
+    @Option(names = { "-s", "--seed"}, paramLabel = "seed", required = false, description = "Seed of the node addresses, of the bootstrap choices and of the lookup targets, otherwise will be random.")
+    public Long seed;
+
+    @Option(names = { "-f", "--fast_ids"}, defaultValue = "false", required = false, description = "Draw the node ids directly from the seeded generator instead of hashing address and port (default: ${DEFAULT-VALUE}).")
+    public boolean fast_ids;
+
+    @Option(names = { "-c", "--compact"}, defaultValue = "false", required = false, description = "Store the routing tables as contact numbers in int arrays, to simulate more nodes with the same memory (default: ${DEFAULT-VALUE}).")
+    public boolean compact;
+
+    @Option(names = { "-z", "--gzip"}, defaultValue = "false", required = false, description = "Compress the csv output, .gz is appended to the filenames (default: ${DEFAULT-VALUE}).")
+    public boolean gzip;
+
+    @Option(names = { "--snapshot"}, paramLabel = "n_nodes", defaultValue = "0", required = false, description = "Write also the csv of the network every n_nodes joined nodes, in the background. 0 to disable (default: ${DEFAULT-VALUE}).")
+    public int snapshot;
+
+    @Option(names = { "-e", "--events"}, defaultValue = "false", required = false, description = "Discrete event simulation: the messages take a simulated time and the lookup latencies are reported, --threads, --parallel_lookup and --recursive are ignored (default: ${DEFAULT-VALUE}).")
+    public boolean events;
+
+    @Option(names = { "--latency"}, paramLabel = "min:max", defaultValue = "10:100", required = false, description = "With --events, range of the one way delay of each link in milliseconds (default: ${DEFAULT-VALUE}).")
+    public String latency;
+
+    @Option(names = { "--jitter"}, paramLabel = "ms", defaultValue = "5", required = false, description = "With --events, maximum milliseconds randomly added to each message (default: ${DEFAULT-VALUE}).")
+    public long jitter;
+
+    @Option(names = { "--loss"}, paramLabel = "probability", defaultValue = "0", required = false, description = "With --events, probability of losing a message (default: ${DEFAULT-VALUE}).")
+    public double loss;
+
+    @Option(names = { "--join_interval"}, paramLabel = "ms", defaultValue = "10", required = false, description = "With --events, milliseconds between two joins (default: ${DEFAULT-VALUE}).")
+    public long join_interval;
+
+    @Option(names = { "--binary"}, defaultValue = "false", required = false, description = "Write also a binary snapshot of the routing tables (.kgs), convertible to the csv with GraphSnapshot (default: ${DEFAULT-VALUE}).")
+    public boolean binary;
+
+    @Option(names = { "--metrics"}, paramLabel = "filename", required = false, description = "Write the histograms of hops, messages, timeouts, contacted nodes, final distance and duration of the lookups to a json file (with --events the duration is simulated).")
+    public String metrics_output;
+
+    @Option(names = { "--checkpoint"}, paramLabel = "filename", required = false, description = "Save the whole network to this file at the end, every --checkpoint_every joined nodes and when interrupted (Ctrl-C), to continue it with --resume. Only for the sequential simulation.")
+    public String checkpoint_output;
+
+    @Option(names = { "--checkpoint_every"}, paramLabel = "n_nodes", defaultValue = "0", required = false, description = "With --checkpoint, save also every n_nodes joined nodes. 0 to disable (default: ${DEFAULT-VALUE}).")
+    public int checkpoint_every;
+
+    @Option(names = { "--resume"}, paramLabel = "filename", required = false, description = "Continue the simulation saved by --checkpoint up to n_nodes nodes, with the same parameters. With --seed the next choices are drawn from the new seed, to branch more experiments from the same network.")
+    public String resume;
+
+    @Option(names = { "--values"}, paramLabel = "n_values", defaultValue = "0", required = false, description = "After the joins, STORE n_values values from random nodes, then FIND_VALUE each of them from another random node, and print the throughput and the stores usage. Not with --events (default: ${DEFAULT-VALUE}).")
+    public int values;
+
+    @Option(names = { "--value_size"}, paramLabel = "bytes", defaultValue = "256", required = false, description = "With --values, size of each value (default: ${DEFAULT-VALUE}).")
+    public int value_size;
+
+    @Option(names = { "--store_capacity"}, paramLabel = "bytes", defaultValue = "1048576", required = false, description = "With --values, direct memory of the value store of each node (default: ${DEFAULT-VALUE}).")
+    public long store_capacity;
+
+    @Option(names = { "--ttl"}, paramLabel = "ms", defaultValue = "3600000", required = false, description = "With --values, milliseconds the values are kept (default: ${DEFAULT-VALUE}).")
+    public long ttl;
+
+    @Option(names = { "--lookup_cache"}, paramLabel = "entries", defaultValue = "0", required = false, description = "Cache in each node the results of its last lookups, to answer the repeated ones without requests and to start the others from the nearest cached target. 0 to disable (default: ${DEFAULT-VALUE}).")
+    public int lookup_cache;
+
+    @Option(names = { "--cache_ttl"}, paramLabel = "ms", defaultValue = "1000", required = false, description = "With --lookup_cache, milliseconds a result is returned without requests; it seeds the lookups for 10 times as long (default: ${DEFAULT-VALUE}).")
+    public long cache_ttl;
+
+    @Option(names = { "--batch_window"}, paramLabel = "us", defaultValue = "0", required = false, description = "Send the PING and FIND requests from a node to the same node within us microseconds as a single message. Useful with --threads or --parallel_lookup, not with --events. 0 to disable (default: ${DEFAULT-VALUE}).")
+    public long batch_window;
+
+    @Option(names = { "--batch_size"}, paramLabel = "n_requests", defaultValue = "16", required = false, description = "With --batch_window, maximum requests of a message (default: ${DEFAULT-VALUE}).")
+    public int batch_size;
+
+    @Option(names = { "--eviction_threads"}, paramLabel = "n_threads", defaultValue = "0", required = false, description = "Ping the least recently seen contact of the full buckets from n_threads threads, so the nodes serve the requests without waiting the pongs. The runs are not reproducible anymore. Not with --events, where the pings never block. 0 to ping from the thread adding the contact (default: ${DEFAULT-VALUE}).")
+    public int eviction_threads;
+
+    @Option(names = { "--gossip"}, paramLabel = "n_contacts", defaultValue = "0", required = false, description = "Piggyback on the FIND requests the sender and at most n_contacts of the traversed nodes that the receiver probably does not know, instead of all of them. 0 to send all the traversed nodes (default: ${DEFAULT-VALUE}).")
+    public int gossip;
+
+    @Option(names = { "--refresh"}, paramLabel = "ms", defaultValue = "0", required = false, description = "Lookup a random id of the buckets of each node not seen for ms milliseconds, from the shared timer wheel, while the simulation runs. The runs are not reproducible anymore. Not with --events. 0 to disable (default: ${DEFAULT-VALUE}).")
+    public long refresh;
+
+    @Option(names = { "--sweep"}, required = false, description = "Do the refresh lookups of a joining node, one for each bucket, in a single traversal that asks each node once. Not with --recursive nor --events.")
+    public boolean sweep;
+
     public static void main(String[] args) {
         Simulator simulator = new Simulator();
         CommandLine commandLine = new CommandLine(simulator);
@@ -66,8 +164,29 @@ public class Simulator {
                 return;
             }
 
-            if (simulator.params.bit_len <= 0 || simulator.params.n_nodes <= 0) 
+            if (simulator.params.bit_len <= 0 || simulator.params.n_nodes <= 0 || simulator.threads <= 0) 
                 throw new ParameterException(simulator.spec.commandLine(), "Arguments must be greater than 0");
+            if (!simulator.latency.matches("\\d+(:\\d+)?") || simulator.jitter < 0 || simulator.loss < 0 || simulator.loss > 1)
+                throw new ParameterException(simulator.spec.commandLine(), "Invalid latency model: latency must be min:max milliseconds, loss a probability");
+            if ((simulator.checkpoint_output != null || simulator.resume != null) && (simulator.events || simulator.threads > 1))
+                throw new ParameterException(simulator.spec.commandLine(), "--checkpoint and --resume need the sequential simulation (no --events nor --threads)");
+            if (simulator.checkpoint_every < 0 || (simulator.checkpoint_every > 0 && simulator.checkpoint_output == null))
+                throw new ParameterException(simulator.spec.commandLine(), "--checkpoint_every needs --checkpoint and a positive number of nodes");
+            if (simulator.values < 0 || (simulator.values > 0 && (simulator.events || simulator.value_size < 0
+                    || simulator.store_capacity < simulator.pageSize() || simulator.ttl <= 0)))
+                throw new ParameterException(simulator.spec.commandLine(), "--values needs no --events, a store_capacity of at least " + simulator.pageSize() + " bytes and a positive ttl");
+            if (simulator.lookup_cache < 0 || simulator.cache_ttl < 0)
+                throw new ParameterException(simulator.spec.commandLine(), "--lookup_cache and --cache_ttl must not be negative");
+            if (simulator.batch_window < 0 || (simulator.batch_window > 0 && (simulator.events || simulator.batch_size < 2)))
+                throw new ParameterException(simulator.spec.commandLine(), "--batch_window needs no --events and a batch_size of at least 2");
+            if (simulator.eviction_threads < 0 || (simulator.eviction_threads > 0 && simulator.events))
+                throw new ParameterException(simulator.spec.commandLine(), "--eviction_threads must not be negative, nor used with --events");
+            if (simulator.gossip < 0)
+                throw new ParameterException(simulator.spec.commandLine(), "--gossip must not be negative");
+            if (simulator.refresh < 0 || (simulator.refresh > 0 && simulator.events))
+                throw new ParameterException(simulator.spec.commandLine(), "--refresh must not be negative, nor used with --events");
+            if (simulator.sweep && (simulator.recursive || simulator.events))
+                throw new ParameterException(simulator.spec.commandLine(), "--sweep cannot be used with --recursive nor --events");
             if (Math.pow(2, simulator.params.bit_len) < simulator.params.n_nodes) 
                 throw new ParameterException(simulator.spec.commandLine(), "bit len insufficient for this number of nodes [" + simulator.params.bit_len +
                     "] ->" + Math.pow(2, simulator.params.bit_len) + "<" + simulator.params.n_nodes + "<-");
@@ -101,18 +220,29 @@ public class Simulator {
         }
     }
 
-    Map<BitSet, Node> all_nodes = new HashMap<BitSet, Node>();
-    ArrayList<Node> joined_nodes = new ArrayList<Node>();
-    SocketNode socket = new SocketNode(all_nodes);
+    Map<NodeId, Node> all_nodes = new ConcurrentHashMap<NodeId, Node>(); //!< read concurrently by the joining nodes
+    ArrayList<Node> joined_nodes = new ArrayList<Node>(); //!< in creation order, only the main thread modify it
+    ArrayList<Node> join_order = new ArrayList<Node>(); //!< the nodes that completed the join, in that order; guarded by itself
+    Transport socket = new SocketNode(all_nodes);
+    ExecutorService lookup_executor = null; //!< shared by all the nodes when parallel_lookup is set
+    ExecutorService eviction_executor = null; //!< shared by all the nodes when eviction_threads is set
+    Executor eviction = Runnable::run; //!< sends the eviction pings of all the nodes, from the thread adding the contact unless eviction_threads is set
+    ExecutorService refresh_executor = null; //!< runs the refresh lookups of all the nodes when refresh is set
+    IdGenerator random = null; //!< seeded source of contacts, bootstraps and lookup targets
+    ContactDirectory directory = null; //!< shared by the routing tables when compact is set
+    ArrayList<CompletableFuture<Void>> snapshots = new ArrayList<CompletableFuture<Void>>(); //!< snapshots being written; guarded by itself
+    LookupMetrics metrics = null; //!< shared by all the nodes when metrics_output is set
+    LongSupplier clock = System::currentTimeMillis; //!< milliseconds, the simulated time with events
+    volatile boolean checkpoint_requested = false; //!< set by the shutdown hook, the main thread save and stop
+    CountDownLatch checkpoint_written = new CountDownLatch(1); //!< released when the requested checkpoint is saved
     
     /**
      * Generate a random id
-     * @return return a random bitset representing the id
-     * @throws UnknownHostException should never be thrown (caused by random generated ip)
-     * @throws UnsupportedEncodingException should never be thrown (caused by random generated ip)
+     * @param random the source of the bits
+     * @return return a random id
      */
-    private BitSet randomBitset() throws UnknownHostException, UnsupportedEncodingException {
-        return Contact.hash(InetAddress.getByName(ipv6s().get()), ints().range(0, 65535).get(), this.params.bit_len);
+    private NodeId randomId(IdGenerator random) {
+        return random.nextId(this.params.bit_len);
     }
 
     /**
@@ -124,32 +254,444 @@ public class Simulator {
     private Node nodeJoining() throws UnknownHostException, UnsupportedEncodingException{
         Contact c;
         do {
-            c = new Contact(this.params.bit_len);    //generate a random contact not already in use
+            c = this.random.nextContact(this.params.bit_len, !this.fast_ids);    //generate a random contact not already in use
         } while(this.all_nodes.containsKey(c.id));
-        Node n = new Node(this.socket, c, this.k, this.alpha);
+        Node n;
+        if(this.directory != null)
+            n = new Node(this.socket, c, this.k, this.alpha, new CompactRoutingTable(this.directory, c.id, this.k));
+        else
+            n = new Node(this.socket, c, this.k, this.alpha);
+        n.setLookupExecutor(this.lookup_executor);
+        n.setEvictionExecutor(this.eviction);
+        n.setMetrics(this.metrics);
+        if(this.values > 0)
+            n.setStore(new ValueStore(this.store_capacity, this.pageSize()));
+        if(this.lookup_cache > 0)
+            n.setLookupCache(new LookupCache(this.lookup_cache, this.cache_ttl, 10 * this.cache_ttl, this.clock));
+        if(this.gossip > 0)
+            n.setGossip(new Gossip(this.gossip));
+        if(this.refresh > 0)
+            n.refreshEvery(TimerWheel.shared(), this.refresh, this.refresh_executor);
         this.all_nodes.put(n.me.id, n);
         this.joined_nodes.add(n);
         return n;
     }
+
+    /**
+     * Page of the value stores: 4 KiB, or the value size rounded up to a power of 2 if larger
+     * @return the page size
+     */
+    private int pageSize() {
+        return Math.max(4096, Integer.highestOneBit(Math.max(1, this.value_size - 1)) << 1);
+    }
+
+    /**
+     * Store values from random nodes, then read each of them from another random node.
+     * Print the throughput of both phases and the usage of the stores of all the nodes.
+     */
+    private void valueWorkload() {
+        IdGenerator rand = this.random.split();
+        NodeId[] keys = new NodeId[this.values];
+        byte[][] data = new byte[this.values][];
+        for(int i = 0; i < this.values; i++) {
+            keys[i] = rand.nextId(this.params.bit_len);
+            data[i] = new byte[this.value_size];
+            for(int b = 0; b < data[i].length; b += 8) {
+                long r = rand.nextLong();
+                for(int j = b; j < Math.min(b + 8, data[i].length); j++, r >>>= 8)
+                    data[i][j] = (byte) r;
+            }
+        }
+        long replicas = 0;
+        final long start = System.nanoTime();
+        for(int i = 0; i < this.values; i++)
+            replicas += this.joined_nodes.get(rand.nextInt(this.joined_nodes.size())).store(keys[i], data[i], this.ttl);
+        final long stored = System.nanoTime();
+        int found = 0, wrong = 0;
+        for(int i = 0; i < this.values; i++) {
+            byte[] v = this.joined_nodes.get(rand.nextInt(this.joined_nodes.size())).findValue(keys[i]);
+            if(v != null && Arrays.equals(v, data[i]))
+                found++;
+            else if(v != null)
+                wrong++;
+        }
+        final long end = System.nanoTime();
+
+        long used = 0, allocated = 0, count = 0, hits = 0, misses = 0, evictions = 0, expirations = 0, rejected = 0;
+        for(Node n : this.joined_nodes) {
+            ValueStore store = n.store();
+            used += store.usedBytes();
+            allocated += store.allocatedBytes();
+            count += store.size();
+            hits += store.hits();
+            misses += store.misses();
+            evictions += store.evictions();
+            expirations += store.expirations();
+            rejected += store.rejected();
+        }
+        System.out.println();
+        System.out.println("store: " + this.values + " values in " + ((stored - start) / 1000000) + " ms, "
+            + (long) (this.values / ((stored - start) / 1e9)) + " op/s, " + String.format(Locale.ROOT, "%.2f", (double) replicas / this.values) + " replicas each");
+        System.out.println("find_value: " + found + "/" + this.values + " found (" + wrong + " wrong) in " + ((end - stored) / 1000000) + " ms, "
+            + (long) (this.values / ((end - stored) / 1e9)) + " op/s");
+        System.out.println("stores: " + count + " values, " + used + " bytes used, " + allocated + " bytes allocated, hit rate "
+            + String.format(Locale.ROOT, "%.3f", hits + misses == 0 ? 0 : (double) hits / (hits + misses))
+            + ", " + evictions + " evicted, " + expirations + " expired, " + rejected + " rejected");
+    }
+    /**
+     * Print how many traversed contacts the nodes piggybacked
+     */
+    private void gossipStats() {
+        long offered = 0, sent = 0, filtered = 0;
+        for(Node n : this.joined_nodes) {
+            Gossip gossip = n.gossip();
+            offered += gossip.offered();
+            sent += gossip.sent();
+            filtered += gossip.filtered();
+        }
+        System.out.println();
+        System.out.println("gossip: " + sent + " of " + offered + " traversed contacts piggybacked, " + filtered + " known by the receiver, "
+            + (offered - sent - filtered) + " over the cap");
+    }
+
+    /**
+     * Print how much the lookup caches of all the nodes saved
+     */
+    private void cacheStats() {
+        long hits = 0, seeded = 0, misses = 0, saved = 0, evictions = 0, expirations = 0, invalidations = 0;
+        for(Node n : this.joined_nodes) {
+            LookupCache cache = n.lookupCache();
+            hits += cache.hits();
+            seeded += cache.seeded();
+            misses += cache.misses();
+            saved += cache.savedRpcs();
+            evictions += cache.evictions();
+            expirations += cache.expirations();
+            invalidations += cache.invalidations();
+        }
+        final long lookups = hits + seeded + misses;
+        System.out.println();
+        System.out.println("lookup cache: hit rate " + String.format(Locale.ROOT, "%.3f", lookups == 0 ? 0 : (double) hits / lookups)
+            + ", " + seeded + " seeded, " + saved + " rpcs saved, " + evictions + " evicted, " + expirations + " expired, " + invalidations + " invalidated");
+    }
+
+    /**
+     * Record a completed join, and write a snapshot of the network every snapshot joins.
+     * A snapshot has the first joined nodes, in join order; their rows are formatted
+     * here, so the file shows them at this join even if they keep changing, then
+     * the exporter writes and closes it in the background.
+     * @param node the node that completed its join
+     */
+    private void joined(Node node) {
+        ArrayList<Node> nodes = null;
+        int joined;
+        synchronized(this.join_order) {
+            this.join_order.add(node);
+            joined = this.join_order.size();
+            if(this.snapshot > 0 && joined % this.snapshot == 0)
+                nodes = new ArrayList<Node>(this.join_order.subList(0, joined));
+        }
+        if(nodes == null)
+            return;
+        String base = this.output.endsWith(".csv") ? this.output.substring(0, this.output.length() - 4) : this.output;
+        String path = base + "-" + joined + ".csv" + (this.gzip ? ".gz" : "");
+        try {
+            CsvExporter exporter = new CsvExporter(path, this.gzip);
+            exporter.snapshot(nodes);
+            CompletableFuture<Void> written = exporter.closeAsync();
+            synchronized(this.snapshots) {
+                this.snapshots.add(written);
+            }
+        } catch(IOException e) {
+            System.err.println("Snapshot " + path + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add the nodes of a checkpoint, as if they just joined
+     * @return the checkpoint
+     * @throws IOException if it cannot be read or it has other parameters
+     */
+    private Checkpoint resume() throws IOException {
+        Checkpoint saved = Checkpoint.read(this.resume, this.socket, this.directory);
+        String diff = saved.mismatch(this.params.bit_len, this.k, this.alpha, this.lookups, this.fast_ids, this.recursive);
+        if(diff != null)
+            throw new IOException("the checkpoint " + this.resume + " has " + diff);
+        for(Node n : saved.nodes) {
+            n.setLookupExecutor(this.lookup_executor);
+            n.setEvictionExecutor(this.eviction);
+            n.setMetrics(this.metrics);
+            if(this.values > 0)
+                n.setStore(new ValueStore(this.store_capacity, this.pageSize()));
+            if(this.lookup_cache > 0)
+                n.setLookupCache(new LookupCache(this.lookup_cache, this.cache_ttl, 10 * this.cache_ttl, this.clock));
+            if(this.gossip > 0)
+                n.setGossip(new Gossip(this.gossip));
+            if(this.refresh > 0)
+                n.refreshEvery(TimerWheel.shared(), this.refresh, this.refresh_executor);
+            this.all_nodes.put(n.me.id, n);
+            this.joined_nodes.add(n);
+            this.join_order.add(n);
+        }
+        if(this.random == null)
+            this.random = saved.random;
+        System.out.println("resumed " + saved.nodes.size() + " nodes from " + this.resume);
+        return saved;
+    }
+
+    /**
+     * Save the network if it's time, or if it has been requested by the shutdown hook.
+     * Called between two joins of the sequential simulation.
+     * @param bootstrap the bootstrap of the next join
+     * @param force save anyway
+     * @return true if the simulation has been interrupted and must stop
+     */
+    private boolean checkpoint(Node bootstrap, boolean force) {
+        if(this.checkpoint_output == null)
+            return false;
+        final boolean requested = this.checkpoint_requested;
+        final int joined = this.joined_nodes.size();
+        if(!force && !requested && (this.checkpoint_every <= 0 || joined % this.checkpoint_every != 0))
+            return false;
+        try {
+            new Checkpoint(this.params.bit_len, this.k, this.alpha, this.lookups, this.compact, this.fast_ids, this.recursive,
+                this.random, this.joined_nodes.indexOf(bootstrap), this.joined_nodes).write(this.checkpoint_output);
+        } catch(IOException e) {
+            System.err.println("Checkpoint " + this.checkpoint_output + " failed: " + e.getMessage());
+        }
+        if(requested) {
+            System.out.println("\ninterrupted at " + joined + " nodes, continue with --resume " + this.checkpoint_output);
+            this.checkpoint_written.countDown();
+        }
+        return requested;
+    }
+
     /**
      * Take a random node from already joined list
      * @return
      */
     private Node randomBootstrap() {
-        int rand_pos = ints().range(0, joined_nodes.size()-1).get();
+        int rand_pos = this.random.nextInt(joined_nodes.size()-1);
         Node rand_node = this.joined_nodes.get(rand_pos);
         return rand_node;
     }
 
     private static interface Operation {
-        void exec(Node node, Node bootstrap, BitSet id);
+        void exec(Node node, Node bootstrap, NodeId id);
     };
 
+    /**
+     * Join node to the network and perform its refresh lookups
+     * @param node the joining node
+     * @param bootstrap a node already joined
+     * @param random source of the lookup targets of this node
+     * @param pre_lookup the join operation
+     * @param post_lookup the lookup operation
+     */
+    private void join(Node node, Node bootstrap, IdGenerator random, Operation pre_lookup, Operation post_lookup) {
+        pre_lookup.exec(node, bootstrap, node.me.id);
+        if(this.lookups > 0 && this.sweep) {
+            NodeId[] targets = new NodeId[this.params.bit_len * this.lookups];
+            for(int i = 0; i < targets.length; i++) // the same targets of the lookups
+                targets[i] = this.randomId(random).withPrefix(node.me.id, i / this.lookups);
+            node.sweep(targets);
+        } else if(this.lookups > 0) {
+            // generate a random id and fitting it to a bucket list
+            for(int bucket_index = 0; bucket_index < this.params.bit_len; bucket_index++)
+                for(int n_lookups = this.lookups; n_lookups > 0; n_lookups--) {
+                    NodeId id = this.randomId(random).withPrefix(node.me.id, bucket_index);
+                    post_lookup.exec(node, bootstrap, id);
+                }
+        }
+    }
+
+    /**
+     * Join all the nodes concurrently on a pool of threads.
+     * The nodes are created in order and each one take its bootstrap among the
+     * previous ones, and wait for it to be joined: the bootstraps and the lookup
+     * targets depend only on the seed, while the routing tables depend also on
+     * the interleaving of the joins.
+     * @param first the node already in the network
+     * @param pre_lookup the join operation
+     * @param post_lookup the lookup operation
+     * @return the last created node
+     * @throws UnknownHostException should never be thrown (caused by random generated ip)
+     * @throws UnsupportedEncodingException should never be thrown (caused by hash)
+     */
+    private Node parallelJoins(Node first, Operation pre_lookup, Operation post_lookup) throws UnknownHostException, UnsupportedEncodingException {
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        ArrayList<CompletableFuture<Void>> joined = new ArrayList<CompletableFuture<Void>>(this.params.n_nodes);
+        AtomicInteger progress = new AtomicInteger(1);
+        Node node = first;
+        joined.add(CompletableFuture.completedFuture(null));
+        try {
+            for(int i = 1; i < this.params.n_nodes; i++) {
+                final Node n = this.nodeJoining();
+                final IdGenerator rand = this.random.split(); // the same sequence whatever thread run the join
+                final int pos = rand.nextInt(i);
+                final Node bootstrap = this.joined_nodes.get(pos);
+                joined.add(joined.get(pos).thenRunAsync(() -> {
+                    this.join(n, bootstrap, rand, pre_lookup, post_lookup);
+                    synchronized(progress) {
+                        final int n_joined = progress.incrementAndGet();
+                        System.out.print("\r node progress: " + n_joined + "/" + this.params.n_nodes);  // progress status
+                        this.joined(n);
+                    }
+                }, pool));
+                node = n;
+            }
+            CompletableFuture.allOf(joined.toArray(new CompletableFuture<?>[joined.size()])).join();
+        } finally {
+            pool.shutdown();
+        }
+        return node;
+    }
+
+    /**
+     * Perform the refresh lookups of a node one after the other, from the done-th
+     * @param loop the virtual clock
+     * @param node the node
+     * @param random source of the lookup targets of this node
+     * @param done how many lookups are already done
+     * @param durations where add the microseconds taken by each lookup
+     */
+    private void eventLookups(EventLoop loop, Node node, IdGenerator random, int done, ArrayList<Long> durations) {
+        if(done >= this.params.bit_len * this.lookups)
+            return;
+        NodeId id = this.randomId(random).withPrefix(node.me.id, done / this.lookups);
+        final long start = loop.now();
+        node.lookupAsync(id).thenRun(() -> {
+            durations.add(loop.now() - start);
+            this.eventLookups(loop, node, random, done + 1, durations);
+        });
+    }
+
+    /**
+     * Print the percentiles of a sample
+     * @param name what has been measured
+     * @param sample the microseconds measured
+     */
+    private static void printPercentiles(String name, ArrayList<Long> sample) {
+        if(sample.isEmpty())
+            return;
+        long[] sorted = new long[sample.size()];
+        for(int i = 0; i < sorted.length; i++)
+            sorted[i] = sample.get(i);
+        Arrays.sort(sorted);
+        StringBuilder out = new StringBuilder();
+        out.append(name).append(" (").append(sorted.length).append(") ms:");
+        final double[] ps = { 0.5, 0.9, 0.99 };
+        for(double p : ps)
+            out.append(" p").append((int) (p * 100)).append("=").append(sorted[(int) Math.ceil(p * sorted.length) - 1] / 1000.0);
+        out.append(" max=").append(sorted[sorted.length - 1] / 1000.0);
+        System.out.println(out.toString());
+    }
+
+    /**
+     * Join all the nodes on the virtual clock, a node every join_interval.
+     * Each node take its bootstrap among the previous ones, even if not yet joined,
+     * and start its refresh lookups when its bootstrap is done.
+     * @param first the node already in the network
+     * @param transport the simulated network
+     * @return the last created node
+     * @throws UnknownHostException should never be thrown (caused by random generated ip)
+     * @throws UnsupportedEncodingException should never be thrown (caused by hash)
+     */
+    private Node eventJoins(Node first, SimulatedTransport transport) throws UnknownHostException, UnsupportedEncodingException {
+        EventLoop loop = transport.loop();
+        ArrayList<Long> joins = new ArrayList<Long>(this.params.n_nodes);
+        ArrayList<Long> lookups = new ArrayList<Long>();
+        Node node = first;
+        for(int i = 1; i < this.params.n_nodes; i++) {
+            final Node n = this.nodeJoining();
+            final Node bootstrap = this.joined_nodes.get(this.random.nextInt(i));
+            final IdGenerator rand = this.random.split();
+            loop.scheduleAt(i * this.join_interval * 1000, () -> {
+                final long start = loop.now();
+                n.bootstrapAsync(bootstrap.me).thenRun(() -> {
+                    joins.add(loop.now() - start);
+                    if(joins.size() % 100 == 0 || joins.size() == this.params.n_nodes - 1)
+                        System.out.print("\r node progress: " + (joins.size() + 1) + "/" + this.params.n_nodes);  // progress status
+                    this.joined(n);
+                    this.eventLookups(loop, n, rand, 0, lookups);
+                });
+            });
+            node = n;
+        }
+        final long wall = System.nanoTime();
+        loop.run();
+        System.out.println();
+        System.out.println("simulated " + (loop.now() / 1000000.0) + " s in " + ((System.nanoTime() - wall) / 1000000) + " ms, "
+            + loop.executed() + " events, " + transport.sent() + " messages, " + transport.lost() + " lost");
+        printPercentiles("join", joins);
+        printPercentiles("lookup", lookups);
+        return node;
+    }
+
+    /**
+     * Parse the latency option
+     * @return the model of the simulated links
+     */
+    private LatencyModel latencyModel() {
+        final int sep = this.latency.indexOf(':');
+        final long min = Long.parseLong(sep < 0 ? this.latency : this.latency.substring(0, sep));
+        final long max = sep < 0 ? min : Long.parseLong(this.latency.substring(sep + 1));
+        return LatencyModel.lossy(LatencyModel.perLink(min * 1000, max * 1000, this.jitter * 1000), this.loss);
+    }
+
     public void start() {
+        if(this.resume == null || this.seed != null) { // otherwise the generator is restored
+            if(this.seed == null)
+                this.seed = System.nanoTime() ^ Double.doubleToLongBits(Math.random());
+            System.out.println("seed: " + this.seed);
+            this.random = new IdGenerator(this.seed);
+        }
+        if(this.compact)
+            this.directory = new ContactDirectory(this.params.bit_len);
+        SimulatedTransport simulated = null;
+        if(this.events) {
+            simulated = new SimulatedTransport(new EventLoop(), this.all_nodes, this.latencyModel(), this.random.split());
+            this.socket = simulated;
+            EventLoop loop = simulated.loop();
+            this.clock = () -> loop.now() / 1000;
+            if(this.metrics_output != null)
+                this.metrics = new LookupMetrics(simulated.loop()::now);
+        } else if(this.parallel_lookup && !this.recursive) {
+            this.lookup_executor = Executors.newFixedThreadPool(this.alpha, (r) -> {
+                Thread t = new Thread(r, "lookup");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        if(this.metrics_output != null && this.metrics == null)
+            this.metrics = new LookupMetrics();
+        if(this.refresh > 0) {
+            this.refresh_executor = Executors.newFixedThreadPool(Math.max(1, this.threads), (r) -> {
+                Thread t = new Thread(r, "refresh");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        if(this.eviction_threads > 0) {
+            this.eviction_executor = Executors.newFixedThreadPool(this.eviction_threads, (r) -> {
+                Thread t = new Thread(r, "eviction");
+                t.setDaemon(true);
+                return t;
+            });
+            this.eviction = this.eviction_executor;
+        }
+        BatchingTransport batching = null;
+        if(this.batch_window > 0) {
+            batching = new BatchingTransport(this.socket, this.batch_window, this.batch_size);
+            this.socket = batching;
+        }
         try {
-            Node bootstrap = this.nodeJoining();
-            Node first = bootstrap;
-            Node node = bootstrap;
+            Checkpoint resumed = this.resume == null ? null : this.resume();
+            Node bootstrap = resumed == null ? this.nodeJoining() : this.joined_nodes.get(resumed.next_bootstrap);
+            Node first = this.joined_nodes.get(0);
+            Node node = this.joined_nodes.get(this.joined_nodes.size() - 1);
+            if(resumed == null)
+                this.join_order.add(first);
 
             Operation pre_lookup, post_lookup;
             // setup for recursive/ lookup
@@ -169,41 +711,99 @@ public class Simulator {
                 };
             }
 
-            for(int n_nodes = this.params.n_nodes - 1; n_nodes > 0; n_nodes--) {
-                node = this.nodeJoining();
-                pre_lookup.exec(node, bootstrap, node.me.id);
-                if(this.lookups > 0) {
-                    // generate a random id and fitting it to a bucket list
-                    for(int bucket_index = 0; bucket_index < this.params.bit_len; bucket_index++)
-                        for(int n_lookups = this.lookups; n_lookups > 0; n_lookups--) {
-                            BitSet id = this.randomBitset();
-                            for(int bit_to_set = bucket_index; bit_to_set < this.params.bit_len; bit_to_set++) {
-                                if(node.me.id.get(bit_to_set))
-                                    id.set(bit_to_set);
-                                else
-                                    id.clear(bit_to_set);
-                            }
-                            post_lookup.exec(node, bootstrap, id);
+            if(simulated != null) {
+                node = this.eventJoins(first, simulated);
+            } else if(this.threads > 1) {
+                node = this.parallelJoins(first, pre_lookup, post_lookup);
+            } else {
+                Thread hook = null;
+                if(this.checkpoint_output != null) {
+                    hook = new Thread(() -> {
+                        this.checkpoint_requested = true;
+                        try {
+                            this.checkpoint_written.await(CHECKPOINT_WAIT, TimeUnit.SECONDS);
+                        } catch(InterruptedException e) {
+                            // exit without it
                         }
+                    }, "checkpoint");
+                    Runtime.getRuntime().addShutdownHook(hook);
+                }
+                for(int n_nodes = this.params.n_nodes - this.joined_nodes.size(); n_nodes > 0; n_nodes--) {
+                    node = this.nodeJoining();
+                    this.join(node, bootstrap, this.random, pre_lookup, post_lookup);
+                    System.out.print("\r node progress: " + node.node_number + "/" + this.params.n_nodes);  // progress status
+                    this.joined(node);
+                    bootstrap = this.randomBootstrap();
+                    if(this.checkpoint(bootstrap, false))
+                        return;
                 }
-                System.out.print("\r node progress: " + node.node_number + "/" + this.params.n_nodes);  // progress status
-                bootstrap = this.randomBootstrap();
+                if(this.checkpoint(bootstrap, true))
+                    return;
+                if(hook != null) {
+                    try {
+                        Runtime.getRuntime().removeShutdownHook(hook);
+                    } catch(IllegalStateException e) { // already exiting, the checkpoint is saved
+                        this.checkpoint_written.countDown();
+                    }
+                }
+            }
+            if(this.values > 0)
+                this.valueWorkload();
+            if(this.lookup_cache > 0)
+                this.cacheStats();
+            if(this.gossip > 0)
+                this.gossipStats();
+            if(this.refresh > 0) {
+                long refreshed = 0;
+                for(Node n : this.joined_nodes) {
+                    n.stopRefresh();
+                    refreshed += n.refreshedBuckets();
+                }
+                System.out.println(System.lineSeparator() + "refresh: " + refreshed + " stale buckets refreshed");
             }
+            if(batching != null)
+                System.out.println(System.lineSeparator() + "batching: " + batching.requests() + " requests in " + batching.messages() + " messages, "
+                    + batching.batches() + " batches");
             first.toCSV();
             node.toCSV();
 
-            CSVWriter csvw = Node.getDefaultCSVWriter(this.output);
-            for(Map.Entry<BitSet, Node> entry : all_nodes.entrySet()) {
-                node = entry.getValue();
-                node.writeToCSV(csvw);
+            CsvExporter exporter = new CsvExporter(this.output + (this.gzip ? ".gz" : ""), this.gzip);
+            exporter.writeAll(this.joined_nodes);   // in join order, so equal runs give equal files
+            if(this.binary) {
+                String base = this.output.endsWith(".csv") ? this.output.substring(0, this.output.length() - 4) : this.output;
+                GraphSnapshot.write(base + ".kgs", this.joined_nodes);
+            }
+            if(this.metrics != null) {
+                try(Writer out = new OutputStreamWriter(new FileOutputStream(this.metrics_output), StandardCharsets.UTF_8)) {
+                    out.write(this.metrics.toJson());
+                }
+                System.out.println("lookups: " + this.metrics.lookups() + ", hops p50 " + this.metrics.hops.percentile(50)
+                    + " p99 " + this.metrics.hops.percentile(99) + ", rpcs p50 " + this.metrics.rpcs.percentile(50)
+                    + " p99 " + this.metrics.rpcs.percentile(99));
+            }
+            exporter.close();
+            for(CompletableFuture<Void> written : this.snapshots) {
+                try {
+                    written.join();
+                } catch(CompletionException e) {
+                    System.err.println("Snapshot failed: " + e.getCause().getMessage());
+                }
             }
-            csvw.close();
         } catch (UnknownHostException e) {
             System.err.println("Should not appen: " + e.getMessage());
         } catch (UnsupportedEncodingException e) {
             System.err.println("Should not appen: " + e.getMessage());
         } catch(IOException e) {
             System.err.println("IO error: " + e.getMessage());
+        } catch(CompletionException e) {
+            System.err.println("Join failed: " + e.getCause());
+        } finally {
+            if(this.lookup_executor != null)
+                this.lookup_executor.shutdown();
+            if(this.eviction_executor != null)
+                this.eviction_executor.shutdown();
+            if(this.refresh_executor != null)
+                this.refresh_executor.shutdownNow();
         }
     }
 }
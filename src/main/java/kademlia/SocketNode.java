@@ -1,34 +1,91 @@
 package kademlia;
 
-import java.util.BitSet;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * Socket Mockup
+ * Socket Mockup, an in memory Transport.
+ * By default the receive of the target node is called directly by the sender thread,
+ * if an executor is provided the messages are delivered asynchronously by it.
  */
-class SocketNode {
-    private Map<BitSet, Node> all_nodes; //!< A map to search the node to perform the fake send
+class SocketNode implements Transport {
+    private Map<NodeId, Node> all_nodes; //!< A map to search the node to perform the fake send
+    private final Executor executor; //!< deliver the messages, null to deliver them synchronously
+    private final RpcTable rpcs; //!< requests in flight, used only with executor
 
     /**
      * Take in input a Map to perform the search of the destination of the send
      * @param all_nodes a Map containing all the reachable Node, indexed by their id
      */
-    SocketNode(Map<BitSet, Node> all_nodes) {
+    SocketNode(Map<NodeId, Node> all_nodes) {
+        this(all_nodes, null);
+    }
+
+    /**
+     * In memory transport delivering the messages from the executor threads.
+     * @param all_nodes a Map containing all the reachable Node, indexed by their id
+     * @param executor the executor delivering the messages, null to deliver them synchronously
+     */
+    SocketNode(Map<NodeId, Node> all_nodes, Executor executor) {
         this.all_nodes = all_nodes;
+        this.executor = executor;
+        this.rpcs = executor == null ? null : new RpcTable();
     }
 
     /**
      * Send a message to the receiver if is reachable.
-     * In this mockup the receiver is searched in the collection and is
-     * called the receive function of the node is directly called.
+     * In this mockup the receiver is searched in the collection and
+     * the receive function of the node is directly called.
      * @param mes message to be sended
-     * @return if the node can be contacted (is present in the map), the resulting
-     * message from the recive of the target node, otherwise null.
+     * @param timeout milliseconds to wait for the response, used only with an executor
+     * @return the future of the response of the target node, failed if the node
+     * is not present in the map.
      */
-    Message sendAndReceive(Message mes) {
-        Node node = this.all_nodes.get(mes.receiver.id);
-        if(node != null)
-            return node.receive(mes);
-        return null;
+    @Override
+    public CompletableFuture<Message> send(Message mes, long timeout) {
+        JfrEvents.Rpc event = JfrEvents.rpc();
+        CompletableFuture<Message> res = this.deliver(mes, timeout);
+        if(event != null)
+            res.whenComplete((response, err) -> event.end(mes, err == null));
+        return res;
+    }
+
+    /**
+     * Without an executor the receiver answers in the sender thread
+     * @return true if there is no executor
+     */
+    @Override
+    public boolean synchronous() {
+        return this.executor == null;
+    }
+
+    /**
+     * Deliver a request, see send
+     * @param mes message to be sended
+     * @param timeout milliseconds to wait for the response, used only with an executor
+     * @return the future of the response
+     */
+    private CompletableFuture<Message> deliver(Message mes, long timeout) {
+        final Node node = this.all_nodes.get(mes.receiver.id);
+        if(node == null)
+            return Transport.unreachable(mes);
+        if(this.executor == null) {
+            Message res = node.receive(mes);
+            return res == null ? Transport.unreachable(mes) : CompletableFuture.completedFuture(res);
+        }
+
+        CompletableFuture<Message> res = this.rpcs.register(mes, timeout);
+        try {
+            this.executor.execute(() -> {
+                Message response = node.receive(mes);
+                if(response != null)
+                    this.rpcs.complete(response);
+            });
+        } catch (RejectedExecutionException e) {
+            this.rpcs.fail(mes, e);
+        }
+        return res;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,193 @@
+package kademlia;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Hierarchical timer wheel, to keep a timer for each of many nodes (see
+ * Node.refreshEvery) without a scheduled task for each one.
+ * The time is cut in ticks; LEVELS wheels of SLOTS slots each hold the timers
+ * due in the next SLOTS ticks, SLOTS^2 ticks, and so on. Scheduling and
+ * cancelling cost O(1), and when the lower wheel completes a turn the slot of
+ * the upper wheel is moved down (cascaded). The timers due after SLOTS^LEVELS
+ * ticks wait in the last slot of the upper wheel and are cascaded again.
+ *
+ * A wheel is advanced by who owns it (advance), the shared one by a daemon
+ * thread. The tasks are run by the thread advancing the wheel, outside the lock:
+ * they must be short, or hand off the work to an executor.
+ */
+class TimerWheel {
+    public static final long DEFAULT_TICK = 100; //!< milliseconds, resolution of the shared wheel
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 4; //!< 64^4 ticks, 19 days with the DEFAULT_TICK
+
+    private static TimerWheel shared = null; //!< created on first use
+
+    /**
+     * A scheduled task
+     */
+    static final class Timeout {
+        public final long due; //!< tick when it's run
+        private final Runnable task;
+        private volatile boolean cancelled;
+        private Timeout next; //!< in the same slot
+
+        private Timeout(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+            this.cancelled = false;
+        }
+
+        /**
+         * Prevent the execution, if not already executed.
+         * The timer is dropped from its slot when the slot is reached.
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return this.cancelled;
+        }
+    };
+
+    private final long tick; //!< milliseconds
+    private final LongSupplier clock; //!< milliseconds
+    private final Timeout[][] slots; //!< [level][slot], linked lists
+    private Timeout ready; //!< due at the current tick or before, run at the next advance
+    private long now_tick; //!< last tick processed
+    private int pending; //!< timers in the wheels, cancelled ones included
+
+    /**
+     * Wheel advanced by the caller
+     * @param tick milliseconds of a tick, the resolution of the timers
+     * @param clock the current time in milliseconds
+     */
+    public TimerWheel(long tick, LongSupplier clock) {
+        if(tick <= 0)
+            throw new IllegalArgumentException("the tick must be positive");
+        this.tick = tick;
+        this.clock = clock;
+        this.slots = new Timeout[LEVELS][SLOTS];
+        this.ready = null;
+        this.now_tick = clock.getAsLong() / tick;
+        this.pending = 0;
+    }
+
+    /**
+     * The wheel of the process, timed by the wall clock with the DEFAULT_TICK and
+     * advanced by a daemon thread
+     * @return the shared wheel
+     */
+    public static synchronized TimerWheel shared() {
+        if(shared == null) {
+            final TimerWheel wheel = new TimerWheel(DEFAULT_TICK, System::currentTimeMillis);
+            ScheduledThreadPoolExecutor driver = new ScheduledThreadPoolExecutor(1, (r) -> {
+                Thread t = new Thread(r, "timer-wheel");
+                t.setDaemon(true);
+                return t;
+            });
+            driver.scheduleAtFixedRate(wheel::advance, DEFAULT_TICK, DEFAULT_TICK, TimeUnit.MILLISECONDS);
+            shared = wheel;
+        }
+        return shared;
+    }
+
+    /**
+     * Run a task after a delay
+     * @param task the task
+     * @param delay milliseconds, rounded up to the tick
+     * @return the timer, to cancel it
+     */
+    public synchronized Timeout schedule(Runnable task, long delay) {
+        Timeout t = new Timeout(this.now_tick + Math.max(0, (delay + this.tick - 1) / this.tick), task);
+        this.insert(t);
+        this.pending++;
+        return t;
+    }
+
+    /**
+     * Put a timer in the slot of its due tick
+     */
+    private void insert(Timeout t) {
+        final long delta = t.due - this.now_tick;
+        if(delta <= 0) {
+            t.next = this.ready;
+            this.ready = t;
+            return;
+        }
+        int level = 0;
+        while(level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1)))
+            level++;
+        // too far: parked in the farthest slot of the upper wheel, it will be cascaded again
+        final long at = delta < 1L << (BITS * LEVELS) ? t.due : this.now_tick + (1L << (BITS * LEVELS)) - 1;
+        final int slot = (int) (at >>> (BITS * level)) & (SLOTS - 1);
+        t.next = this.slots[level][slot];
+        this.slots[level][slot] = t;
+    }
+
+    /**
+     * Move the timers of a slot of an upper wheel to the lower ones
+     */
+    private void cascade(int level, int slot) {
+        Timeout t = this.slots[level][slot];
+        this.slots[level][slot] = null;
+        while(t != null) {
+            Timeout next = t.next;
+            this.insert(t);
+            t = next;
+        }
+    }
+
+    /**
+     * Run the timers due until the current time of the clock.
+     * The exceptions of a task are printed, and do not stop the others.
+     * @return the tasks run
+     */
+    public int advance() {
+        ArrayList<Timeout> due = new ArrayList<Timeout>();
+        synchronized(this) {
+            final long target = this.clock.getAsLong() / this.tick;
+            while(true) {
+                for(Timeout t = this.ready; t != null; t = t.next)
+                    due.add(t);
+                this.ready = null;
+                if(this.now_tick >= target)
+                    break;
+                this.now_tick++;
+                for(int level = 1; level < LEVELS; level++) { // a turn of the lower wheel is complete
+                    if((this.now_tick & ((1L << (BITS * level)) - 1)) != 0)
+                        break;
+                    this.cascade(level, (int) (this.now_tick >>> (BITS * level)) & (SLOTS - 1));
+                }
+                final int slot = (int) this.now_tick & (SLOTS - 1);
+                this.ready = this.slots[0][slot];
+                this.slots[0][slot] = null;
+            }
+            this.pending -= due.size();
+        }
+        int run = 0;
+        for(Timeout t : due) {
+            if(t.cancelled)
+                continue;
+            try {
+                t.task.run();
+            } catch (RuntimeException e) {
+                System.err.println("timer task failed: " + e);
+            }
+            run++;
+        }
+        return run;
+    }
+
+    /**
+     * Timers scheduled and not yet reached, the cancelled ones included
+     * @return the timers
+     */
+    public synchronized int pending() {
+        return this.pending;
+    }
+}
@@ -0,0 +1,69 @@
+package kademlia;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Channel used by a Node to reach the other nodes.
+ * A request is matched with its response through Message.rpc_id, so a node can
+ * keep many requests in flight at the same time.
+ */
+interface Transport {
+    long DEFAULT_TIMEOUT = 2000; //!< milliseconds waited for a response by default
+
+    /**
+     * Send a request.
+     * @param mes the request, its receiver is the destination
+     * @param timeout milliseconds to wait for the response
+     * @return a future completed with the response, or exceptionally with a
+     * TimeoutException if the receiver did not respond in time (or is not reachable)
+     */
+    CompletableFuture<Message> send(Message mes, long timeout);
+
+    /**
+     * If send delivers the request and waits its response in the calling thread,
+     * returning a future already completed
+     * @return false by default
+     */
+    default boolean synchronous() {
+        return false;
+    }
+
+    /**
+     * Send a request and wait its response.
+     * @param mes the request, its receiver is the destination
+     * @param timeout milliseconds to wait for the response
+     * @return the response, null if the receiver did not respond
+     */
+    default Message sendAndReceive(Message mes, long timeout) {
+        try {
+            return this.send(mes, timeout).get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Send a request and wait its response for the DEFAULT_TIMEOUT.
+     * @param mes the request, its receiver is the destination
+     * @return the response, null if the receiver did not respond
+     */
+    default Message sendAndReceive(Message mes) {
+        return this.sendAndReceive(mes, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Utility for the implementations, a future already failed.
+     * @param mes the request that cannot be delivered
+     * @return a future completed with a TimeoutException
+     */
+    static CompletableFuture<Message> unreachable(Message mes) {
+        CompletableFuture<Message> res = new CompletableFuture<Message>();
+        res.completeExceptionally(new TimeoutException("unreachable " + mes.receiver));
+        return res;
+    }
+}
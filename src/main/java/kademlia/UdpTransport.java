@@ -0,0 +1,322 @@
+package kademlia;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport over UDP, a datagram for each message.
+ * The channels are non blocking and all the transports of the process share a
+ * single selector thread, which only read and decode the datagrams: the requests
+ * are served and the responses completed by a pool of workers.
+ * The datagrams are written and read through a pool of direct buffers.
+ */
+class UdpTransport implements Transport, Closeable {
+    public static final int MAX_DATAGRAM = 65507; //!< max UDP payload over IPv4
+
+    /**
+     * Pool of direct buffers of MAX_DATAGRAM bytes.
+     * When empty a new buffer is allocated, at most MAX_POOLED are kept.
+     */
+    static final class BufferPool {
+        private static final int MAX_POOLED = 256;
+        private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+        private static final AtomicInteger pooled = new AtomicInteger(0);
+
+        private BufferPool() {}
+
+        /**
+         * Get a cleared buffer
+         * @return a direct buffer of MAX_DATAGRAM bytes
+         */
+        public static ByteBuffer acquire() {
+            ByteBuffer buf = pool.poll();
+            if(buf == null)
+                return ByteBuffer.allocateDirect(MAX_DATAGRAM);
+            pooled.decrementAndGet();
+            Buffers.clear(buf);
+            return buf;
+        }
+
+        /**
+         * Give back a buffer, it must not be used anymore
+         * @param buf a buffer obtained by acquire
+         */
+        public static void release(ByteBuffer buf) {
+            if(pooled.incrementAndGet() <= MAX_POOLED)
+                pool.offer(buf);
+            else
+                pooled.decrementAndGet();
+        }
+    };
+
+    /**
+     * The selector thread, shared by all the transports of this process
+     */
+    private static final class SelectorLoop implements Runnable {
+        private static SelectorLoop instance = null;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks; //!< operations to perform on the selector thread
+
+        private SelectorLoop() throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<Runnable>();
+            Thread t = new Thread(this, "udp-selector");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /**
+         * Get the selector of this process, starting it the first time
+         * @return the selector loop
+         * @throws IOException if the selector cannot be opened
+         */
+        public static synchronized SelectorLoop get() throws IOException {
+            if(instance == null)
+                instance = new SelectorLoop();
+            return instance;
+        }
+
+        /**
+         * Execute task on the selector thread
+         * @param task the operation, usually a (re)registration
+         */
+        public void submit(Runnable task) {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                try {
+                    this.selector.select();
+                    for(Runnable task = this.tasks.poll(); task != null; task = this.tasks.poll())
+                        task.run();
+                    Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                    while(it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        UdpTransport transport = (UdpTransport) key.attachment();
+                        if(!key.isValid())
+                            continue;
+                        if(key.isReadable())
+                            transport.onReadable();
+                        if(key.isValid() && key.isWritable())
+                            transport.onWritable(key);
+                    }
+                } catch (IOException e) {
+                    System.err.println("udp selector: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    System.err.println("udp selector: " + e); // a transport must not stop the others
+                }
+            }
+        }
+    };
+
+    /**
+     * A datagram waiting the channel to be writable
+     */
+    private static class Outgoing {
+        public final ByteBuffer buf;
+        public final SocketAddress to;
+        public final Message mes; //!< to fail it if cannot be sent
+
+        public Outgoing(ByteBuffer buf, SocketAddress to, Message mes) {
+            this.buf = buf;
+            this.to = to;
+            this.mes = mes;
+        }
+    };
+
+    private static final ExecutorService default_workers = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), (r) -> {
+            Thread t = new Thread(r, "udp-worker");
+            t.setDaemon(true);
+            return t;
+        });
+
+    private final DatagramChannel channel;
+    private final SelectorLoop loop;
+    private final Executor workers; //!< serve the requests and complete the responses
+    private final RpcTable rpcs;
+    private final ConcurrentLinkedQueue<Outgoing> outgoing; //!< datagrams not sent because the socket buffer is full
+    private volatile Node node; //!< who serve the requests, null to ignore them
+
+    /**
+     * Open a transport bound to address, using the shared workers.
+     * @param address local address, use port 0 to get a free port
+     * @throws IOException if the channel cannot be opened or bound
+     */
+    public UdpTransport(InetSocketAddress address) throws IOException {
+        this(address, default_workers);
+    }
+
+    /**
+     * Open a transport bound to address.
+     * @param address local address, use port 0 to get a free port
+     * @param workers executor serving the requests and completing the responses
+     * @throws IOException if the channel cannot be opened or bound
+     */
+    public UdpTransport(InetSocketAddress address, Executor workers) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.bind(address);
+        this.workers = workers;
+        this.rpcs = new RpcTable();
+        this.outgoing = new ConcurrentLinkedQueue<Outgoing>();
+        this.node = null;
+        this.loop = SelectorLoop.get();
+        this.loop.submit(() -> {
+            try {
+                this.channel.register(this.loop.selector, SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException e) {
+                // closed before being registered
+            }
+        });
+    }
+
+    /**
+     * Set the node serving the requests received
+     * @param node the node, its contact should use the port of this transport
+     */
+    public void bind(Node node) {
+        this.node = node;
+    }
+
+    /**
+     * The local port, useful when bound to port 0
+     * @return the port of the channel
+     * @throws IOException if the channel is closed
+     */
+    public int port() throws IOException {
+        return ((InetSocketAddress) this.channel.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public CompletableFuture<Message> send(Message mes, long timeout) {
+        CompletableFuture<Message> res = this.rpcs.register(mes, timeout);
+        this.write(mes, new InetSocketAddress(mes.receiver.ip, mes.receiver.port));
+        return res;
+    }
+
+    /**
+     * Encode and send a message, requests that cannot be sent are failed.
+     * @param mes the message
+     * @param to the destination
+     */
+    private void write(Message mes, SocketAddress to) {
+        ByteBuffer buf = BufferPool.acquire();
+        try {
+            MessageCodec.encode(mes, buf);
+            Buffers.flip(buf);
+            if(this.outgoing.isEmpty() && this.channel.send(buf, to) > 0) {
+                BufferPool.release(buf);
+                return;
+            }
+        } catch (BufferOverflowException | IOException e) {
+            BufferPool.release(buf);
+            this.rpcs.fail(mes, e);
+            return;
+        }
+        // socket buffer full, the selector will send it
+        this.outgoing.add(new Outgoing(buf, to, mes));
+        this.loop.submit(() -> {
+            SelectionKey key = this.channel.keyFor(this.loop.selector);
+            if(key != null && key.isValid())
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        });
+    }
+
+    /**
+     * Called by the selector thread, send the queued datagrams
+     * @param key the key of this channel
+     */
+    private void onWritable(SelectionKey key) {
+        for(Outgoing out = this.outgoing.peek(); out != null; out = this.outgoing.peek()) {
+            try {
+                if(this.channel.send(out.buf, out.to) == 0)
+                    return; // still full
+            } catch (IOException e) {
+                this.rpcs.fail(out.mes, e);
+            }
+            this.outgoing.poll();
+            BufferPool.release(out.buf);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Called by the selector thread, read all the datagrams available
+     * @throws IOException if the channel cannot be read
+     */
+    private void onReadable() throws IOException {
+        while(true) {
+            ByteBuffer buf = BufferPool.acquire();
+            SocketAddress from;
+            Message mes;
+            try {
+                from = this.channel.receive(buf);
+                if(from == null)
+                    return;
+                Buffers.flip(buf);
+                mes = MessageCodec.decode(buf);
+            } catch (IllegalArgumentException e) {
+                continue; // not a valid message, dropped
+            } finally {
+                BufferPool.release(buf);
+            }
+            this.dispatch(mes, from);
+        }
+    }
+
+    /**
+     * Pass the message to the workers
+     * @param mes a message received
+     * @param from who sent it
+     */
+    private void dispatch(Message mes, SocketAddress from) {
+        try {
+            if(mes instanceof Message.Response) {
+                this.workers.execute(() -> this.rpcs.complete(mes));
+                return;
+            }
+            final Node n = this.node;
+            if(n == null)
+                return;
+            this.workers.execute(() -> {
+                Message res = n.receive(mes);
+                if(res != null)
+                    this.write(res, from);
+            });
+        } catch (RejectedExecutionException e) {
+            // overloaded, as if the datagram was lost
+        }
+    }
+
+    /**
+     * Close the channel, the requests in flight fail
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+        this.rpcs.failAll(new ClosedChannelException());
+        for(Outgoing out = this.outgoing.poll(); out != null; out = this.outgoing.poll())
+            BufferPool.release(out.buf);
+    }
+}
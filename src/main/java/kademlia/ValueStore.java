@@ -0,0 +1,335 @@
+package kademlia;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded key/value store of a Node, filled by STORE and read by FIND_VALUE.
+ *
+ * The values are kept off heap, in pages of direct memory cut in chunks of a
+ * power of 2 size, as the slab allocator of memcached: a page is given to a size
+ * class the first time the class needs room and it's never returned, so nothing
+ * is allocated nor fragmented once the store is warm. When a class has no free
+ * chunk and no page is left, the least recently used value of that class is evicted.
+ * The values expire after their ttl: they are dropped when read, when their chunk
+ * is needed, or by purgeExpired.
+ * Only the index and the LRU lists are on the heap, an Entry for each value.
+ * All the operations are synchronized on the store.
+ */
+class ValueStore {
+    public static final int MIN_CHUNK = 64; //!< smallest chunk, a page is cut in chunks from MIN_CHUNK to page_size
+
+    /**
+     * A stored value
+     */
+    private static class Entry {
+        final NodeId key;
+        final SizeClass cls;
+        final int page;
+        final int offset; //!< in the page
+        final int length;
+        final long expires; //!< milliseconds of the clock
+        Entry prev; //!< less recently used of the same class
+        Entry next; //!< more recently used of the same class
+
+        Entry(NodeId key, SizeClass cls, int page, int offset, int length, long expires) {
+            this.key = key;
+            this.cls = cls;
+            this.page = page;
+            this.offset = offset;
+            this.length = length;
+            this.expires = expires;
+        }
+    };
+
+    /**
+     * The chunks of a size: the free ones and the LRU list of the used ones
+     */
+    private static class SizeClass {
+        final int chunk;
+        long[] free; //!< stack of free chunks, as page << 32 | offset
+        int n_free;
+        Entry head; //!< least recently used
+        Entry tail; //!< most recently used
+
+        SizeClass(int chunk) {
+            this.chunk = chunk;
+            this.free = new long[16];
+            this.n_free = 0;
+        }
+
+        void push(int page, int offset) {
+            if(this.n_free == this.free.length)
+                this.free = Arrays.copyOf(this.free, this.n_free * 2);
+            this.free[this.n_free++] = (long) page << 32 | offset;
+        }
+
+        void unlink(Entry e) {
+            if(e.prev == null)
+                this.head = e.next;
+            else
+                e.prev.next = e.next;
+            if(e.next == null)
+                this.tail = e.prev;
+            else
+                e.next.prev = e.prev;
+            e.prev = e.next = null;
+        }
+
+        void append(Entry e) {
+            e.prev = this.tail;
+            if(this.tail == null)
+                this.head = e;
+            else
+                this.tail.next = e;
+            this.tail = e;
+        }
+    };
+
+    private final int page_size; //!< a power of 2, also the largest value
+    private final ByteBuffer[] pages; //!< allocated when needed
+    private int n_pages;
+    private final SizeClass[] classes; //!< chunks of MIN_CHUNK << i bytes
+    private final HashMap<NodeId, Entry> index;
+    private final LongSupplier clock; //!< milliseconds
+
+    private long used; //!< bytes of the stored values
+    private long stores;
+    private long rejected; //!< values not stored: too large or no room in their class
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * Store timed by the wall clock
+     * @param capacity bytes of direct memory it can use, rounded down to pages
+     * @param page_size bytes of a page, a power of 2 at least MIN_CHUNK, also the maximum value size
+     */
+    public ValueStore(long capacity, int page_size) {
+        this(capacity, page_size, System::currentTimeMillis);
+    }
+
+    /**
+     * Store timed by a given clock, as the virtual time of a simulation
+     * @param capacity bytes of direct memory it can use, rounded down to pages
+     * @param page_size bytes of a page, a power of 2 at least MIN_CHUNK, also the maximum value size
+     * @param clock the current time in milliseconds
+     */
+    public ValueStore(long capacity, int page_size, LongSupplier clock) {
+        if(page_size < MIN_CHUNK || Integer.bitCount(page_size) != 1)
+            throw new IllegalArgumentException("the page size must be a power of 2 not smaller than " + MIN_CHUNK);
+        if(capacity < page_size || capacity / page_size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        this.page_size = page_size;
+        this.pages = new ByteBuffer[(int) (capacity / page_size)];
+        this.n_pages = 0;
+        this.classes = new SizeClass[Integer.numberOfTrailingZeros(page_size / MIN_CHUNK) + 1];
+        for(int i = 0; i < this.classes.length; i++)
+            this.classes[i] = new SizeClass(MIN_CHUNK << i);
+        this.index = new HashMap<NodeId, Entry>();
+        this.clock = clock;
+    }
+
+    /**
+     * Size class of a value
+     * @param length bytes of the value, at most page_size
+     * @return the smallest class holding it
+     */
+    private SizeClass classFor(int length) {
+        if(length <= MIN_CHUNK)
+            return this.classes[0];
+        return this.classes[32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_CHUNK)];
+    }
+
+    /**
+     * Remove an entry, its chunk is free again
+     * @param e the entry
+     */
+    private void drop(Entry e) {
+        this.index.remove(e.key);
+        e.cls.unlink(e);
+        e.cls.push(e.page, e.offset);
+        this.used -= e.length;
+    }
+
+    /**
+     * Get a free chunk of a class: a free one, a new page, or the one of its least recently used value
+     * @param cls the class
+     * @param now the current time
+     * @return the chunk as page << 32 | offset, -1 if the class has no room
+     */
+    private long allocate(SizeClass cls, long now) {
+        if(cls.n_free == 0 && this.n_pages < this.pages.length) {
+            final int page = this.n_pages++;
+            this.pages[page] = ByteBuffer.allocateDirect(this.page_size);
+            for(int off = this.page_size - cls.chunk; off >= 0; off -= cls.chunk)
+                cls.push(page, off);
+        }
+        if(cls.n_free == 0) {
+            Entry lru = cls.head;
+            if(lru == null)
+                return -1;
+            if(lru.expires <= now)
+                this.expirations++;
+            else
+                this.evictions++;
+            this.drop(lru);
+        }
+        return cls.free[--cls.n_free];
+    }
+
+    /**
+     * Store a value, replacing the previous one of the same key
+     * @param key the key
+     * @param value the bytes, copied
+     * @param ttl milliseconds before the value expires
+     * @return false if it has not been stored (too large, or its class has no room)
+     */
+    public synchronized boolean put(NodeId key, byte[] value, long ttl) {
+        final long now = this.clock.getAsLong();
+        Entry old = this.index.get(key);
+        if(old != null)
+            this.drop(old);
+        if(value.length > this.page_size) {
+            this.rejected++;
+            return false;
+        }
+        SizeClass cls = this.classFor(value.length);
+        final long chunk = this.allocate(cls, now);
+        if(chunk == -1) {
+            this.rejected++;
+            return false;
+        }
+        Entry e = new Entry(key, cls, (int) (chunk >>> 32), (int) chunk, value.length,
+            ttl >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl);
+        ByteBuffer page = this.pages[e.page];
+        Buffers.position(page, e.offset); // the pages are used only holding the lock
+        page.put(value);
+        cls.append(e);
+        this.index.put(key, e);
+        this.used += value.length;
+        this.stores++;
+        return true;
+    }
+
+    /**
+     * Read a value, it becomes the most recently used of its class
+     * @param key the key
+     * @return a copy of the value, null if it's not stored or it's expired
+     */
+    public synchronized byte[] get(NodeId key) {
+        Entry e = this.index.get(key);
+        if(e != null && e.expires <= this.clock.getAsLong()) {
+            this.drop(e);
+            this.expirations++;
+            e = null;
+        }
+        if(e == null) {
+            this.misses++;
+            return null;
+        }
+        e.cls.unlink(e);
+        e.cls.append(e);
+        byte[] res = new byte[e.length];
+        ByteBuffer page = this.pages[e.page];
+        Buffers.position(page, e.offset);
+        page.get(res);
+        this.hits++;
+        return res;
+    }
+
+    /**
+     * Remove a value
+     * @param key the key
+     * @return true if it was stored
+     */
+    public synchronized boolean remove(NodeId key) {
+        Entry e = this.index.get(key);
+        if(e == null)
+            return false;
+        this.drop(e);
+        return true;
+    }
+
+    /**
+     * Drop all the expired values
+     * @return how many values have been dropped
+     */
+    public synchronized int purgeExpired() {
+        final long now = this.clock.getAsLong();
+        int n = 0;
+        for(Iterator<Entry> it = this.index.values().iterator(); it.hasNext();) {
+            Entry e = it.next();
+            if(e.expires <= now) {
+                it.remove();
+                e.cls.unlink(e);
+                e.cls.push(e.page, e.offset);
+                this.used -= e.length;
+                n++;
+            }
+        }
+        this.expirations += n;
+        return n;
+    }
+
+    public synchronized int size() {
+        return this.index.size();
+    }
+
+    /**
+     * Bytes of the stored values
+     * @return the used bytes
+     */
+    public synchronized long usedBytes() {
+        return this.used;
+    }
+
+    /**
+     * Direct memory taken by the pages, the values and the free chunks
+     * @return the allocated bytes
+     */
+    public synchronized long allocatedBytes() {
+        return (long) this.n_pages * this.page_size;
+    }
+
+    public long capacity() {
+        return (long) this.pages.length * this.page_size;
+    }
+
+    public synchronized long stores() {
+        return this.stores;
+    }
+
+    public synchronized long rejected() {
+        return this.rejected;
+    }
+
+    public synchronized long hits() {
+        return this.hits;
+    }
+
+    public synchronized long misses() {
+        return this.misses;
+    }
+
+    public synchronized long evictions() {
+        return this.evictions;
+    }
+
+    public synchronized long expirations() {
+        return this.expirations;
+    }
+
+    /**
+     * Fraction of the reads that found the value
+     * @return the hit rate, 0 if nothing has been read
+     */
+    public synchronized double hitRate() {
+        final long reads = this.hits + this.misses;
+        return reads == 0 ? 0 : (double) this.hits / reads;
+    }
+}
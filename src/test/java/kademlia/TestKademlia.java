@@ -1,18 +1,48 @@
 package kademlia;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.BitSet;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import com.opencsv.CSVWriter;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Test;
 
 /**
@@ -29,10 +59,46 @@ public class TestKademlia {
         file.delete();
     }
 
+    /**
+     * Build a network as the sequential Simulator does, each node joining through a random bootstrap
+     * @param transport the transport of all the nodes
+     * @param all_nodes where the nodes are registered
+     * @param random source of the contacts and of the bootstraps
+     * @param n number of nodes
+     * @param k the dimension of the kbuckets
+     * @param alpha the parallel requests of a lookup
+     * @param setup applied to each node before it joins, null if none
+     * @return the nodes, in join order
+     * @throws UnknownHostException should never be thrown (caused by random generated ip)
+     * @throws UnsupportedEncodingException should never be thrown (caused by hash)
+     */
+    private ArrayList<Node> network(Transport transport, Map<NodeId, Node> all_nodes, IdGenerator random, int n, int k, int alpha, Consumer<Node> setup)
+            throws UnknownHostException, UnsupportedEncodingException {
+        ArrayList<Node> nodes = new ArrayList<Node>(n);
+        for(int i = 0; i < n; i++) {
+            Node node = new Node(transport, random.nextContact(id_bit_length, true), k, alpha);
+            if(setup != null)
+                setup.accept(node);
+            all_nodes.put(node.me.id, node);
+            if(!nodes.isEmpty())
+                node.bootstrap(nodes.get(random.nextInt(nodes.size())).me);
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    /**
+     * Build a network of nodes with k 5 and alpha 3, see the other network
+     */
+    private ArrayList<Node> network(Transport transport, Map<NodeId, Node> all_nodes, IdGenerator random, int n, Consumer<Node> setup)
+            throws UnknownHostException, UnsupportedEncodingException {
+        return this.network(transport, all_nodes, random, n, 5, 3, setup);
+    }
+
     @Test
     public void node() {
         try {
-            Map<BitSet, Node> all_nodes = new HashMap<BitSet, Node>();
+            Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
             final int k = 20;
             Contact contact = new Contact(InetAddress.getByName("192.168.0.1"), 1235, id_bit_length);
             SocketNode socket = new SocketNode(all_nodes);
@@ -58,4 +124,865 @@ public class TestKademlia {
             fail("impossible happened" + e.toString());
         }
     }
+
+    @Test
+    public void csvExporter() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        IdGenerator random = new IdGenerator(11);
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        for(int i = 0; i < 50; i++) {
+            Node node = new Node(socket, random.nextContact(id_bit_length, true), 5, 3);
+            all_nodes.put(node.me.id, node);
+            if(!nodes.isEmpty())
+                node.bootstrap(nodes.get(0).me);
+            nodes.add(node);
+        }
+
+        File expected = File.createTempFile("expected", ".csv");
+        File plain = File.createTempFile("plain", ".csv");
+        File gzip = File.createTempFile("gzip", ".csv.gz");
+        try {
+            CSVWriter csvw = Node.getDefaultCSVWriter(expected.getPath());
+            for(Node n : nodes)
+                n.writeToCSV(csvw);
+            csvw.close();
+
+            CsvExporter exporter = new CsvExporter(plain.getPath(), false);
+            exporter.write(nodes.get(0));
+            exporter.writeAll(nodes.subList(1, nodes.size()));
+            exporter.close();
+            exporter = new CsvExporter(gzip.getPath(), true);
+            exporter.writeAll(nodes);
+            exporter.close();
+
+            byte[] bytes = Files.readAllBytes(expected.toPath());
+            assertTrue(bytes.length > 100);
+            assertArrayEquals(bytes, Files.readAllBytes(plain.toPath()));
+            ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+            try(GZIPInputStream in = new GZIPInputStream(new FileInputStream(gzip))) {
+                byte[] buf = new byte[4096];
+                for(int n = in.read(buf); n > 0; n = in.read(buf))
+                    unzipped.write(buf, 0, n);
+            }
+            assertArrayEquals(bytes, unzipped.toByteArray());
+
+            // a snapshot is not changed by what the nodes do after it
+            Node changed = nodes.get(0);
+            StringBuilder before = new StringBuilder();
+            changed.appendCSV(before);
+            exporter = new CsvExporter(plain.getPath(), false);
+            exporter.snapshot(nodes);
+            long[] sibling = {1}; // the closest bucket, surely with room
+            Contact newcomer = new Contact(changed.me.ip, 7000, changed.me.id.xor(NodeId.valueOf(sibling, id_bit_length)));
+            changed.receive(new Message(Message.kind.PING, newcomer, changed.me));
+            exporter.close();
+            assertArrayEquals(bytes, Files.readAllBytes(plain.toPath()));
+            StringBuilder after = new StringBuilder();
+            changed.appendCSV(after);
+            assertTrue(after.length() > before.length()); // the node did change
+        } finally {
+            expected.delete();
+            plain.delete();
+            gzip.delete();
+        }
+    }
+
+    @Test
+    public void graphSnapshot() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        IdGenerator random = new IdGenerator(13);
+        ArrayList<Node> nodes = this.network(socket, all_nodes, random, 50, null);
+        // the last nodes are only contacts, so they are appended to the id table
+        ArrayList<Node> written = new ArrayList<Node>(nodes.subList(0, 40));
+
+        File expected = File.createTempFile("expected", ".csv");
+        File binary = File.createTempFile("snapshot", ".kgs");
+        File converted = File.createTempFile("converted", ".csv");
+        try {
+            CSVWriter csvw = Node.getDefaultCSVWriter(expected.getPath());
+            long rows = 0;
+            for(Node n : written) {
+                n.writeToCSV(csvw);
+                for(int b = 0; b < id_bit_length; b++)
+                    if(n.routingTable().bucket(b) != null)
+                        rows += n.routingTable().bucket(b).length;
+            }
+            csvw.close();
+
+            assertEquals(rows, GraphSnapshot.write(binary.getPath(), written));
+            try(GraphSnapshot snapshot = GraphSnapshot.open(binary.getPath())) {
+                assertEquals(id_bit_length, snapshot.bitLength());
+                assertEquals(rows, snapshot.edgeCount());
+                assertTrue(snapshot.nodeCount() > written.size());
+                for(int i = 0; i < written.size(); i++) {
+                    Node n = written.get(i);
+                    assertEquals(n.me.id, snapshot.id(i));
+                    assertEquals(n.node_number, snapshot.joinNumber(i));
+                    assertEquals(n.receivedFindNode(), snapshot.receivedFindNode(i));
+                    int j = 0;
+                    for(int b = 0; b < id_bit_length; b++)
+                        if(n.routingTable().bucket(b) != null)
+                            for(Contact c : n.routingTable().bucket(b))
+                                assertEquals(c.id, snapshot.id(snapshot.target(i, j++)));
+                    assertEquals(j, snapshot.degree(i));
+                }
+                for(int i = written.size(); i < snapshot.nodeCount(); i++) {
+                    assertEquals(-1, snapshot.joinNumber(i));
+                    assertEquals(0, snapshot.degree(i));
+                    assertTrue(all_nodes.containsKey(snapshot.id(i)));
+                }
+                snapshot.toCSV(converted.getPath());
+            }
+            assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(converted.toPath()));
+
+            try(RandomAccessFile f = new RandomAccessFile(binary, "rw")) {
+                f.setLength(f.length() - 1);
+            }
+            try {
+                GraphSnapshot.open(binary.getPath()).close();
+                fail("truncated snapshot accepted");
+            } catch(IOException e) {
+                // expected
+            }
+        } finally {
+            expected.delete();
+            binary.delete();
+            converted.delete();
+        }
+    }
+
+    @Test
+    public void routingTableFile() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        IdGenerator random = new IdGenerator(17);
+        ArrayList<Node> nodes = this.network(socket, all_nodes, random, 50, null);
+        Node saved = nodes.get(10);
+        File file = File.createTempFile("table", ".kadt");
+        try {
+            int count = saved.save(file.getPath());
+            assertTrue(count > 0);
+
+            // a restart of the same node: same buckets, same order, same times
+            Node restarted = new Node(socket, new Contact(saved.me), 5, 3);
+            assertEquals(count, restarted.restore(file.getPath(), Long.MAX_VALUE));
+            long[] seen_saved = new long[5], seen_restored = new long[5];
+            for(int b = 0; b < id_bit_length; b++) {
+                Contact[] expected = saved.routingTable().bucket(b, seen_saved);
+                Contact[] got = restarted.routingTable().bucket(b, seen_restored);
+                assertEquals(expected == null, got == null);
+                if(expected != null) {
+                    assertArrayEquals(expected, got);
+                    for(int i = 0; i < expected.length; i++)
+                        assertEquals(seen_saved[i], seen_restored[i]);
+                }
+            }
+            assertEquals(0, restarted.validate(count)); // all recently seen
+
+            // the contacts gone meanwhile are removed by the validation
+            Contact gone = null;
+            for(int b = 0; b < id_bit_length && gone == null; b++)
+                if(saved.routingTable().bucket(b) != null)
+                    gone = saved.routingTable().bucket(b)[0];
+            all_nodes.remove(gone.id);
+            Node stale = new Node(socket, new Contact(saved.me), 5, 3);
+            stale.restore(file.getPath(), -1);
+            assertEquals(count, stale.validate(count + 1));
+            int left = 0;
+            for(int b = 0; b < id_bit_length; b++)
+                if(stale.routingTable().bucket(b) != null)
+                    for(Contact c : stale.routingTable().bucket(b)) {
+                        assertNotEquals(gone, c);
+                        left++;
+                    }
+            assertEquals(count - 1, left);
+
+            // the table of another node is refused
+            try {
+                nodes.get(11).restore(file.getPath(), Long.MAX_VALUE);
+                fail("table of another node accepted");
+            } catch(IOException e) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void checkpoint() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        IdGenerator random = new IdGenerator(19);
+        ArrayList<Node> nodes = this.network(socket, all_nodes, random, 60, null);
+        File file = File.createTempFile("network", ".kadc");
+        try {
+            new Checkpoint(id_bit_length, 5, 3, 0, false, false, false, random, 7, nodes).write(file.getPath());
+            Map<NodeId, Node> restored_nodes = new HashMap<NodeId, Node>();
+            Checkpoint restored = Checkpoint.read(file.getPath(), new SocketNode(restored_nodes), null);
+            assertEquals(null, restored.mismatch(id_bit_length, 5, 3, 0, false, false));
+            assertEquals("k 5", restored.mismatch(id_bit_length, 20, 3, 0, false, false));
+            assertEquals(7, restored.next_bootstrap);
+            assertEquals(random.nextLong(), restored.random.nextLong());   // the generator continues
+            assertEquals(nodes.size(), restored.nodes.size());
+            long[] seen_saved = new long[5], seen_restored = new long[5];
+            for(int i = 0; i < nodes.size(); i++) {
+                Node a = nodes.get(i), b = restored.nodes.get(i);
+                assertEquals(a.me, b.me);
+                assertEquals(a.node_number, b.node_number);
+                assertEquals(a.receivedFindNode(), b.receivedFindNode());
+                for(int j = 0; j < id_bit_length; j++) {
+                    Contact[] expected = a.routingTable().bucket(j, seen_saved);
+                    Contact[] got = b.routingTable().bucket(j, seen_restored);
+                    assertEquals(expected == null || expected.length == 0, got == null || got.length == 0);
+                    if(got != null && got.length > 0) {
+                        assertArrayEquals(expected, got);
+                        for(int c = 0; c < got.length; c++)
+                            assertEquals(seen_saved[c], seen_restored[c]);
+                    }
+                }
+                restored_nodes.put(b.me.id, b);
+            }
+            // the restored network works as the original one
+            NodeId target = random.nextId(id_bit_length);
+            assertEquals(nodes.get(3).Lookup(target).toString(), restored.nodes.get(3).Lookup(target).toString());
+
+            try {
+                Checkpoint.read(file.getPath(), socket, new ContactDirectory(id_bit_length));
+                fail("compact tables from a not compact checkpoint");
+            } catch(IOException e) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void storeAndFindValue() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        IdGenerator random = new IdGenerator(23);
+        ArrayList<Node> nodes = this.network(socket, all_nodes, random, 80, node -> node.setStore(new ValueStore(1 << 16, 4096)));
+        NodeId key = random.nextId(id_bit_length);
+        byte[] value = "value of the key".getBytes("UTF-8");
+        assertEquals(null, nodes.get(1).findValue(key));
+        assertEquals(5, nodes.get(0).store(key, value, 60000));
+        int holders = 0;
+        for(Node n : nodes)
+            if(n.store().size() == 1)
+                holders++;
+        assertEquals(5, holders);
+        for(int i = 10; i < 20; i++)
+            assertArrayEquals(value, nodes.get(i).findValue(key));
+
+        // a node without store refuses the values
+        Node refusing = nodes.get(nodes.size() - 1);
+        refusing.setStore(null);
+        Message res = socket.sendAndReceive(new Message.StoreRequest(key, value, 60000, nodes.get(0).me, refusing.me), 1000);
+        assertFalse(((Message.StoreResponse) res).stored);
+
+        // FIND_VALUE requests are counted as FIND ones
+        final long served = refusing.receivedFindNode();
+        socket.sendAndReceive(new Message.FindValueRequest(key, null, nodes.get(0).me, refusing.me), 1000);
+        assertEquals(served + 1, refusing.receivedFindNode());
+    }
+
+    @Test
+    public void lookupCache() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        IdGenerator random = new IdGenerator(29);
+        ArrayList<Node> nodes = this.network(socket, all_nodes, random, 60, null);
+        LookupMetrics metrics = new LookupMetrics();
+        Node node = nodes.get(7);
+        node.setMetrics(metrics);
+        node.setLookupCache(new LookupCache(16, 60000, 600000));
+        NodeId target = random.nextId(id_bit_length);
+        CandidateSet first = node.Lookup(target);
+        assertEquals(1, metrics.lookups());
+        CandidateSet again = node.Lookup(target);
+        assertEquals(1, metrics.lookups());    // answered by the cache, no request
+        assertEquals(first.size(), again.size());
+        for(int i = 0; i < first.size(); i++)
+            assertEquals(first.get(i).contact, again.get(i).contact);
+        assertEquals(1, node.lookupCache().hits());
+        assertTrue(node.lookupCache().savedRpcs() > 0);
+
+        // a cached contact that does not respond to a ping drops the result
+        Node gone = all_nodes.remove(first.closest().id);
+        assertFalse(node.ping(gone.me));
+        assertEquals(1, node.lookupCache().invalidations());
+        node.Lookup(target);
+        assertEquals(2, metrics.lookups());
+    }
+
+    @Test
+    public void gossip() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        final int[] longest = {0};
+        Transport counting = (mes, timeout) -> {
+            if(mes instanceof Message.FindRequest)
+                longest[0] = Math.max(longest[0], ((Message.FindRequest) mes).traversed_nodes.size());
+            return socket.send(mes, timeout);
+        };
+        IdGenerator random = new IdGenerator(31);
+        ArrayList<Node> nodes = this.network(counting, all_nodes, random, 60, node -> node.setGossip(new Gossip(2)));
+        assertTrue(longest[0] <= 3);    // the sender and at most 2 traversed nodes
+        // the lookups still converge, nearly as with the whole lists (96 found)
+        int found = 0;
+        for(int i = 0; i < 100; i++) {
+            int t = random.nextInt(nodes.size());
+            Node target = nodes.get(t);
+            if(target.me.equals(nodes.get((t + 1 + random.nextInt(nodes.size() - 1)) % nodes.size()).Lookup(target.me.id).closest()))
+                found++;
+        }
+        assertTrue(found >= 90);
+        Gossip gossip = nodes.get(30).gossip();
+        assertTrue(gossip.sent() > 0);
+        assertTrue(gossip.sent() + gossip.filtered() <= gossip.offered());
+    }
+
+    @Test
+    public void bucketRefresh() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        IdGenerator random = new IdGenerator(37);
+        ArrayList<Node> nodes = this.network(socket, all_nodes, random, 40, null);
+        Node node = nodes.get(10);
+        int used = 0;
+        for(int i = 0; i < id_bit_length; i++)
+            if(node.routingTable().bucket(i) != null)
+                used++;
+        assertTrue(used > 0);
+
+        // only the buckets in use and not recently seen
+        assertEquals(0, node.refreshStale(60000));
+        Thread.sleep(5);
+        final long start = System.currentTimeMillis();
+        final int refreshed = node.refreshStale(1);
+        assertEquals(used, refreshed);    // all in the same sweep
+        for(int i = 0; i < id_bit_length; i++)
+            if(node.routingTable().bucket(i) != null)
+                assertTrue(node.bucketSeen(i) >= start);
+        assertEquals(0, node.refreshStale(60000));
+        assertEquals(refreshed, node.refreshedBuckets());
+
+        // driven by a wheel: a single timer, rescheduled at each refresh
+        final long[] now = {0};
+        TimerWheel wheel = new TimerWheel(1, () -> now[0]);
+        node.refreshEvery(wheel, 1, null);
+        assertEquals(1, wheel.pending());
+        Thread.sleep(5);
+        now[0] += 1;
+        assertEquals(1, wheel.advance());
+        assertTrue(node.refreshedBuckets() > refreshed);
+        assertEquals(1, wheel.pending());
+        node.stopRefresh();
+        now[0] += 1000;
+        assertEquals(0, wheel.advance());
+    }
+
+    @Test
+    public void sweep() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        ArrayList<String> asked = new ArrayList<String>();
+        Transport counting = (mes, timeout) -> {
+            if(mes.type == Message.kind.FIND)
+                asked.add(mes.receiver + " bucket " + mes.receiver.id.bucketIndex(((Message.FindRequest) mes).id));
+            return socket.send(mes, timeout);
+        };
+        IdGenerator random = new IdGenerator(41);
+        ArrayList<Node> nodes = this.network(counting, all_nodes, random, 80, null);
+        Node node = nodes.get(20);
+        NodeId[] targets = new NodeId[id_bit_length];
+        for(int i = 0; i < targets.length; i++)
+            targets[i] = random.nextId(id_bit_length).withPrefix(node.me.id, i);
+
+        // closest contacts as good as the ones of the lookups one by one, asking each bucket of a node once
+        asked.clear();
+        CandidateSet[] swept = node.sweep(targets);
+        final int sweep_rpcs = asked.size();
+        assertEquals(sweep_rpcs, new HashSet<String>(asked).size());
+        asked.clear();
+        for(int i = 0; i < targets.length; i++) {
+            assertEquals(targets[i], swept[i].target);
+            assertTrue(swept[i].closest().compareDistance(node.Lookup(targets[i]).closest(), targets[i]) <= 0);
+        }
+        assertTrue(sweep_rpcs * 4 < asked.size());
+    }
+
+    @Test
+    public void evictionPing() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        Contact[] c = new Contact[4];
+        for(int i = 0; i < c.length; i++) // c[0] owns the node, the others share its farthest bucket
+            c[i] = new Contact(InetAddress.getByName("10.0.5." + i), 1235, NodeId.valueOf(new long[] { i == 0 ? 1 : 0x80000000L + i }, id_bit_length));
+        Node node = new Node(socket, c[0], 2, alpha);
+        all_nodes.put(c[0].id, node);
+        for(int i = 2; i < c.length; i++)
+            all_nodes.put(c[i].id, new Node(socket, c[i], 2, alpha));   // c[1] is gone
+        ArrayList<Runnable> probes = new ArrayList<Runnable>();
+        node.setEvictionExecutor(probes::add);
+        node.receive(new Message(Message.kind.PING, c[1], c[0]));
+        node.receive(new Message(Message.kind.PING, c[2], c[0]));
+
+        // the bucket is full: the request is served without pinging, c[3] waits as a replacement
+        ShortList traversed = new ShortList(2, c[3], c[0].id);
+        traversed.add(c[3]);
+        assertTrue(node.receive(new Message.FindRequest(c[0].id, traversed, c[3], c[0])) instanceof Message.FindResponse);
+        node.receive(new Message.FindRequest(c[0].id, traversed, c[3], c[0]));
+        assertEquals(1, probes.size());   // a single ping for the same head
+        RoutingTable table = node.routingTable();
+        assertEquals(Arrays.asList(c[1], c[2]), Arrays.asList(table.bucket(id_bit_length - 1)));
+
+        // the head did not respond, the replacement takes its place
+        probes.get(0).run();
+        assertEquals(Arrays.asList(c[2], c[3]), Arrays.asList(table.bucket(id_bit_length - 1)));
+
+        // an alive head is refreshed and the replacement keeps waiting
+        probes.clear();
+        Contact late = new Contact(InetAddress.getByName("10.0.5.9"), 1235, NodeId.valueOf(new long[] { 0x80000009L }, id_bit_length));
+        traversed = new ShortList(2, late, c[0].id);
+        traversed.add(late);
+        node.receive(new Message.FindRequest(c[0].id, traversed, late, c[0]));
+        probes.get(0).run();
+        assertEquals(Arrays.asList(c[3], c[2]), Arrays.asList(table.bucket(id_bit_length - 1)));
+    }
+
+    @Test
+    public void evictionPingAsync() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        Contact[] c = new Contact[4];
+        for(int i = 0; i < c.length; i++) // c[0] owns the node, the others share its farthest bucket
+            c[i] = new Contact(InetAddress.getByName("10.0.6." + i), 1235, NodeId.valueOf(new long[] { i == 0 ? 1 : 0x80000000L + i }, id_bit_length));
+        // a synchronous transport where the ping of c[1] hangs until released, then times out
+        CountDownLatch release = new CountDownLatch(1);
+        Transport hanging = new Transport() {
+            @Override
+            public CompletableFuture<Message> send(Message mes, long timeout) {
+                if(mes.receiver.equals(c[1])) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return Transport.unreachable(mes);
+                }
+                return socket.send(mes, timeout);
+            }
+
+            @Override
+            public boolean synchronous() {
+                return true;
+            }
+        };
+        Node node = new Node(hanging, c[0], 2, alpha); // with the default eviction executor
+        all_nodes.put(c[0].id, node);
+        for(int i = 2; i < c.length; i++)
+            all_nodes.put(c[i].id, new Node(socket, c[i], 2, alpha));
+        node.receive(new Message(Message.kind.PING, c[1], c[0]));
+        node.receive(new Message(Message.kind.PING, c[2], c[0]));
+
+        // the bucket is full and its head does not respond: the request is served anyway
+        ShortList traversed = new ShortList(2, c[3], c[0].id);
+        traversed.add(c[3]);
+        final long start = System.nanoTime();
+        assertTrue(node.receive(new Message.FindRequest(c[0].id, traversed, c[3], c[0])) instanceof Message.FindResponse);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)); // not the 10s of the hanging ping
+        RoutingTable table = node.routingTable();
+        assertEquals(Arrays.asList(c[1], c[2]), Arrays.asList(table.bucket(id_bit_length - 1)));
+
+        // when the ping times out the replacement takes its place
+        release.countDown();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while(!Arrays.asList(table.bucket(id_bit_length - 1)).contains(c[3]) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(Arrays.asList(c[2], c[3]), Arrays.asList(table.bucket(id_bit_length - 1)));
+    }
+
+    @Test
+    public void lookupMetrics() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        IdGenerator random = new IdGenerator(17);
+        LookupMetrics metrics = new LookupMetrics();
+        ArrayList<Node> nodes = this.network(socket, all_nodes, random, 100, node -> node.setMetrics(metrics));
+        assertEquals(99, metrics.lookups());   // the bootstraps
+        assertTrue(metrics.rpcs.mean() >= 1);
+        assertEquals(0, metrics.timeouts.max());
+        assertEquals(metrics.rpcs.mean(), metrics.contacted.mean(), 0);
+
+        // a lookup of an existing node ends at distance 0, the unreachable nodes time out
+        Node node = nodes.get(0);
+        node.setRpcTimeout(10);
+        for(int i = 50; i < 100; i++)
+            all_nodes.remove(nodes.get(i).me.id);
+        LookupMetrics lookup = new LookupMetrics();
+        node.setMetrics(lookup);
+        CandidateSet res = node.Lookup(nodes.get(10).me.id);
+        assertEquals(nodes.get(10).me, res.closest());
+        assertEquals(1, lookup.lookups());
+        assertEquals(0, lookup.distance.max());
+        assertEquals(lookup.rpcs.max(), lookup.contacted.max() + lookup.timeouts.max());
+        assertTrue(lookup.timeouts.max() > 0);
+
+        // without metrics nothing is recorded
+        node.setMetrics(null);
+        node.Lookup(nodes.get(20).me.id);
+        assertEquals(1, lookup.lookups());
+    }
+
+    @Test
+    public void recursiveLookup() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        IdGenerator random = new IdGenerator(43);
+        ArrayList<Node> nodes = this.network(socket, all_nodes, random, 60, null);
+        LookupMetrics metrics = new LookupMetrics();
+        Node node = nodes.get(0);
+        node.setMetrics(metrics);
+        // each step gets closer to the target, not to the searcher: the nodes are found
+        for(Node target : nodes.subList(30, 50)) {
+            ShortList traversed = new ShortList(5, node.me, target.me.id);
+            traversed.add(node.me);
+            node.recursiveFindNode(nodes.get(1).me, target.me.id, traversed);
+        }
+        assertEquals(20, metrics.lookups());
+        assertEquals(0, metrics.distance.max());
+    }
+
+    @Test
+    public void jfrEvents() throws Exception {
+        Assume.assumeTrue(JfrEvents.AVAILABLE);
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        SocketNode socket = new SocketNode(all_nodes);
+        IdGenerator random = new IdGenerator(19);
+        File dump = File.createTempFile("kademlia", ".jfr");
+        try(Recording recording = new Recording()) {
+            for(String event : new String[] {"kademlia.Rpc", "kademlia.Receive", "kademlia.Ping", "kademlia.LookupRound", "kademlia.Eviction"})
+                recording.enable(event);
+            recording.start();
+            ArrayList<Node> nodes = this.network(socket, all_nodes, random, 60, 2, 1, null);
+            assertTrue(nodes.get(1).ping(nodes.get(0).me));
+            recording.stop();
+            recording.dump(dump.toPath());
+
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            for(RecordedEvent e : RecordingFile.readAllEvents(dump.toPath()))
+                counts.merge(e.getEventType().getName(), 1, Integer::sum);
+            assertTrue(counts.get("kademlia.Rpc") > 0);
+            assertEquals(counts.get("kademlia.Rpc"), counts.get("kademlia.Receive"));
+            assertEquals(1, (int) counts.get("kademlia.Ping"));
+            assertTrue(counts.get("kademlia.LookupRound") > 0);
+            assertTrue(counts.get("kademlia.Eviction") > 0);
+        } finally {
+            dump.delete();
+        }
+        // no recording, no events
+        assertEquals(null, JfrEvents.rpc());
+    }
+
+    @Test
+    public void parallelLookup() throws Exception {
+        Map<NodeId, Node> all_nodes = new ConcurrentHashMap<NodeId, Node>();
+        final int k = 5;
+        SocketNode socket = new SocketNode(all_nodes);
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        for(int i = 1; i <= 60; i++) {
+            Contact contact = new Contact(InetAddress.getByName("10.0.0." + i), 1235, id_bit_length);
+            Node node = new Node(socket, contact, k, 3);
+            all_nodes.put(node.me.id, node);
+            if(!nodes.isEmpty())
+                node.bootstrap(nodes.get(0).me);
+            nodes.add(node);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Node searcher = nodes.get(nodes.size() - 1);
+            searcher.setLookupExecutor(executor);
+            for(Node target : nodes.subList(0, 10)) {
+                CandidateSet res = searcher.Lookup(target.me.id);
+                assertEquals(target.me, res.closest());
+                assertEquals(k, res.size());
+                assertFalse(res.hasUncontacted());
+            }
+
+            // concurrent lookups from different nodes
+            ArrayList<Future<CandidateSet>> results = new ArrayList<Future<CandidateSet>>();
+            ExecutorService callers = Executors.newFixedThreadPool(4);
+            for(Node node : nodes.subList(10, 30)) {
+                node.setLookupExecutor(executor);
+                final NodeId target = nodes.get((int) (node.node_number % 10)).me.id;
+                results.add(callers.submit(() -> node.Lookup(target)));
+            }
+            for(Future<CandidateSet> res : results)
+                assertEquals(k, res.get().size());
+            callers.shutdown();
+
+            // a node answering FIND with another kind of response is a failed candidate
+            final Node liar = nodes.get(5);
+            Transport replies = (mes, timeout) -> mes.receiver.equals(liar.me)
+                ? CompletableFuture.completedFuture(new Message.Response(mes)) : socket.send(mes, timeout);
+            Node asker = new Node(replies, new Contact(InetAddress.getByName("10.0.0.100"), 1235, id_bit_length), k, 3);
+            all_nodes.put(asker.me.id, asker);
+            asker.bootstrap(nodes.get(0).me);
+            assertNotEquals(liar.me, asker.Lookup(liar.me.id).closest());
+            assertNotEquals(liar.me, asker.lookupAsync(liar.me.id).get(10, TimeUnit.SECONDS).closest());
+            assertNotEquals(liar.me, asker.sweep(new NodeId[] { liar.me.id })[0].closest());
+            asker.setLookupExecutor(executor);
+            assertNotEquals(liar.me, asker.Lookup(liar.me.id).closest());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentJoins() throws Exception {
+        Map<NodeId, Node> all_nodes = new ConcurrentHashMap<NodeId, Node>();
+        final int k = 5;
+        SocketNode socket = new SocketNode(all_nodes);
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        for(int i = 1; i <= 200; i++) {
+            Contact contact = new Contact(InetAddress.getByName("10.0." + (i / 250) + "." + (i % 250)), 1235, id_bit_length);
+            Node node = new Node(socket, contact, k, 3);
+            all_nodes.put(node.me.id, node);
+            nodes.add(node);
+        }
+
+        // every node join and refresh while the others are joining
+        ForkJoinPool pool = new ForkJoinPool(8);
+        ArrayList<CompletableFuture<Void>> joins = new ArrayList<CompletableFuture<Void>>();
+        final Node bootstrap = nodes.get(0);
+        for(Node node : nodes.subList(1, nodes.size()))
+            joins.add(CompletableFuture.runAsync(() -> {
+                node.bootstrap(bootstrap.me);
+                for(int i = 0; i < 5; i++)
+                    node.Lookup(nodes.get((int) ((node.node_number * 7 + i) % nodes.size())).me.id);
+            }, pool));
+        CompletableFuture.allOf(joins.toArray(new CompletableFuture<?>[joins.size()])).get();
+        pool.shutdown();
+
+        for(Node node : nodes.subList(1, nodes.size()))
+            assertEquals(bootstrap.me, node.Lookup(bootstrap.me.id).closest());
+        Node searcher = nodes.get(nodes.size() - 1);
+        for(Node target : nodes.subList(0, 20))
+            assertEquals(target.me, searcher.Lookup(target.me.id).closest());
+    }
+
+    @Test
+    public void simulatedTransport() throws Exception {
+        Map<NodeId, Node> all_nodes = new HashMap<NodeId, Node>();
+        final int k = 5;
+        EventLoop loop = new EventLoop();
+        IdGenerator random = new IdGenerator(7);
+        SimulatedTransport transport = new SimulatedTransport(loop, all_nodes, LatencyModel.perLink(10000, 50000, 1000), random.split());
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        ArrayList<CompletableFuture<CandidateSet>> joins = new ArrayList<CompletableFuture<CandidateSet>>();
+        for(int i = 0; i < 100; i++) {
+            Node node = new Node(transport, random.nextContact(id_bit_length, false), k, 3);
+            all_nodes.put(node.me.id, node);
+            if(!nodes.isEmpty())
+                joins.add(node.bootstrapAsync(nodes.get(0).me));
+            nodes.add(node);
+        }
+        assertFalse(joins.get(0).isDone()); // nothing happen until the loop run
+        loop.run();
+        for(CompletableFuture<CandidateSet> join : joins)
+            assertTrue(join.isDone());
+        assertTrue(loop.now() >= 20000); // at least a round trip
+
+        Node searcher = nodes.get(nodes.size() - 1);
+        final long start = loop.now();
+        CompletableFuture<CandidateSet> res = searcher.lookupAsync(nodes.get(3).me.id);
+        loop.run();
+        assertEquals(nodes.get(3).me, res.get().closest());
+        assertEquals(k, res.get().size());
+        assertTrue(loop.now() - start >= 20000);
+
+        // an unknown node is detected by the timeout, on the virtual clock
+        searcher.setRpcTimeout(500);
+        final long sent = loop.now();
+        CompletableFuture<Boolean> ping = searcher.pingAsync(new Contact(InetAddress.getByName("10.1.1.1"), 1, id_bit_length));
+        loop.run();
+        assertFalse(ping.get());
+        assertEquals(sent + 500000, loop.now());
+
+        // everything is lost
+        SimulatedTransport lossy = new SimulatedTransport(loop, all_nodes, LatencyModel.lossy(LatencyModel.constant(1000), 1.0), random.split());
+        Node isolated = new Node(lossy, random.nextContact(id_bit_length, false), k, 3);
+        isolated.setRpcTimeout(500);
+        CompletableFuture<CandidateSet> lost = isolated.bootstrapAsync(searcher.me);
+        loop.run();
+        assertEquals(0, lost.get().size());
+        assertEquals(lossy.sent(), lossy.lost());
+    }
+
+    @Test
+    public void asyncTransport() throws Exception {
+        Map<NodeId, Node> all_nodes = new ConcurrentHashMap<NodeId, Node>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            SocketNode socket = new SocketNode(all_nodes, executor);
+            ArrayList<Node> nodes = new ArrayList<Node>();
+            for(int i = 1; i <= 30; i++) {
+                Contact contact = new Contact(InetAddress.getByName("10.0.1." + i), 1235, id_bit_length);
+                Node node = new Node(socket, contact, 5, 3);
+                node.setRpcTimeout(500);
+                all_nodes.put(node.me.id, node);
+                if(!nodes.isEmpty())
+                    node.bootstrap(nodes.get(0).me);
+                nodes.add(node);
+            }
+            Node node = nodes.get(1);
+
+            // the response carry the correlation id of the request
+            Message req = new Message(Message.kind.PING, node.me, nodes.get(2).me);
+            Message res = socket.send(req, 500).get();
+            assertEquals(req.rpc_id, res.rpc_id);
+            assertEquals(nodes.get(2).me, res.sender);
+            assertNotEquals(req.rpc_id, new Message(Message.kind.PING, node.me, nodes.get(2).me).rpc_id);
+
+            // many requests in flight at the same time
+            ArrayList<CompletableFuture<Boolean>> pings = new ArrayList<CompletableFuture<Boolean>>();
+            for(Node other : nodes)
+                pings.add(node.pingAsync(other.me));
+            for(CompletableFuture<Boolean> pong : pings)
+                assertTrue(pong.get());
+
+            // an unreachable contact make the future fail
+            Contact missing = new Contact(InetAddress.getByName("10.0.2.1"), 1235, id_bit_length);
+            assertFalse(node.pingAsync(missing).get());
+            assertFalse(node.ping(missing));
+
+            // with an asynchronous transport the parallel lookup does not need threads
+            node.setLookupExecutor(Runnable::run);
+            CandidateSet found = node.Lookup(nodes.get(20).me.id);
+            assertEquals(nodes.get(20).me, found.closest());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void rpcTimeout() throws Exception {
+        RpcTable table = new RpcTable();
+        Contact a = new Contact(InetAddress.getByName("10.0.3.1"), 1235, id_bit_length);
+        Contact b = new Contact(InetAddress.getByName("10.0.3.2"), 1235, id_bit_length);
+        Message req = new Message(Message.kind.PING, a, b);
+        CompletableFuture<Message> future = table.register(req, 50);
+        assertEquals(1, table.size());
+        try {
+            future.get();
+            fail("the request must time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(0, table.size());
+        assertFalse(table.complete(new Message.Response(req))); // late response discarded
+
+        req = new Message(Message.kind.PING, a, b);
+        future = table.register(req, 1000);
+        Message fake = new Message.Response(new Message(Message.kind.PING, a, a));
+        assertFalse(table.complete(fake)); // not the expected rpc_id
+        Message find = new Message.FindRequest(a.id, null, a, b, req.rpc_id);
+        assertFalse(table.complete(new Message.FindResponse(new CandidateSet(1, a.id), find))); // not the kind requested
+        assertTrue(table.complete(new Message.Response(req)));
+        assertEquals(b, future.get().sender);
+    }
+
+    @Test
+    public void batchingTransport() throws Exception {
+        Map<NodeId, Node> all_nodes = new ConcurrentHashMap<NodeId, Node>();
+        BatchingTransport batching = new BatchingTransport(new SocketNode(all_nodes), 200000, 4);
+        IdGenerator random = new IdGenerator(31);
+        Node a = new Node(batching, random.nextContact(id_bit_length, true), 5, 3);
+        Node b = new Node(batching, random.nextContact(id_bit_length, true), 5, 3);
+        all_nodes.put(a.me.id, a);
+        all_nodes.put(b.me.id, b);
+
+        // requests to the same node in the window go in a single message
+        ArrayList<CompletableFuture<Message>> futures = new ArrayList<CompletableFuture<Message>>();
+        futures.add(batching.send(new Message(Message.kind.PING, a.me, b.me), 1000));
+        NodeId target = random.nextId(id_bit_length);
+        futures.add(batching.send(new Message.FindRequest(target, null, a.me, b.me), 1000));
+        futures.add(batching.send(new Message(Message.kind.PING, b.me, a.me), 1000)); // another pair
+        batching.flush();
+        for(CompletableFuture<Message> f : futures)
+            assertTrue(f.get() instanceof Message.Response);
+        assertEquals(target, ((Message.FindResponse) futures.get(1).get()).id);
+        assertEquals(3, batching.requests());
+        assertEquals(2, batching.messages());
+        assertEquals(1, batching.batches());
+
+        // a full batch is sent without waiting the window
+        futures.clear();
+        for(int i = 0; i < 4; i++)
+            futures.add(batching.send(new Message(Message.kind.PING, a.me, b.me), 1000));
+        for(CompletableFuture<Message> f : futures)
+            assertEquals(b.me, f.get(100, TimeUnit.MILLISECONDS).sender);
+        assertEquals(2, batching.batches());
+
+        // all the requests of a batch to an unreachable node fail
+        all_nodes.remove(b.me.id);
+        assertFalse(a.ping(b.me));
+        futures.clear();
+        for(int i = 0; i < 2; i++)
+            futures.add(batching.send(new Message(Message.kind.PING, a.me, b.me), 1000));
+        batching.flush();
+        for(CompletableFuture<Message> f : futures) {
+            try {
+                f.get();
+                fail("the node is not reachable");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+        }
+    }
+
+    @Test
+    public void udpTransport() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        ArrayList<UdpTransport> transports = new ArrayList<UdpTransport>();
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        try {
+            for(int i = 0; i < 20; i++) {
+                UdpTransport transport = new UdpTransport(new InetSocketAddress(loopback, 0));
+                transports.add(transport);
+                Node node = new Node(transport, new Contact(loopback, transport.port(), id_bit_length), 5, 3);
+                node.setRpcTimeout(1000);
+                transport.bind(node);
+                if(i % 2 == 0)
+                    node.setLookupExecutor(Runnable::run); // half of the nodes use the parallel lookup
+                if(!nodes.isEmpty())
+                    node.bootstrap(nodes.get(0).me);
+                nodes.add(node);
+            }
+
+            Node node = nodes.get(nodes.size() - 1);
+            assertTrue(node.ping(nodes.get(3).me));
+            for(Node target : nodes.subList(0, 5)) {
+                CandidateSet found = node.Lookup(target.me.id);
+                assertEquals(target.me, found.closest());
+                found = nodes.get(4).Lookup(target.me.id);
+                assertEquals(target.me, found.closest());
+            }
+
+            // a closed node does not respond
+            Contact closed = nodes.get(5).me;
+            transports.get(5).close();
+            node.setRpcTimeout(200);
+            assertFalse(node.ping(closed));
+        } finally {
+            for(UdpTransport transport : transports)
+                transport.close();
+        }
+    }
 }
@@ -1,13 +1,19 @@
 package kademlia;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 
 import org.junit.Test;
@@ -47,7 +53,45 @@ public class TestKademliaComponents {
         }
     }
 
-    
+    @Test
+    public void nodeId() {
+        final int bits = 160;
+        long[] t = { 0, 0, 1L << 31 };   // only the most significant bit set
+        long[] a = { -1L, -1L, 0 };     // far from target only in the highest word
+        long[] b = { 0, 0, (1L << 31) | 1L };
+        NodeId target = NodeId.valueOf(t, bits);
+        NodeId ida = NodeId.valueOf(a, bits);
+        NodeId idb = NodeId.valueOf(b, bits);
+        // the sum of the words would say that a is farther, but a differ in bit 159
+        assertTrue(NodeId.compareDistance(idb, ida, target) < 0);
+        assertTrue(NodeId.compareDistance(ida, idb, target) > 0);
+        assertEquals(0, NodeId.compareDistance(ida, ida, target));
+        assertEquals(159, target.bucketIndex(ida));
+        assertEquals(128, target.bucketIndex(idb));
+        assertEquals(-1, target.bucketIndex(target));
+        assertTrue(ida.xor(target).compareTo(idb.xor(target)) > 0);
+
+        // trimming, equality and hash
+        long[] over = { 0, 0, -1L };
+        NodeId trimmed = NodeId.valueOf(over, bits);
+        assertEquals(NodeId.valueOf(new long[] { 0, 0, 0xFFFFFFFFL }, bits), trimmed);
+        assertEquals(NodeId.valueOf(new long[] { 0, 0, 0xFFFFFFFFL }, bits).hashCode(), trimmed.hashCode());
+        assertNotEquals(ida, idb);
+
+        // same byte layout of BitSet
+        BitSet set = BitSet.valueOf(b);
+        assertEquals(set, idb.toBitSet());
+        assertTrue(java.util.Arrays.equals(set.toByteArray(), idb.toByteArray()));
+        assertEquals(idb, NodeId.valueOf(set.toByteArray(), 0, set.toByteArray().length, bits));
+
+        // bits from 130 on are taken from target
+        NodeId prefixed = ida.withPrefix(target, 130);
+        assertEquals(159, prefixed.bucketIndex(ida));
+        assertEquals(127, prefixed.bucketIndex(target));
+        assertTrue(prefixed.get(127) && !prefixed.get(128) && prefixed.get(159));
+        assertEquals(-1, prefixed.withPrefix(target, bits).bucketIndex(prefixed));
+    }
+
     @Test
     public void shortlist()
     {
@@ -109,4 +153,644 @@ public class TestKademliaComponents {
             fail("impossible happened" + e.toString());
         }
     }
+
+    @Test
+    public void candidateSet() {
+        try {
+            final int k = 5;
+            long[] longs = {0};
+            InetAddress ip = InetAddress.getByName("192.168.0.1");
+            NodeId target = NodeId.valueOf(longs, id_bit_length);
+            CandidateSet set = new CandidateSet(k, target);
+            for(int i = 20; i > 0; i--) { // added from the farthest
+                longs[0] = i;
+                set.add(new Contact(ip, 123, BitSet.valueOf(longs), id_bit_length));
+            }
+            assertEquals(k, set.size());
+            for(int i = 0; i < k; i++)
+                assertEquals(i + 1, set.get(i).contact.distance(target));
+
+            longs[0] = 3;
+            Contact dup = new Contact(ip, 123, BitSet.valueOf(longs), id_bit_length);
+            assertFalse(set.add(dup));  //test for duplicates element
+            longs[0] = 6;
+            assertFalse(set.add(new Contact(ip, 123, BitSet.valueOf(longs), id_bit_length)));  // too far
+
+            ArrayList<CandidateSet.Candidate> alpha = set.nextUncontacted(2);
+            assertEquals(2, alpha.size());
+            assertEquals(1, alpha.get(0).contact.distance(target));
+            assertEquals(3, set.nextUncontacted(2).get(0).contact.distance(target));
+
+            // a closer contact move back the cursor, the farthest is dropped
+            longs[0] = 0;
+            Contact closest = new Contact(ip, 123, BitSet.valueOf(longs), id_bit_length);
+            assertTrue(set.add(closest));
+            assertEquals(closest, set.closest());
+            assertEquals(4, set.get(k - 1).contact.distance(target));
+            alpha = set.nextUncontacted(3);
+            assertEquals(closest, alpha.get(0).contact);
+            assertEquals(1, alpha.size());  // 1, 2, 3, 4 are already contacted
+            assertFalse(set.hasUncontacted());
+
+            // failed candidates are removed and never added again
+            set.fail(alpha.get(0));
+            assertEquals(k - 1, set.size());
+            assertFalse(set.contains(closest));
+            assertFalse(set.add(closest));
+            // a dropped candidate fits again after the failure, with its status
+            longs[0] = 5;
+            Contact dropped = new Contact(ip, 123, BitSet.valueOf(longs), id_bit_length);
+            assertFalse(set.contains(dropped));
+            assertTrue(set.add(dropped));
+            assertEquals(k, set.size());
+            assertFalse(set.add(dropped));
+            alpha = set.nextUncontacted(3);
+            assertEquals(1, alpha.size());  // never contacted before it was dropped
+            assertEquals(dropped, alpha.get(0).contact);
+            longs[0] = 0;
+            assertFalse(set.add(new Contact(ip, 123, BitSet.valueOf(longs), id_bit_length)));   // still failed
+
+            // a contacted candidate that comes back is not contacted again
+            CandidateSet pair = new CandidateSet(2, target);
+            Contact[] c = new Contact[4];
+            for(int i = 1; i < c.length; i++) {
+                longs[0] = i;
+                c[i] = new Contact(ip, 123, BitSet.valueOf(longs), id_bit_length);
+            }
+            pair.add(c[3]);
+            pair.add(c[2]);
+            assertEquals(2, pair.nextUncontacted(2).size());
+            pair.add(c[1]); // c[3] is dropped
+            pair.fail(pair.nextUncontacted(1).get(0));
+            assertTrue(pair.add(c[3]));
+            assertFalse(pair.hasUncontacted());
+        } catch(UnknownHostException e) {
+            fail("impossible happened" + e.toString());
+        }
+    }
+
+    @Test
+    public void klist() throws Exception {
+        Klist klist = new Klist(3);
+        Contact[] c = new Contact[5];
+        for(int i = 0; i < c.length; i++)
+            c[i] = new Contact(InetAddress.getByName("10.0.0." + i), 1235, NodeId.valueOf(new long[] { i + 1 }, id_bit_length));
+
+        assertEquals(null, klist.addContact(c[0]));
+        assertEquals(null, klist.addContact(c[1]));
+        Contact[] before = klist.snapshot();
+        assertEquals(c[0], klist.addContact(c[0]));   // present, moved to the tail
+        assertEquals(c[0], before[0]);                // the snapshot is not modified
+        assertEquals(c[1], klist.snapshot()[0]);
+        assertEquals(c[0], klist.snapshot()[1]);
+        assertEquals(null, klist.addContact(c[2]));
+        assertEquals(c[1], klist.addContact(c[3]));   // full, the least recently seen must be pinged
+        assertEquals(3, klist.size());                // it stays until evicted, c[3] waits as a replacement
+        assertEquals(c[3], klist.replacements()[0]);
+        assertEquals(c[1], klist.addContact(c[4]));
+        assertEquals(2, klist.replacements().length);
+        assertTrue(klist.evict(c[1]));                // no pong, the most recent replacement takes its place
+        assertEquals(c[4], klist.snapshot()[2]);
+        assertEquals(1, klist.replacements().length);
+        assertFalse(klist.evict(c[1]));
+        klist.refresh(c[1]);                          // full, ignored
+        assertEquals(3, klist.size());
+        assertEquals(c[4], klist.snapshot()[2]);
+
+        // last seen times, removal and restore
+        long[] seen = new long[3];
+        Contact[] timed = klist.snapshot(seen);
+        assertEquals(3, timed.length);
+        for(int i = 0; i < timed.length; i++)
+            assertTrue(seen[i] > 0);
+        assertTrue(klist.remove(c[2]));
+        assertFalse(klist.remove(c[2]));
+        klist.restore(c[1], 42);
+        timed = klist.snapshot(seen);
+        assertEquals(c[1], timed[2]);
+        assertEquals(42, seen[2]);
+        klist.refresh(c[1]);
+        klist.snapshot(seen);
+        assertTrue(seen[2] > 42);
+
+        // concurrent writers never lose the bound nor duplicate a contact
+        final Klist shared = new Klist(20);
+        Thread[] writers = new Thread[4];
+        for(int t = 0; t < writers.length; t++) {
+            final int from = t;
+            writers[t] = new Thread(() -> {
+                for(int i = 0; i < 2000; i++) {
+                    NodeId id = NodeId.valueOf(new long[] { (i * writers.length + from) % 50 + 1 }, id_bit_length);
+                    shared.addContact(new Contact(null, 0, id));
+                }
+            });
+            writers[t].start();
+        }
+        for(Thread w : writers)
+            w.join();
+        Contact[] content = shared.snapshot();
+        assertTrue(content.length <= 20);
+        assertTrue(shared.replacements().length <= 20);
+        for(int i = 0; i < content.length; i++)
+            for(int j = i + 1; j < content.length; j++)
+                assertNotEquals(content[i], content[j]);
+    }
+
+    @Test
+    public void compactRoutingTable() throws Exception {
+        IdGenerator random = new IdGenerator(3);
+        final int k = 4;
+        NodeId owner = random.nextId(id_bit_length);
+        ContactDirectory directory = new ContactDirectory(id_bit_length);
+        RoutingTable compact = new CompactRoutingTable(directory, owner, k);
+        RoutingTable klists = new KlistTable(owner, k);
+        assertEquals(id_bit_length, compact.length());
+        assertEquals(null, compact.bucket(id_bit_length - 1));
+
+        // few ids, so that the buckets fill and the contacts are seen again
+        Contact[] pool = new Contact[200];
+        for(int i = 0; i < pool.length; i++)
+            pool[i] = random.nextContact(id_bit_length, false);
+        for(int i = 0; i < 5000; i++) {
+            Contact c = pool[random.nextInt(pool.length)];
+            if(random.nextInt(4) == 0) {
+                compact.refresh(c);
+                klists.refresh(c);
+            } else {
+                assertEquals(klists.addContact(c), compact.addContact(c));
+            }
+        }
+        for(int i = 0; i < id_bit_length; i++) {
+            Contact[] expected = klists.bucket(i);
+            Contact[] got = compact.bucket(i);
+            assertEquals(expected == null, got == null);
+            if(expected != null)
+                assertEquals(Arrays.asList(expected), Arrays.asList(got));
+        }
+        NodeId target = random.nextId(id_bit_length);
+        CandidateSet a = new CandidateSet(k, target), b = new CandidateSet(k, target);
+        for(int i = id_bit_length - 1; i >= 0; i--) {
+            klists.collect(i, a, k);
+            compact.collect(i, b, k);
+        }
+        assertEquals(a.toString(), b.toString());
+
+        // the directory store each contact once
+        assertTrue(directory.size() <= pool.length);
+        assertEquals(directory.indexOf(pool[0]), directory.indexOf(new Contact(pool[0])));
+        assertEquals(pool[0], directory.get(directory.indexOf(pool[0])));
+        assertEquals(null, compact.addContact(new Contact(null, 0, owner)));   // the owner has no bucket
+        for(int i = 0; i < id_bit_length; i++)
+            assertEquals(klists.bucketSize(i), compact.bucketSize(i));
+
+        // only primitives are kept: the contacts are built again, with their address and port
+        Contact v6 = new Contact(InetAddress.getByName("::1"), 65535, random.nextId(id_bit_length));
+        Contact built = directory.get(directory.indexOf(v6));
+        assertTrue(built != directory.get(directory.indexOf(v6)));
+        assertEquals(v6.id, built.id);
+        assertEquals(v6.ip, built.ip);
+        assertEquals(65535, built.port);
+        built = directory.get(directory.indexOf(pool[1]));
+        assertEquals(pool[1].ip, built.ip);
+        assertEquals(pool[1].port, built.port);
+        Contact dropped = random.nextContact(id_bit_length, false);
+        WeakReference<Contact> ref = new WeakReference<Contact>(dropped);
+        RoutingTable table = new CompactRoutingTable(directory, owner, k);
+        table.refresh(dropped);
+        assertEquals(1, table.bucketSize(owner.bucketIndex(dropped.id)));
+        dropped = null;
+        for(int i = 0; i < 10 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(null, ref.get()); // the table and the directory do not keep it
+    }
+
+    @Test
+    public void idGenerator() throws Exception {
+        IdGenerator a = new IdGenerator(42), b = new IdGenerator(42);
+        for(int i = 0; i < 10; i++)
+            assertEquals(a.nextId(160), b.nextId(160));
+        IdGenerator sa = a.split(), sb = b.split();
+        assertEquals(sa.nextContact(id_bit_length, true), sb.nextContact(id_bit_length, true));
+        assertEquals(a.nextLong(), b.nextLong());
+        assertNotEquals(sa.nextLong(), a.nextLong());
+
+        // the state can be restored
+        IdGenerator c = new IdGenerator(a.getSeed(), a.getGamma());
+        assertEquals(a.nextAddress(), c.nextAddress());
+        for(int i = 0; i < 1000; i++) {
+            final int r = a.nextInt(7);
+            assertTrue(r >= 0 && r < 7);
+            final int port = a.nextPort();
+            assertTrue(port >= 1024 && port < 65535);
+        }
+
+        // the digests reused by hash produce the same ids
+        InetAddress ip = InetAddress.getByName("192.168.0.1");
+        NodeId first = Contact.hash(ip, 1235, 160);
+        Contact.hash(ip, 1236, 160);
+        Contact.hash(ip, 1235, 300);
+        assertEquals(first, Contact.hash(ip, 1235, 160));
+    }
+
+    @Test
+    public void histogram() {
+        LookupMetrics.Histogram h = new LookupMetrics.Histogram();
+        assertEquals(0, h.percentile(50));
+        for(long v = 0; v < 1 << 20; v = v * 2 + 1) {
+            final int i = LookupMetrics.Histogram.index(v);
+            assertTrue(LookupMetrics.Histogram.lowerBound(i) <= v);
+            assertTrue(LookupMetrics.Histogram.lowerBound(i + 1) > v);
+        }
+        assertEquals(LookupMetrics.Histogram.index(Long.MAX_VALUE), LookupMetrics.Histogram.index(Long.MAX_VALUE - 1));
+
+        for(int v = 1; v <= 1000; v++)
+            h.record(v);
+        h.record(-5);   // as 0
+        assertEquals(1001, h.count());
+        assertEquals(0, h.min());
+        assertEquals(1000, h.max());
+        assertEquals(500, h.mean(), 0.5);
+        assertTrue(h.percentile(50) >= 500 && h.percentile(50) <= 500 * 9 / 8);
+        assertTrue(h.percentile(99) >= 990 && h.percentile(99) <= 1000);
+        assertEquals(1000, h.percentile(100));
+
+        StringBuilder sb = new StringBuilder();
+        h.appendJson(sb);
+        assertTrue(sb.toString().startsWith("{\"count\":1001,\"min\":0,\"max\":1000,\"mean\":"));
+        assertTrue(sb.toString().endsWith("]}"));
+    }
+
+    @Test
+    public void valueStore() {
+        final long[] now = {0};
+        ValueStore store = new ValueStore(2 * 256, 256, () -> now[0]);
+        NodeId[] keys = new NodeId[8];
+        for(int i = 0; i < keys.length; i++)
+            keys[i] = NodeId.valueOf(new long[] { i + 1 }, id_bit_length);
+
+        assertTrue(store.put(keys[0], new byte[] { 1, 2, 3 }, 100));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, store.get(keys[0]));
+        assertTrue(store.put(keys[0], new byte[] { 4 }, 100));     // replaced
+        assertArrayEquals(new byte[] { 4 }, store.get(keys[0]));
+        assertEquals(null, store.get(keys[1]));
+        assertEquals(1, store.size());
+        assertEquals(1, store.usedBytes());
+        assertFalse(store.put(keys[1], new byte[257], 100));       // larger than a page
+        assertEquals(1, store.rejected());
+
+        // a page of 128 bytes chunks, the other of 64: the least recently used 128 bytes value is evicted
+        assertTrue(store.put(keys[1], new byte[100], 100));
+        assertTrue(store.put(keys[2], new byte[128], 100));
+        assertEquals(2 * 256, store.allocatedBytes());
+        assertNotEquals(null, store.get(keys[1]));
+        assertTrue(store.put(keys[3], new byte[65], 100));
+        assertEquals(1, store.evictions());
+        assertEquals(null, store.get(keys[2]));
+        assertNotEquals(null, store.get(keys[1]));
+        assertFalse(store.put(keys[4], new byte[256], 100));       // no page left for its class
+        assertArrayEquals(new byte[] { 4 }, store.get(keys[0]));   // the other classes are untouched
+
+        // expiration
+        now[0] = 100;
+        assertEquals(null, store.get(keys[0]));
+        assertEquals(1, store.expirations());
+        assertEquals(2, store.purgeExpired());
+        assertEquals(0, store.size());
+        assertEquals(0, store.usedBytes());
+        assertTrue(store.put(keys[5], new byte[10], Long.MAX_VALUE));
+        now[0] = Long.MAX_VALUE - 1;
+        assertNotEquals(null, store.get(keys[5]));
+        assertTrue(store.hits() > 0 && store.misses() > 0);
+        assertEquals((double) store.hits() / (store.hits() + store.misses()), store.hitRate(), 1e-9);
+    }
+
+    @Test
+    public void lookupCache() throws Exception {
+        final long[] now = {0};
+        LookupCache cache = new LookupCache(2, 10, 100, () -> now[0]);
+        NodeId target = NodeId.valueOf(new long[] { 0xF0F00000L }, id_bit_length);
+        CandidateSet result = new CandidateSet(3, target);
+        Contact[] contacts = new Contact[3];
+        for(int i = 0; i < contacts.length; i++) {
+            contacts[i] = new Contact(InetAddress.getByName("10.0.4." + i), 1235, NodeId.valueOf(new long[] { 0xF0F00000L + i + 1 }, id_bit_length));
+            result.add(contacts[i]);
+        }
+        assertEquals(null, cache.get(target, 3));
+        cache.put(result, 7);
+
+        // fresh: returned without requests
+        CandidateSet hit = cache.get(target, 3);
+        assertEquals(3, hit.size());
+        assertEquals(contacts[0], hit.closest());
+        assertEquals(7, cache.savedRpcs());
+
+        // stale: only seeds, the nearest cached target by prefix
+        now[0] = 50;
+        assertEquals(null, cache.get(target, 3));
+        CandidateSet near = new CandidateSet(3, NodeId.valueOf(new long[] { 0xF0F0FFFFL }, id_bit_length));
+        assertTrue(cache.seed(near));
+        assertEquals(3, near.size());
+        CandidateSet far = new CandidateSet(3, NodeId.valueOf(new long[] { 0x0F000000L }, id_bit_length));
+        assertTrue(cache.seed(far));
+        assertEquals(2, cache.seeded());
+
+        // a failed contact drops the results containing it
+        assertEquals(1, cache.invalidate(contacts[1]));
+        assertEquals(0, cache.size());
+        assertFalse(cache.seed(new CandidateSet(3, target)));
+        assertEquals(1, cache.misses());
+
+        // size and age bounds
+        for(int i = 0; i < 3; i++) {
+            CandidateSet r = new CandidateSet(3, NodeId.valueOf(new long[] { i << 8 }, id_bit_length));
+            r.add(contacts[i]);
+            cache.put(r, 1);
+        }
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictions());
+        now[0] = 150;
+        assertFalse(cache.seed(new CandidateSet(3, NodeId.valueOf(new long[] { 1 << 8 }, id_bit_length))));
+        assertEquals(2, cache.expirations());  // the exact target, then the nearest one
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.hits());
+    }
+
+    @Test
+    public void gossip() throws Exception {
+        Contact[] c = new Contact[12];
+        for(int i = 0; i < c.length; i++)
+            c[i] = new Contact(InetAddress.getByName("10.0.6." + i), 1235, NodeId.valueOf(new long[] { 0x10000L * (i + 1) }, id_bit_length));
+        Contact me = c[0], peer = c[1];
+        ShortList traversed = new ShortList(20, me, c[11].id);
+        for(int i = 0; i < c.length; i++)
+            traversed.add(c[i]);
+        Gossip gossip = new Gossip(4, 2);
+
+        // the sender, then the last contacted nodes up to the cap
+        ShortList sent = gossip.select(me, peer, traversed);
+        assertEquals(5, sent.size());
+        assertEquals(me, sent.get(0).contact);
+        assertEquals(c[11], sent.get(1).contact);
+        assertEquals(c[8], sent.get(4).contact);
+        assertEquals(10, gossip.offered());   // neither the sender nor the receiver
+        assertEquals(4, gossip.sent());
+
+        // the same contacts are not sent again to the same peer
+        sent = gossip.select(me, peer, traversed);
+        assertEquals(c[7], sent.get(1).contact);
+        assertEquals(4, gossip.filtered());
+        // nor the ones it returned
+        CandidateSet returned = new CandidateSet(20, c[11].id);
+        for(int i = 2; i < 6; i++)
+            returned.add(c[i]);
+        gossip.known(peer, returned);
+        sent = gossip.select(me, peer, traversed);
+        assertEquals(1, sent.size());
+        // another peer gets them
+        assertEquals(5, gossip.select(me, c[2], traversed).size());
+        // only 2 filters are kept, the least recently used is dropped
+        gossip.select(me, c[3], traversed);
+        assertEquals(c[11], gossip.select(me, peer, traversed).get(1).contact);
+    }
+
+    @Test
+    public void timerWheel() {
+        final long[] now = {1000};
+        TimerWheel wheel = new TimerWheel(10, () -> now[0]);
+        ArrayList<Long> fired = new ArrayList<Long>();
+        final long[] delays = { 0, 5, 10, 630, 640, 41000, 3000000, 200000000 }; // up to the cascades of every wheel, and beyond
+        for(long d : delays)
+            wheel.schedule(() -> fired.add(now[0]), d);
+        TimerWheel.Timeout cancelled = wheel.schedule(() -> fail("cancelled"), 700);
+        cancelled.cancel();
+        assertEquals(delays.length + 1, wheel.pending());
+        assertEquals(1, wheel.advance());   // due now
+        now[0] += 10;
+        assertEquals(2, wheel.advance());   // 5 rounded up to the tick, and 10
+        for(int i = 3; i < delays.length; i++) {
+            now[0] = 1000 + delays[i] - 10;
+            assertEquals(0, wheel.advance());
+            now[0] = 1000 + delays[i];
+            assertEquals(1, wheel.advance());
+            assertEquals(i + 1, fired.size());
+        }
+        assertEquals(0, wheel.pending());
+        // scheduled from a task
+        wheel.schedule(() -> wheel.schedule(() -> fired.add(-1L), 0), 20);
+        now[0] += 20;
+        assertEquals(1, wheel.advance());
+        assertEquals(1, wheel.advance());
+        assertEquals(Long.valueOf(-1), fired.get(fired.size() - 1));
+    }
+
+    @Test
+    public void eventLoop() {
+        EventLoop loop = new EventLoop();
+        StringBuilder order = new StringBuilder();
+        loop.schedule(30, () -> order.append("c"));
+        loop.schedule(10, () -> {
+            order.append("a");
+            loop.schedule(5, () -> order.append("b"));   // at 15
+            loop.execute(() -> order.append("A"));       // at 10, after the ones already at 10
+        });
+        loop.schedule(10, () -> order.append("x"));
+        EventLoop.Event cancelled = loop.schedule(20, () -> order.append("!"));
+        cancelled.cancel();
+
+        loop.runUntil(12);
+        assertEquals("axA", order.toString());
+        assertEquals(12, loop.now());
+        assertEquals(30, loop.run());
+        assertEquals("axAbc", order.toString());
+        assertEquals(5, loop.executed());
+        assertEquals(0, loop.pending());
+        loop.scheduleAt(0, () -> order.append("p"));    // past, executed now
+        loop.run();
+        assertEquals(30, loop.now());
+    }
+
+    @Test
+    public void messageCodec() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(UdpTransport.MAX_DATAGRAM);
+        Contact a = new Contact(InetAddress.getByName("192.168.0.1"), 65000, id_bit_length);
+        Contact b = new Contact(InetAddress.getByName("fe80::1"), 1235, id_bit_length);
+
+        // ping: header + 2 contacts of id, family, address and port
+        Message ping = new Message(Message.kind.PING, a, b);
+        MessageCodec.encode(ping, buf);
+        assertEquals(12 + (4 + 1 + 4 + 2) + (4 + 1 + 16 + 2), buf.position());
+        assertEquals(buf.position(), MessageCodec.encodedSize(ping));
+        buf.flip();
+        Message decoded = MessageCodec.decode(buf);
+        assertFalse(buf.hasRemaining());
+        assertEquals(ping.rpc_id, decoded.rpc_id);
+        assertEquals(a, decoded.sender);
+        assertEquals(a.ip, decoded.sender.ip);
+        assertEquals(65000, decoded.sender.port);
+        assertEquals(b.ip, decoded.receiver.ip);
+        assertFalse(decoded instanceof Message.Response);
+
+        buf.clear();
+        MessageCodec.encode(new Message.Response(ping), buf);
+        buf.flip();
+        decoded = MessageCodec.decode(buf);
+        assertTrue(decoded instanceof Message.Response);
+        assertEquals(b, decoded.sender);
+        assertEquals(ping.rpc_id, decoded.rpc_id);
+
+        // find request and response
+        NodeId target = a.id;
+        ShortList traversed = new ShortList(5, a, target);
+        traversed.add(a);
+        traversed.add(b);
+        Message.FindRequest req = new Message.FindRequest(target, traversed, a, b);
+        buf.clear();
+        MessageCodec.encode(req, buf);
+        assertEquals(buf.position(), MessageCodec.encodedSize(req));
+        buf.flip();
+        Message.FindRequest dreq = (Message.FindRequest) MessageCodec.decode(buf);
+        assertEquals(target, dreq.id);
+        assertEquals(null, dreq.traversed_nodes); // kept encoded
+        assertEquals(2, dreq.traversed_view.count());
+        dreq.traversed_view.next();
+        assertTrue(dreq.traversed_view.idEquals(a.id));
+        dreq.traversed_view.next();
+        assertEquals(b, dreq.traversed_view.toContact());
+        assertFalse(dreq.traversed_view.next());
+        assertTrue(dreq.traversed_view.rewind().next());
+        assertEquals(a, dreq.traversed_view.toContact());
+        // the list is a copy, it survives the reuse of the buffer
+        buf.clear();
+        MessageCodec.encode(new Message.FindRequest(b.id, null, b, a), buf);
+        buf.clear();
+        MessageCodec.encode(dreq, buf);
+        assertEquals(buf.position(), MessageCodec.encodedSize(dreq));
+        buf.flip();
+        Message.FindRequest again = (Message.FindRequest) MessageCodec.decode(buf);
+        assertEquals(2, again.traversed_view.count());
+        again.traversed_view.rewind().next();
+        assertEquals(a, again.traversed_view.toContact());
+
+        CandidateSet set = new CandidateSet(5, target);
+        long[] longs = {0};
+        for(int i = 1; i <= 5; i++) {
+            longs[0] = i;
+            set.add(new Contact(InetAddress.getByName("10.0.0." + i), 1000 + i, BitSet.valueOf(longs), id_bit_length));
+        }
+        Message.FindResponse res = new Message.FindResponse(set, req);
+        buf.clear();
+        MessageCodec.encode(res, buf);
+        assertEquals(buf.position(), MessageCodec.encodedSize(res));
+        buf.flip();
+
+        // read in place without decoding
+        MessageCodec.View view = new MessageCodec.View().wrap(buf);
+        assertEquals(Message.kind.FIND, view.kind());
+        assertTrue(view.isResponse());
+        assertEquals(5, view.contactCount());
+        assertEquals(buf.limit(), view.size());
+        MessageCodec.ContactView cursor = view.contacts(new MessageCodec.ContactView());
+        int i = 0;
+        while(cursor.next()) {
+            assertTrue(cursor.idEquals(set.get(i).contact.id));
+            assertEquals(set.get(i).contact.port, cursor.port());
+            assertEquals(0, cursor.compareDistance(set.get(i).contact.id, target));
+            i++;
+        }
+        assertEquals(5, i);
+        assertEquals(0, buf.position()); // the view does not move the buffer
+
+        Message.FindResponse dres = (Message.FindResponse) MessageCodec.decode(buf);
+        assertEquals(res.rpc_id, dres.rpc_id);
+        assertEquals(5, dres.candidates.size());
+        assertEquals(set.closest(), dres.candidates.closest());
+
+        // store and find value
+        byte[] value = "the value".getBytes("UTF-8");
+        Message.StoreRequest store = new Message.StoreRequest(target, value, 60000, a, b);
+        buf.clear();
+        MessageCodec.encode(store, buf);
+        assertEquals(buf.position(), MessageCodec.encodedSize(store));
+        buf.flip();
+        Message.StoreRequest dstore = (Message.StoreRequest) MessageCodec.decode(buf);
+        assertEquals(target, dstore.key);
+        assertEquals(60000, dstore.ttl);
+        assertArrayEquals(value, dstore.value);
+        buf.clear();
+        MessageCodec.encode(new Message.StoreResponse(true, store), buf);
+        buf.flip();
+        assertTrue(((Message.StoreResponse) MessageCodec.decode(buf)).stored);
+
+        Message.FindValueRequest fv = new Message.FindValueRequest(target, traversed, a, b);
+        buf.clear();
+        MessageCodec.encode(fv, buf);
+        buf.flip();
+        assertEquals(Message.kind.FIND_VALUE, MessageCodec.decode(buf).type);
+        Message.FindValueResponse found = new Message.FindValueResponse(value, new CandidateSet(5, target), fv);
+        buf.clear();
+        MessageCodec.encode(found, buf);
+        assertEquals(buf.position(), MessageCodec.encodedSize(found));
+        buf.flip();
+        assertArrayEquals(value, ((Message.FindValueResponse) MessageCodec.decode(buf)).value);
+        Message.FindValueResponse not_found = new Message.FindValueResponse(null, set, fv);
+        buf.clear();
+        MessageCodec.encode(not_found, buf);
+        assertEquals(buf.position(), MessageCodec.encodedSize(not_found));
+        buf.flip();
+        Message.FindValueResponse dnot_found = (Message.FindValueResponse) MessageCodec.decode(buf);
+        assertEquals(null, dnot_found.value);
+        assertEquals(5, dnot_found.candidates.size());
+
+        // batch of requests, answered by a batch of responses
+        Message.BatchRequest batch = new Message.BatchRequest(Arrays.asList(ping, req, fv), a, b);
+        buf.clear();
+        MessageCodec.encode(batch, buf);
+        assertEquals(buf.position(), MessageCodec.encodedSize(batch));
+        buf.flip();
+        assertEquals(3, new MessageCodec.View().wrap(buf).messageCount());
+        Message.BatchRequest dbatch = (Message.BatchRequest) MessageCodec.decode(buf);
+        assertFalse(buf.hasRemaining());
+        assertEquals(3, dbatch.requests.size());
+        assertEquals(ping.rpc_id, dbatch.requests.get(0).rpc_id);
+        assertEquals(2, ((Message.FindRequest) dbatch.requests.get(1)).traversed_view.count());
+        assertEquals(Message.kind.FIND_VALUE, dbatch.requests.get(2).type);
+        Message.BatchResponse batch_res = new Message.BatchResponse(Arrays.<Message>asList(new Message.Response(ping), res), batch);
+        buf.clear();
+        MessageCodec.encode(batch_res, buf);
+        assertEquals(buf.position(), MessageCodec.encodedSize(batch_res));
+        buf.flip();
+        Message.BatchResponse dbatch_res = (Message.BatchResponse) MessageCodec.decode(buf);
+        assertEquals(batch.rpc_id, dbatch_res.rpc_id);
+        assertEquals(b, dbatch_res.sender);
+        assertEquals(5, ((Message.FindResponse) dbatch_res.responses.get(1)).candidates.size());
+
+        // invalid messages
+        buf.flip();
+        buf.limit(buf.limit() - 1);
+        try {
+            MessageCodec.decode(buf);
+            fail("truncated message accepted");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        buf.clear();
+        buf.put(0, (byte) (MessageCodec.VERSION + 1));
+        try {
+            MessageCodec.decode(buf);
+            fail("unknown version accepted");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        buf.clear();
+        MessageCodec.encode(new Message.BatchRequest(Arrays.<Message>asList(batch), a, b), buf);
+        buf.flip();
+        try {
+            MessageCodec.decode(buf);
+            fail("nested batch accepted");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
 }